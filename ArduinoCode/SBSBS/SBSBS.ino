@@ -65,6 +65,25 @@ const byte RTC_ALARM_TIME_INTERVAL = 5;   //Sets the wakeup intervall in minutes
  */
 const byte MAX_RFID_TAGS = 4;
 
+// Compact SMS payload
+/*
+ * Readings are packed into SMS in a compact format instead of one CSV line 
+ * per SMS. Each SMS is self contained:
+ *   #2<base epoch>;<reading>;<reading>...
+ *   reading: <epoch delta>.<temperature>.<humidity>.<weight>.<tag>[.<tag>...]
+ * Numbers are base 36 with a leading '-' when negative. The epoch delta is 
+ * seconds since the previous reading, temperature, humidity and weight are 
+ * in tenths. A tag is '=' followed by the tag the first time it appears in 
+ * the SMS, afterwards the index (base 36) of its first appearance. An empty 
+ * tag is sent as '!' so the first tag is always the snake. Only characters 
+ * of the GSM basic set are used, each costs one of the 160 characters.
+ */
+const byte SMS_MAX_CHARACTERS = 160;  //Characters in a single SMS
+const byte SMS_MAX_TAGS = 6;          //Tags remembered per SMS to be referenced by index
+const byte RFID_TAG_LENGTH = 16;      //Characters in an RFID tag (900_067000096387)
+const byte SD_LINE_LENGTH = 100;      //Longest line read from the SD card file
+const char SMS_PAYLOAD_VERSION[] = "#2";
+
 
 /* LIBRARIES INSTANTIATED */
 SoftwareSerial SIM900_Serial(PIN_SIM900_RX, PIN_SIM900_TX); //Create soft serial to pass to SIM900 class
@@ -92,6 +111,13 @@ boolean snakeDataSavedToFile = false;
 // Flag for button press to send an SMS
 boolean sendSMS = false;
 
+// Compact SMS payload being built
+char smsPayload[SMS_MAX_CHARACTERS + 1];
+byte smsPayloadLength = 0;
+char smsTags[SMS_MAX_TAGS][RFID_TAG_LENGTH + 1];
+byte smsTagCount = 0;
+unsigned long smsLastEpoch = 0;
+
 
 /* STRUCTURES */
 struct snakeData {
@@ -290,8 +316,9 @@ void loop() {
 
 /* FUNCTIONS */
 /**
- * Function to read the contents of today's SD file and generate a text message 
- * body by sending AT commands to the SIM900 module.
+ * Function to read the contents of today's SD file and pack the readings into 
+ * as few compact text messages as possible, sent by AT commands to the 
+ * SIM900 module.
  */
 void sendSnakeDataSMS() {
   char filename[13];
@@ -311,61 +338,32 @@ void sendSnakeDataSMS() {
     }
     Serial.println(F("Text mode ready."));
 
+    // Start with an empty payload
+    resetSMSPayload();
 
-    // Reset that the body of the text message is ready for writing
-    SIM.resetReadyForEnteringText();
-
-    // Send command for setting the phone number
-    SIM.sendTwilioPhoneNumber();
-    Serial.println(F("Sent phone number."));
-
-    while (!SIM.isReadyForEnteringText()) {
-      SIM.read();
-    }
-    Serial.println(F("Phone ready for text."));
-
-    // How many characters wil be sent
-    byte messageCharacters = 0;
-    // Read from the file until there's nothing else in it
+    // Read from the file a line at a time until there's nothing else in it
+    char line[SD_LINE_LENGTH + 1];
+    byte lineLength = 0;
     int16_t c;
-    while ((c = storageFile.read()) > 0) {
-      // An end of line was found
-      if (c == '\r' || c == '\n') {
-        // If a line without any data
-        if (messageCharacters >= 37) {
-          Serial.print(F("End of line reached, sending text with chars: "));
-          Serial.println(messageCharacters);
-
-          // Reset all parts of sending a text
-          SIM.resetTextMessageSent();
-          SIM.resetReadyForEnteringText();
-
-          // Finish text message and send
-          SIM.sendEndOfTextMessage();
-
-          while (!SIM.wasTextMessageSent()) {
-            SIM.read();
-          }
-
-          // Send command for setting the phone number
-          SIM.sendTwilioPhoneNumber();
-
-          while (!SIM.isReadyForEnteringText()) {
-            SIM.read();
-          }
-          Serial.println(F("Phone ready for text."));
+    do {
+      c = storageFile.read();
+      // An end of line or end of file was found
+      if (c == '\r' || c == '\n' || c <= 0) {
+        line[lineLength] = '\0';
+        // Skip empty lines
+        if (lineLength > 0) {
+          addReadingToSMS(line);
         }
-        // Reset the number of characters sent
-        messageCharacters = 0;
+        lineLength = 0;
       }
-      else {
-        // Print each character to text message body
-        SIM.sendATCommands((char)c);
-        messageCharacters++;
-
-        // DEBUG print to console the "text message"
-        Serial.print((char)c);
+      else if (lineLength < SD_LINE_LENGTH) {
+        line[lineLength++] = (char)c;
       }
+    } while (c > 0);
+
+    // Send the last partly filled text message
+    if (smsPayloadLength > 0) {
+      sendSMSPayload();
     }
 
     Serial.println(F("Finished texts"));
@@ -382,6 +380,208 @@ void sendSnakeDataSMS() {
   }
 }
 
+/**
+ * Function to add a line of the SD file to the text message payload. When the 
+ * reading does not fit, the payload is sent and a new one is started.
+ */
+void addReadingToSMS(const char *line) {
+  // Remember the payload so a reading that does not fit can be removed
+  byte payloadLength = smsPayloadLength;
+  byte tagCount = smsTagCount;
+  unsigned long lastEpoch = smsLastEpoch;
+
+  if (encodeReading(line)) {
+    return;
+  }
+
+  // Remove the partly encoded reading
+  smsPayloadLength = payloadLength;
+  smsPayload[smsPayloadLength] = '\0';
+  smsTagCount = tagCount;
+  smsLastEpoch = lastEpoch;
+
+  // Reading does not fit in an empty payload, so it can never be sent
+  if (payloadLength == 0) {
+    Serial.print(F("Skipped line: "));
+    Serial.println(line);
+    return;
+  }
+
+  // Send the full payload and start a new one with the reading
+  sendSMSPayload();
+  resetSMSPayload();
+  if (!encodeReading(line)) {
+    resetSMSPayload();
+    Serial.print(F("Skipped line: "));
+    Serial.println(line);
+  }
+}
+
+/**
+ * Function to encode a line of the SD file (epoch, temp, hum, weight, tags) 
+ * onto the end of the text message payload.
+ * Returns false if the line could not be parsed or does not fit.
+ */
+boolean encodeReading(const char *line) {
+  char *end;
+
+  // Parse the sensor values
+  unsigned long epoch = strtoul(line, &end, 10);
+  if (*end != ',') return false;
+  double temperature = strtod(end + 1, &end);
+  if (*end != ',') return false;
+  double humidity = strtod(end + 1, &end);
+  if (*end != ',') return false;
+  double weight = strtod(end + 1, &end);
+  if (*end != ',') return false;
+
+  // Start the payload with the version and base epoch
+  if (smsPayloadLength == 0) {
+    if (!appendToSMS(SMS_PAYLOAD_VERSION)) return false;
+    if (!appendNumberToSMS((long)epoch)) return false;
+    smsLastEpoch = epoch;
+  }
+
+  // Time as a difference, sensor values as tenths
+  if (!appendCharacterToSMS(';')) return false;
+  if (!appendNumberToSMS((long)(epoch - smsLastEpoch))) return false;
+  smsLastEpoch = epoch;
+  if (!appendCharacterToSMS('.')) return false;
+  if (!appendNumberToSMS((long)round(temperature * 10))) return false;
+  if (!appendCharacterToSMS('.')) return false;
+  if (!appendNumberToSMS((long)round(humidity * 10))) return false;
+  if (!appendCharacterToSMS('.')) return false;
+  if (!appendNumberToSMS((long)round(weight * 10))) return false;
+
+  // Each RFID tag, by index if already in this payload
+  while (*end == ',') {
+    const char *tagStart = end + 1;
+    byte tagLength = 0;
+    while (tagStart[tagLength] != ',' && tagStart[tagLength] != '\0') {
+      tagLength++;
+    }
+    end = (char *)(tagStart + tagLength);
+
+    if (!appendCharacterToSMS('.')) return false;
+
+    // Tags are positional (snake first), so an empty tag keeps its place
+    if (tagLength == 0) {
+      if (!appendCharacterToSMS('!')) return false;
+      continue;
+    }
+
+    char tag[SD_LINE_LENGTH + 1];
+    memcpy(tag, tagStart, tagLength);
+    tag[tagLength] = '\0';
+
+    byte tagIndex = 0;
+    while (tagIndex < smsTagCount && strcmp(smsTags[tagIndex], tag) != 0) {
+      tagIndex++;
+    }
+    if (tagIndex < smsTagCount) {
+      if (!appendNumberToSMS(tagIndex)) return false;
+    }
+    else {
+      if (!appendCharacterToSMS('=')) return false;
+      if (!appendToSMS(tag)) return false;
+      // Remember the tag, later tags are still sent in full when full
+      if (smsTagCount < SMS_MAX_TAGS) {
+        if (tagLength > RFID_TAG_LENGTH) {
+          // Too long to remember, the index is taken but never matched
+          smsTags[smsTagCount++][0] = '\0';
+        }
+        else {
+          strcpy(smsTags[smsTagCount++], tag);
+        }
+      }
+    }
+  }
+
+  return true;
+}
+
+/**
+ * Function to append text to the text message payload.
+ * Returns false if the text does not fit.
+ */
+boolean appendToSMS(const char *text) {
+  byte length = strlen(text);
+  if (smsPayloadLength + length > SMS_MAX_CHARACTERS) {
+    return false;
+  }
+  memcpy(smsPayload + smsPayloadLength, text, length);
+  smsPayloadLength += length;
+  smsPayload[smsPayloadLength] = '\0';
+  return true;
+}
+
+/**
+ * Function to append a single character to the text message payload.
+ * Returns false if the character does not fit.
+ */
+boolean appendCharacterToSMS(char character) {
+  char text[2] = { character, '\0' };
+  return appendToSMS(text);
+}
+
+/**
+ * Function to append a number in base 36 to the text message payload.
+ * Returns false if the number does not fit.
+ */
+boolean appendNumberToSMS(long number) {
+  char digits[12];
+  if (number < 0) {
+    digits[0] = '-';
+    ultoa((unsigned long)(-number), digits + 1, 36);
+  }
+  else {
+    ultoa((unsigned long)number, digits, 36);
+  }
+  return appendToSMS(digits);
+}
+
+/**
+ * Function to empty the text message payload and its remembered tags.
+ */
+void resetSMSPayload() {
+  smsPayloadLength = 0;
+  smsPayload[0] = '\0';
+  smsTagCount = 0;
+  smsLastEpoch = 0;
+}
+
+/**
+ * Function to send the text message payload to the Twilio phone number.
+ */
+void sendSMSPayload() {
+  Serial.print(F("Sending text with chars: "));
+  Serial.println(smsPayloadLength);
+  // DEBUG print to console the "text message"
+  Serial.println(smsPayload);
+
+  // Reset all parts of sending a text
+  SIM.resetReadyForEnteringText();
+  SIM.resetTextMessageSent();
+
+  // Send command for setting the phone number
+  SIM.sendTwilioPhoneNumber();
+
+  while (!SIM.isReadyForEnteringText()) {
+    SIM.read();
+  }
+  Serial.println(F("Phone ready for text."));
+
+  // Text message body
+  SIM.sendATCommands(smsPayload);
+
+  // Finish text message and send
+  SIM.sendEndOfTextMessage();
+
+  while (!SIM.wasTextMessageSent()) {
+    SIM.read();
+  }
+}
+
 /**
  * Function to reset SnakeData struct variables to 0.
  */
@@ -16,22 +16,6 @@ public class ArduinoMessage {
 	 * The number of sensor readings sent in a text message.
 	 */
 	private static final int NUMBER_OF_SENSOR_READINGS = 5;
-	/**
-	 * Maximum temperature before reading or value is incorrect (Mauritius highest 40C).
-	 */
-	private static final int MAX_TEMPERATURE = 60;
-	/**
-	 * Minimum temperature before reading or value is incorrect (Mauritius lowest 5C).
-	 */
-	private static final int MIN_TEMPERATURE = -10;
-	/**
-	 * Maximum humidity before reading or value is incorrect (Sensor highest 100%).
-	 */
-	private static final int MAX_HUMIDITY = 100;
-	/**
-	 * Minimum humidity before reading or value is incorrect (Sensor lowest 0%).
-	 */
-	private static final int MIN_HUMIDITY = 0;
 	/**
 	 * Separator for a comma separator value.
 	 */
@@ -45,6 +29,7 @@ public class ArduinoMessage {
 	private Float weight;
 	private String snakeRFID;
 	private ArrayList<String> skinkRFIDs;
+	private String rawText;
 	
 	/**
 	 * Constructor to parse a CSV line from either an incoming text message or the storage file.
@@ -59,9 +44,15 @@ public class ArduinoMessage {
 		this.weight = null;
 		this.snakeRFID = null;
 		this.skinkRFIDs = new ArrayList<String>();
+		this.rawText = null;
 		
 		// Parse CSV text into variable values
 		this.parseCSVText(CSVString);
+		
+		// Keep the line a malformed message came from, it cannot be rebuilt
+		if ((CSVString != null) && isMissingData()) {
+			this.rawText = CSVString;
+		}
 	}
 	
 	/**
@@ -104,46 +95,49 @@ public class ArduinoMessage {
 	 * @return True if all variables are available, false if not.
 	 */
 	public boolean checkDataExists() {
-		if (this.messageSid == null) {
-			return false;
-		}
-		if (this.phoneNumber == null) {
-			return false;
-		}
-		if (this.epochMillis == null) {
-			return false;
-		} 
-		else if (this.epochMillis.longValue() <= 0) {
-			return false;
-		}
-		if (this.temperature == null) {
-			return false;
-		}
-		else if ((this.temperature.floatValue() < MIN_TEMPERATURE) || 
-				 (this.temperature.floatValue() > MAX_TEMPERATURE)) {
-			return false;
-		}
-		if (this.humidity == null) {
-			return false;
-		}
-		else if ((this.humidity.floatValue() < MIN_HUMIDITY) || 
-				 (this.humidity.floatValue() > MAX_HUMIDITY)) {
-			return false;
+		return validate() == null;
+	}
+	
+	/**
+	 * Function to check all data variables are not null and within the bounds 
+	 * of the current validation rules.
+	 * @return The reason the message is invalid, null if it is valid.
+	 */
+	public RejectReason validate() {
+		if (isMissingData()) {
+			return RejectReason.MALFORMED;
 		}
-		if (this.weight == null) {
-			return false;
+		
+		ValidationRules rules = ValidationRules.current();
+		if (this.epochMillis.longValue() <= 0) {
+			return RejectReason.OUT_OF_BOUNDS;
 		}
-		else if (this.weight.floatValue() < 0) {
-			return false;
+		if (!rules.isTemperatureValid(this.temperature.floatValue())) {
+			return RejectReason.OUT_OF_BOUNDS;
 		}
-		if (this.snakeRFID == null) {
-			return false;
+		if (!rules.isHumidityValid(this.humidity.floatValue())) {
+			return RejectReason.OUT_OF_BOUNDS;
 		}
-		if (this.skinkRFIDs == null) {
-			return false;
+		if (!rules.isWeightValid(this.weight.floatValue())) {
+			return RejectReason.OUT_OF_BOUNDS;
 		}
 		
-		return true;
+		return null;
+	}
+	
+	/**
+	 * Function to check whether any data variable is null.
+	 * @return True if a variable is missing.
+	 */
+	private boolean isMissingData() {
+		return (this.messageSid == null) || 
+			(this.phoneNumber == null) || 
+			(this.epochMillis == null) || 
+			(this.temperature == null) || 
+			(this.humidity == null) || 
+			(this.weight == null) || 
+			(this.snakeRFID == null) || 
+			(this.skinkRFIDs == null);
 	}
 	
 	/**
@@ -178,6 +172,32 @@ public class ArduinoMessage {
 		return CSVString.toString(); 
 	}
 	
+	/**
+	 * Function to parse all variables to a single line JSON object string.
+	 * @return A JSON string containing all data from variables.
+	 */
+	public String parseToJSONString() {
+		StringBuilder JSONString = new StringBuilder();
+		
+		JSONString.append("{\"messageSid\":\"").append(JSONUtils.escape(this.messageSid));
+		JSONString.append("\",\"phoneNumber\":\"").append(JSONUtils.escape(this.phoneNumber));
+		JSONString.append("\",\"epoch\":").append(this.epochMillis.longValue());
+		JSONString.append(",\"temperature\":").append(this.temperature.floatValue());
+		JSONString.append(",\"humidity\":").append(this.humidity.floatValue());
+		JSONString.append(",\"weight\":").append(this.weight.floatValue());
+		JSONString.append(",\"snakeRFID\":\"").append(JSONUtils.escape(this.snakeRFID));
+		JSONString.append("\",\"skinkRFIDs\":[");
+		for (int index = 0; index < this.skinkRFIDs.size(); index++) {
+			if (index > 0) {
+				JSONString.append(',');
+			}
+			JSONString.append('"').append(JSONUtils.escape(this.skinkRFIDs.get(index))).append('"');
+		}
+		JSONString.append("]}");
+		
+		return JSONString.toString();
+	}
+	
 	/**
 	 * Getter function to return the message Sid.
 	 * @return The Sid of the message.
@@ -308,6 +328,23 @@ public class ArduinoMessage {
 		this.skinkRFIDs = skinkRFIDs;
 	}
 	
+	/**
+	 * Getter function to return the line a malformed message was parsed 
+	 * from, so it can be kept when the message cannot be written back.
+	 * @return The CSV line, null if the message is not malformed.
+	 */
+	public String getRawText() {
+		return rawText;
+	}
+	
+	/**
+	 * Setter function to assign the line a malformed message was parsed from.
+	 * @param rawText The CSV line to set.
+	 */
+	public void setRawText(String rawText) {
+		this.rawText = rawText;
+	}
+	
 	/**
 	 * Function to convert a String into a Long.
 	 * @param reading A text message comma separated value.
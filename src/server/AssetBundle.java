@@ -0,0 +1,325 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Class to hold the static files of the report page (scripts, styles, fonts
+ * and icons) ready to serve. When the bundle is built each file is given a
+ * name containing a hash of its content, such as main.3f2a1b9c0d.js, so it
+ * can be cached by browsers forever, and a gzip compressed copy is made so
+ * nothing is compressed per request. Stylesheet links to other assets are
+ * rewritten to their hashed names. Only files with a known asset extension
+ * are bundled, so the credentials kept beside them are never served.
+ * @author Elliott Waterman
+ */
+public class AssetBundle {
+	/**
+	 * Path the assets are served under.
+	 */
+	public static final String URL_PREFIX = "/assets/";
+	/**
+	 * Directory holding the static files of the report page.
+	 */
+	private static final File ASSET_DIRECTORY = new File("assets");
+	/**
+	 * Number of hex characters of the content hash in a hashed name.
+	 */
+	private static final int HASH_LENGTH = 10;
+	/**
+	 * Smallest fraction of its size a compressed copy must save to be kept.
+	 */
+	private static final double MIN_COMPRESSION_SAVING = 0.1;
+	/**
+	 * Content types of the file extensions that are bundled.
+	 */
+	private static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+	static {
+		CONTENT_TYPES.put("js", "application/javascript; charset=utf-8");
+		CONTENT_TYPES.put("css", "text/css; charset=utf-8");
+		CONTENT_TYPES.put("ttf", "font/ttf");
+		CONTENT_TYPES.put("woff", "font/woff");
+		CONTENT_TYPES.put("woff2", "font/woff2");
+		CONTENT_TYPES.put("ico", "image/x-icon");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("svg", "image/svg+xml");
+	}
+	/**
+	 * File extensions that are already compressed.
+	 */
+	private static final Set<String> COMPRESSED_EXTENSIONS =
+		new HashSet<String>(Arrays.asList("woff", "woff2", "png"));
+	/**
+	 * Links to other files in a stylesheet, such as url('FontSnake.ttf').
+	 */
+	private static final Pattern STYLESHEET_URL = Pattern.compile("url\\((['\"]?)([^'\"()]+)\\1\\)");
+	/**
+	 * The bundle built from the asset directory when the class is loaded.
+	 */
+	private static final AssetBundle CURRENT_BUNDLE = load();
+
+	/**
+	 * Class to hold a bundled file.
+	 */
+	public static class Asset {
+		private final String hashedName;
+		private final String hash;
+		private final String contentType;
+		private final byte[] content;
+		private final byte[] gzipContent;
+
+		/**
+		 * Constructor to set the asset values.
+		 * @param hashedName The name containing the content hash.
+		 * @param hash The content hash.
+		 * @param contentType The content type.
+		 * @param content The content.
+		 * @param gzipContent The gzip compressed content, null if not worth compressing.
+		 */
+		Asset(String hashedName, String hash, String contentType, byte[] content, byte[] gzipContent) {
+			this.hashedName = hashedName;
+			this.hash = hash;
+			this.contentType = contentType;
+			this.content = content;
+			this.gzipContent = gzipContent;
+		}
+
+		/**
+		 * Getter function to return the content hash, used as the ETag.
+		 * @return The content hash.
+		 */
+		public String getHash() {
+			return hash;
+		}
+
+		/**
+		 * Getter function to return the content type.
+		 * @return The content type.
+		 */
+		public String getContentType() {
+			return contentType;
+		}
+
+		/**
+		 * Getter function to return the content.
+		 * @return The content.
+		 */
+		public byte[] getContent() {
+			return content;
+		}
+
+		/**
+		 * Getter function to return the gzip compressed content.
+		 * @return The compressed content, null if not worth compressing.
+		 */
+		public byte[] getGzipContent() {
+			return gzipContent;
+		}
+	}
+
+	private final Map<String, Asset> assetsByName;
+	private final Map<String, Asset> assetsByHashedName;
+
+	/**
+	 * Constructor to create an empty bundle, assets are added as it is built.
+	 */
+	private AssetBundle() {
+		this.assetsByName = new HashMap<String, Asset>();
+		this.assetsByHashedName = new HashMap<String, Asset>();
+	}
+
+	/**
+	 * Function to return the bundle of the asset directory.
+	 * @return The current asset bundle.
+	 */
+	public static AssetBundle current() {
+		return CURRENT_BUNDLE;
+	}
+
+	/**
+	 * Function to build a bundle of the files in a directory. Stylesheets are
+	 * bundled last so the files they link to already have hashed names.
+	 * @param directory The directory of static files, subdirectories are not bundled.
+	 * @return The asset bundle.
+	 * @throws IOException An IO exception caused by reading a file.
+	 */
+	public static AssetBundle build(File directory) throws IOException {
+		AssetBundle bundle = new AssetBundle();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return bundle;
+		}
+		List<File> stylesheets = new ArrayList<File>();
+		for (File file : files) {
+			String extension = getExtension(file.getName());
+			if (!file.isFile() || !CONTENT_TYPES.containsKey(extension)) {
+				continue;
+			}
+			if (extension.equals("css")) {
+				stylesheets.add(file);
+				continue;
+			}
+			bundle.add(file.getName(), Files.readAllBytes(file.toPath()));
+		}
+		for (File stylesheet : stylesheets) {
+			String text = new String(Files.readAllBytes(stylesheet.toPath()), StandardCharsets.UTF_8);
+			bundle.add(stylesheet.getName(), bundle.rewriteLinks(text).getBytes(StandardCharsets.UTF_8));
+		}
+		return bundle;
+	}
+
+	/**
+	 * Function to return the address of a bundled file.
+	 * @param name The file name in the asset directory, such as main.js.
+	 * @return The address with the hashed name, the plain name if not bundled.
+	 */
+	public String getURL(String name) {
+		Asset asset = this.assetsByName.get(name);
+		return URL_PREFIX + ((asset == null) ? name : asset.hashedName);
+	}
+
+	/**
+	 * Function to return the address of a file that is bundled when added to
+	 * the asset directory, such as a library otherwise loaded from a CDN.
+	 * @param name The file name in the asset directory.
+	 * @param fallbackURL The address used when the file is not bundled.
+	 * @return The address with the hashed name, or the fallback address.
+	 */
+	public String getURL(String name, String fallbackURL) {
+		return this.assetsByName.containsKey(name) ? getURL(name) : fallbackURL;
+	}
+
+	/**
+	 * Function to find a bundled file by its hashed name.
+	 * @param hashedName The name containing the content hash.
+	 * @return The asset, null if there is none.
+	 */
+	public Asset findHashed(String hashedName) {
+		return this.assetsByHashedName.get(hashedName);
+	}
+
+	/**
+	 * Function to find a bundled file by its plain name, for pages that
+	 * still link to it, it must not be cached without checking.
+	 * @param name The file name in the asset directory.
+	 * @return The asset, null if there is none.
+	 */
+	public Asset find(String name) {
+		return this.assetsByName.get(name);
+	}
+
+	/**
+	 * Function to return the number of bundled files.
+	 * @return The number of assets.
+	 */
+	public int size() {
+		return this.assetsByName.size();
+	}
+
+	/**
+	 * Function to add a file to the bundle, hashing and compressing it.
+	 * @param name The file name in the asset directory.
+	 * @param content The content of the file.
+	 * @throws IOException An IO exception caused by compressing.
+	 */
+	private void add(String name, byte[] content) throws IOException {
+		String extension = getExtension(name);
+		String hash = hash(content);
+		int dot = name.lastIndexOf('.');
+		String hashedName = name.substring(0, dot) + "." + hash + name.substring(dot);
+
+		byte[] gzipContent = null;
+		if (!COMPRESSED_EXTENSIONS.contains(extension)) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+				gzip.write(content);
+			}
+			if (compressed.size() < content.length * (1 - MIN_COMPRESSION_SAVING)) {
+				gzipContent = compressed.toByteArray();
+			}
+		}
+
+		Asset asset = new Asset(hashedName, hash, CONTENT_TYPES.get(extension), content, gzipContent);
+		this.assetsByName.put(name, asset);
+		this.assetsByHashedName.put(hashedName, asset);
+	}
+
+	/**
+	 * Function to rewrite the links of a stylesheet to bundled files to
+	 * their hashed names, which sit beside the stylesheet.
+	 * @param stylesheet The text of the stylesheet.
+	 * @return The stylesheet with rewritten links.
+	 */
+	private String rewriteLinks(String stylesheet) {
+		Matcher matcher = STYLESHEET_URL.matcher(stylesheet);
+		StringBuffer rewritten = new StringBuffer(stylesheet.length());
+		while (matcher.find()) {
+			Asset asset = this.assetsByName.get(matcher.group(2));
+			String link = (asset == null) ? matcher.group() :
+				"url(" + matcher.group(1) + asset.hashedName + matcher.group(1) + ")";
+			matcher.appendReplacement(rewritten, Matcher.quoteReplacement(link));
+		}
+		matcher.appendTail(rewritten);
+		return rewritten.toString();
+	}
+
+	/**
+	 * Function to hash the content of a file.
+	 * @param content The content of the file.
+	 * @return The start of the SHA-256 hash in hex.
+	 */
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder hex = new StringBuilder();
+			for (int index = 0; hex.length() < HASH_LENGTH; index++) {
+				hex.append(String.format("%02x", digest[index]));
+			}
+			return hex.substring(0, HASH_LENGTH);
+		} catch (NoSuchAlgorithmException nsaXcp) {
+			// Every Java platform has SHA-256
+			throw new IllegalStateException(nsaXcp);
+		}
+	}
+
+	/**
+	 * Function to return the extension of a file name.
+	 * @param name The file name.
+	 * @return The extension in lower case, empty if there is none.
+	 */
+	private static String getExtension(String name) {
+		int dot = name.lastIndexOf('.');
+		return (dot < 0) ? "" : name.substring(dot + 1).toLowerCase();
+	}
+
+	/**
+	 * Function to build the bundle of the asset directory, an empty bundle
+	 * if it cannot be read.
+	 * @return The asset bundle.
+	 */
+	private static AssetBundle load() {
+		try {
+			return build(ASSET_DIRECTORY);
+		} catch (IOException ioXcp) {
+			System.out.println("Asset bundle could not be built.");
+			ioXcp.printStackTrace();
+			return new AssetBundle();
+		}
+	}
+
+}	// End class AssetBundle
@@ -0,0 +1,253 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Class to load the CSV storage file in parallel. The file is split into
+ * byte ranges that are aligned to line boundaries, each range is parsed on
+ * its own thread and the results are merged back in file order.
+ * @author Elliott Waterman
+ */
+public class CSVFileLoader {
+	/**
+	 * Number of threads used for parsing, one per available core.
+	 */
+	private static final int NUMBER_OF_THREADS =
+		Runtime.getRuntime().availableProcessors();
+	/**
+	 * Smallest chunk worth handing to another thread (1 MB), smaller files
+	 * are parsed on the calling thread.
+	 */
+	private static final long MIN_CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * Largest chunk parsed by a single task (32 MB), keeps the decoded text
+	 * of each chunk to a reasonable size on very large files.
+	 */
+	private static final long MAX_CHUNK_SIZE = 32 * 1024 * 1024;
+	/**
+	 * Line feed byte, every line separator ends with it.
+	 */
+	private static final byte LINE_FEED = '\n';
+	/**
+	 * Character set the storage file is written in (FileWriter default).
+	 */
+	private static final Charset FILE_CHARSET = Charset.defaultCharset();
+	/**
+	 * Thread pool shared by all loads, threads are daemons so they do not
+	 * keep the server alive.
+	 */
+	private static final ExecutorService LOADER_POOL =
+		Executors.newFixedThreadPool(NUMBER_OF_THREADS, runnable -> {
+			Thread thread = new Thread(runnable, "csv-loader");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+	/**
+	 * Function to load every line of a CSV file into a list of messages.
+	 * @param file The CSV file to load.
+	 * @return A list of messages in the same order as the file.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public static ArrayList<ArduinoMessage> load(File file) throws IOException {
+		return load(file, 0, file.length());
+	}
+
+	/**
+	 * Function to load the lines of a CSV file between two byte offsets into
+	 * a list of messages. The start offset must be at the start of a line.
+	 * @param file The CSV file to load.
+	 * @param startOffset The byte offset to start reading from.
+	 * @param endOffset The byte offset to stop reading at.
+	 * @return A list of messages in the same order as the file.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public static ArrayList<ArduinoMessage> load(File file, long startOffset, long endOffset)
+			throws IOException {
+		ArrayList<ArduinoMessage> listOfMessages = new ArrayList<ArduinoMessage>();
+		if (endOffset <= startOffset) {
+			return listOfMessages;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Never read past the current end of the file
+			endOffset = Math.min(endOffset, channel.size());
+
+			// Split the file into line aligned byte ranges
+			List<long[]> chunks = splitIntoChunks(channel, startOffset, endOffset);
+
+			// Small files are not worth the thread hand over
+			if (chunks.size() == 1) {
+				parseChunk(channel, startOffset, endOffset, listOfMessages);
+				return listOfMessages;
+			}
+
+			// Parse each chunk on the thread pool
+			List<Future<ArrayList<ArduinoMessage>>> futures =
+				new ArrayList<Future<ArrayList<ArduinoMessage>>>(chunks.size());
+			for (long[] chunk : chunks) {
+				futures.add(LOADER_POOL.submit(new ChunkParser(channel, chunk[0], chunk[1])));
+			}
+
+			// Merge the results back together in file order
+			for (Future<ArrayList<ArduinoMessage>> future : futures) {
+				listOfMessages.addAll(future.get());
+			}
+		} catch (InterruptedException iXcp) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Loading of storage file was interrupted.", iXcp);
+		} catch (ExecutionException eXcp) {
+			if (eXcp.getCause() instanceof IOException) {
+				throw (IOException) eXcp.getCause();
+			}
+			throw new IOException("Could not parse storage file.", eXcp.getCause());
+		}
+
+		return listOfMessages;
+	}
+
+	/**
+	 * Function to split a byte range of the file into chunks that start and
+	 * end on line boundaries.
+	 * @param channel The open file channel.
+	 * @param startOffset The start of the range.
+	 * @param endOffset The end of the range.
+	 * @return A list of [start, end) offset pairs in file order.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	private static List<long[]> splitIntoChunks(FileChannel channel, long startOffset, long endOffset)
+			throws IOException {
+		List<long[]> chunks = new ArrayList<long[]>();
+		long length = endOffset - startOffset;
+
+		// Aim for one chunk per thread, within the chunk size limits
+		long chunkSize = Math.max(MIN_CHUNK_SIZE,
+			Math.min(MAX_CHUNK_SIZE, length / NUMBER_OF_THREADS + 1));
+
+		long chunkStart = startOffset;
+		while (chunkStart < endOffset) {
+			long chunkEnd = chunkStart + chunkSize;
+			if (chunkEnd >= endOffset) {
+				chunkEnd = endOffset;
+			} else {
+				// Move the end forward to just after the next line feed
+				chunkEnd = findNextLineStart(channel, chunkEnd, endOffset);
+			}
+			chunks.add(new long[] { chunkStart, chunkEnd });
+			chunkStart = chunkEnd;
+		}
+
+		return chunks;
+	}
+
+	/**
+	 * Function to find the offset of the first line starting at or after a
+	 * position.
+	 * @param channel The open file channel.
+	 * @param position The position to search from.
+	 * @param endOffset The offset the search should not pass.
+	 * @return The offset just after the next line feed, or the end offset.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	private static long findNextLineStart(FileChannel channel, long position, long endOffset)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+		while (position < endOffset) {
+			buffer.clear();
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead <= 0) {
+				break;
+			}
+			for (int index = 0; index < bytesRead; index++) {
+				if (buffer.get(index) == LINE_FEED) {
+					return Math.min(position + index + 1, endOffset);
+				}
+			}
+			position += bytesRead;
+		}
+		return endOffset;
+	}
+
+	/**
+	 * Function to parse the lines within a chunk of the file into messages.
+	 * @param channel The open file channel.
+	 * @param chunkStart The start offset of the chunk.
+	 * @param chunkEnd The end offset of the chunk.
+	 * @param listOfMessages The list to add the parsed messages to.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	private static void parseChunk(FileChannel channel, long chunkStart, long chunkEnd,
+			ArrayList<ArduinoMessage> listOfMessages) throws IOException {
+		// Positional reads do not move the shared channel position
+		ByteBuffer buffer = ByteBuffer.allocate((int) (chunkEnd - chunkStart));
+		long position = chunkStart;
+		while (buffer.hasRemaining()) {
+			int bytesRead = channel.read(buffer, position);
+			if (bytesRead < 0) {
+				break;
+			}
+			position += bytesRead;
+		}
+		buffer.flip();
+
+		String text = FILE_CHARSET.decode(buffer).toString();
+
+		// Split into lines the same way as BufferedReader.readLine()
+		int lineStart = 0;
+		int length = text.length();
+		while (lineStart < length) {
+			int lineEnd = text.indexOf('\n', lineStart);
+			int nextLineStart = (lineEnd == -1) ? length : lineEnd + 1;
+			if (lineEnd == -1) {
+				lineEnd = length;
+			}
+			// Remove carriage return of a Windows line separator
+			if ((lineEnd > lineStart) && (text.charAt(lineEnd - 1) == '\r')) {
+				lineEnd--;
+			}
+			listOfMessages.add(new ArduinoMessage(text.substring(lineStart, lineEnd)));
+			lineStart = nextLineStart;
+		}
+	}
+
+	/**
+	 * Task to parse a single chunk of the storage file on the thread pool.
+	 */
+	private static class ChunkParser implements Callable<ArrayList<ArduinoMessage>> {
+		private final FileChannel channel;
+		private final long chunkStart;
+		private final long chunkEnd;
+
+		/**
+		 * Constructor to set the range of the file to parse.
+		 * @param channel The open file channel.
+		 * @param chunkStart The start offset of the chunk.
+		 * @param chunkEnd The end offset of the chunk.
+		 */
+		ChunkParser(FileChannel channel, long chunkStart, long chunkEnd) {
+			this.channel = channel;
+			this.chunkStart = chunkStart;
+			this.chunkEnd = chunkEnd;
+		}
+
+		@Override
+		public ArrayList<ArduinoMessage> call() throws IOException {
+			ArrayList<ArduinoMessage> listOfMessages = new ArrayList<ArduinoMessage>();
+			parseChunk(channel, chunkStart, chunkEnd, listOfMessages);
+			return listOfMessages;
+		}
+	}
+
+}	// End class CSVFileLoader
@@ -0,0 +1,173 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+/**
+ * Class to read messages from the CSV storage file one line at a time. Only
+ * the storage up to the end offset given when the cursor is opened is read,
+ * so appends made while reading are not seen half written. When filtering by
+ * station, the sorted part of the storage left by compaction is only read
+ * until the readings pass the station, then the unsorted tail is read. The
+ * filter is checked on the fields of each line before it is parsed, so only
+ * matching lines are made into messages.
+ * @author Elliott Waterman
+ */
+public class CSVReadingCursor implements ReadingCursor {
+	private final FileInputStream input;
+	private final long endOffset;
+	private final long sortedLength;
+	private final long tailOffset;
+	private final ReadingFilter filter;
+	private final ReadingLine readingLine;
+	private BufferedReader bufferedReader;
+	private boolean inSortedPart;
+
+	/**
+	 * Constructor to open a cursor over the storage file.
+	 * @param storageFile The CSV storage file.
+	 * @param startOffset The byte offset to start reading from, the start of a line.
+	 * @param endOffset The byte offset to stop reading at.
+	 * @param filter The filter messages must match, null for all messages.
+	 * @throws IOException An IO exception caused by opening the file.
+	 */
+	public CSVReadingCursor(File storageFile, long startOffset, long endOffset,
+			ReadingFilter filter) throws IOException {
+		// Keep one open file so a compaction swapping the file is not seen
+		this.input = new FileInputStream(storageFile);
+		this.endOffset = endOffset;
+		this.sortedLength = Math.min(StorageCompactor.readSortedLength(storageFile), endOffset);
+		this.filter = filter;
+		this.readingLine = new ReadingLine();
+
+		// Early stopping only helps when looking for a single station
+		this.inSortedPart = (startOffset < this.sortedLength) && (filter != null) && (filter.getStation() != null);
+		this.tailOffset = Math.max(startOffset, this.sortedLength);
+		this.bufferedReader = openReader(startOffset, this.inSortedPart ? this.sortedLength : endOffset);
+	}
+
+	@Override
+	public ArduinoMessage next() throws IOException {
+		while (true) {
+			String inputLine = this.bufferedReader.readLine();
+			if (inputLine == null) {
+				if (this.inSortedPart) {
+					switchToTail();
+					continue;
+				}
+				return null;
+			}
+
+			if (this.filter == null) {
+				return new ArduinoMessage(inputLine);
+			}
+
+			this.readingLine.set(inputLine);
+			if (this.inSortedPart && StorageCompactor.isPastFilter(this.readingLine, this.filter)) {
+				// Nothing later in the sorted part can match
+				switchToTail();
+				continue;
+			}
+			if (!this.filter.mayMatch(this.readingLine)) {
+				continue;
+			}
+			ArduinoMessage message = new ArduinoMessage(inputLine);
+			if (this.filter.matches(message)) {
+				return message;
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.input.close();
+	}
+
+	/**
+	 * Function to stop reading the sorted part and read the unsorted tail.
+	 * @throws IOException An IO exception caused by opening the file.
+	 */
+	private void switchToTail() throws IOException {
+		this.bufferedReader = openReader(this.tailOffset, this.endOffset);
+		this.inSortedPart = false;
+	}
+
+	/**
+	 * Function to open a reader over a byte range of the storage file.
+	 * @param startOffset The byte offset to start reading from.
+	 * @param stopOffset The byte offset to stop reading at.
+	 * @return A buffered reader of the range.
+	 * @throws IOException An IO exception caused by opening the file.
+	 */
+	private BufferedReader openReader(long startOffset, long stopOffset) throws IOException {
+		this.input.getChannel().position(startOffset);
+		return new BufferedReader(new InputStreamReader(
+			new LimitedInputStream(this.input, Math.max(0, stopOffset - startOffset)),
+			Charset.defaultCharset()), 64 * 1024);
+	}
+
+	/**
+	 * Class to stop reading an input stream after a number of bytes.
+	 */
+	private static class LimitedInputStream extends FilterInputStream {
+		private long remaining;
+
+		/**
+		 * Constructor to set the number of bytes that can be read.
+		 * @param input The input stream to read from.
+		 * @param limit The number of bytes that can be read.
+		 */
+		LimitedInputStream(InputStream input, long limit) {
+			super(input);
+			this.remaining = limit;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			int value = super.read();
+			if (value >= 0) {
+				this.remaining--;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (this.remaining <= 0) {
+				return -1;
+			}
+			int bytesRead = super.read(buffer, offset, (int) Math.min(length, this.remaining));
+			if (bytesRead > 0) {
+				this.remaining -= bytesRead;
+			}
+			return bytesRead;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long skipped = super.skip(Math.min(count, this.remaining));
+			this.remaining -= skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(super.available(), this.remaining);
+		}
+
+		@Override
+		public void close() {
+			// The file is shared by both parts, it is closed by the cursor
+		}
+	}
+
+}	// End class CSVReadingCursor
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Class to store messages in a CSV file, one message per line. Offsets are
+ * byte offsets into the file.
+ * @author Elliott Waterman
+ */
+public class CSVStorage implements MessageStorage {
+	/**
+	 * Extension of the file compacted storage is written to before it
+	 * replaces the storage file.
+	 */
+	private static final String COMPACTION_EXTENSION = ".compact";
+	/**
+	 * Extension of the file holding the generation of the storage file.
+	 */
+	private static final String GENERATION_EXTENSION = ".generation";
+
+	private final File storageFile;
+	private long generation;
+
+	/**
+	 * Constructor to set the storage file.
+	 * @param storageFile The CSV storage file.
+	 */
+	public CSVStorage(File storageFile) {
+		this.storageFile = storageFile;
+	}
+
+	/**
+	 * Function to check the storage file and create a new one if it does not
+	 * exist.
+	 * @return True if the file can be read and written to.
+	 * @throws IOException An exception caused by creating a new file.
+	 */
+	@Override
+	public boolean check() throws IOException {
+		// Check storage file exists
+		if (!this.storageFile.exists()) {
+			// Create a new file
+			this.storageFile.createNewFile();
+		}
+		// Check storage file is a file, can be read and can be written to
+		return this.storageFile.isFile() && this.storageFile.canRead() && this.storageFile.canWrite();
+	}
+
+	@Override
+	public synchronized long append(List<ArduinoMessage> messages) throws IOException {
+		// Create file writer with path to storage file (true appends to end)
+		try (FileWriter writer = new FileWriter(this.storageFile, true)) {
+			for (ArduinoMessage message : messages) {
+				writer.append(message.parseToCSVString());
+				writer.append(System.lineSeparator());
+			}
+		}
+		return this.storageFile.length();
+	}
+
+	/**
+	 * Function to read messages from the storage file between two offsets.
+	 * The range is split into line aligned chunks which are parsed in parallel.
+	 */
+	@Override
+	public ArrayList<ArduinoMessage> read(long startOffset, long endOffset) throws IOException {
+		return CSVFileLoader.load(this.storageFile, startOffset, endOffset);
+	}
+
+	@Override
+	public ReadingCursor openCursor(long startOffset, long endOffset, ReadingFilter filter) throws IOException {
+		return new CSVReadingCursor(this.storageFile, startOffset, endOffset, filter);
+	}
+
+	@Override
+	public long getEndOffset() {
+		return this.storageFile.length();
+	}
+
+	/**
+	 * Function to return the generation of the storage file, kept in a file
+	 * beside it. A storage file without one is given the current time, so a
+	 * recreated storage file is never taken for the one it replaced.
+	 */
+	@Override
+	public synchronized long getGeneration() {
+		if (this.generation == 0) {
+			File generationFile = new File(this.storageFile.getPath() + GENERATION_EXTENSION);
+			try {
+				this.generation = Long.parseLong(new String(
+					Files.readAllBytes(generationFile.toPath()), StandardCharsets.UTF_8).trim());
+			} catch (IOException | NumberFormatException xcp) {
+				this.generation = System.currentTimeMillis();
+				try {
+					writeGeneration(this.generation);
+				} catch (IOException ioXcp) {
+					System.out.println("Storage generation could not be written.");
+					ioXcp.printStackTrace();
+				}
+			}
+		}
+		return this.generation;
+	}
+
+	/**
+	 * Function to replace the storage file with the messages, sorted by
+	 * compaction. The new file is written beside the storage file and
+	 * atomically moved over it, with the lines appended since the snapshot
+	 * copied to its end. The length of the new messages is recorded as the
+	 * sorted part of the file.
+	 */
+	@Override
+	public long replace(List<ArduinoMessage> messages, long snapshotOffset) throws IOException {
+		// Write the new file without holding up appends
+		File compactionFile = new File(this.storageFile.getPath() + COMPACTION_EXTENSION);
+		StorageCompactor.writeStorage(compactionFile, messages);
+		long sortedLength = compactionFile.length();
+
+		synchronized (this) {
+			long storageLength = this.storageFile.length();
+			try (FileChannel source = FileChannel.open(this.storageFile.toPath(), StandardOpenOption.READ);
+				FileChannel target = FileChannel.open(compactionFile.toPath(), StandardOpenOption.APPEND)) {
+				long position = snapshotOffset;
+				while (position < storageLength) {
+					position += source.transferTo(position, storageLength - position, target);
+				}
+				target.force(true);
+			}
+
+			// A new generation first, so a crash never leaves old offsets valid
+			writeGeneration(getGeneration() + 1);
+			this.generation++;
+			StorageCompactor.deleteSortedLength(this.storageFile);
+			Files.move(compactionFile.toPath(), this.storageFile.toPath(),
+				StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			StorageCompactor.writeSortedLength(this.storageFile, sortedLength);
+
+			return this.storageFile.length();
+		}
+	}
+
+	/**
+	 * Function to write the generation of the storage file.
+	 * @param newGeneration The generation.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	private void writeGeneration(long newGeneration) throws IOException {
+		try (FileWriter writer = new FileWriter(this.storageFile.getPath() + GENERATION_EXTENSION)) {
+			writer.write(Long.toString(newGeneration));
+		}
+	}
+
+	@Override
+	public File getFile() {
+		return this.storageFile;
+	}
+
+	@Override
+	public String toString() {
+		return "CSV storage " + this.storageFile.getAbsolutePath();
+	}
+
+}	// End class CSVStorage
@@ -0,0 +1,457 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Class to serve downsampled time series of temperature, humidity and weight
+ * per station for charts. Readings are kept per station in time order and
+ * summarised into a pyramid of hourly, daily and weekly min/max buckets, so a
+ * chart over a whole season never sends more than the requested points.
+ * @author Elliott Waterman
+ */
+public class ChartIndex implements MessageListener {
+	/**
+	 * Names of the series, in the order the values are stored.
+	 */
+	private static final String[] SERIES_NAMES = { "temperature", "humidity", "weight" };
+	/**
+	 * Bucket widths of the pyramid levels in seconds (hour, day, week).
+	 */
+	private static final long[] LEVEL_SECONDS = { 60 * 60, 24 * 60 * 60, 7 * 24 * 60 * 60 };
+	/**
+	 * Names of the pyramid levels, matching the bucket widths.
+	 */
+	private static final String[] LEVEL_NAMES = { "hour", "day", "week" };
+	/**
+	 * Largest number of raw readings downsampled with LTTB, wider ranges are
+	 * served from the pyramid.
+	 */
+	private static final int MAX_LTTB_READINGS = 100000;
+	/**
+	 * Initial capacity of the per station reading arrays.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final Map<String, StationSeries> stations;
+
+	/**
+	 * Constructor to create an empty chart index.
+	 */
+	public ChartIndex() {
+		this.stations = new HashMap<String, StationSeries>();
+	}
+
+	@Override
+	public synchronized void messagesReset(List<ArduinoMessage> messages) {
+		this.stations.clear();
+
+		// Add in time order so readings never need shifting
+		List<ArduinoMessage> validMessages = new ArrayList<ArduinoMessage>(messages.size());
+		for (ArduinoMessage message : messages) {
+			if (message.checkDataExists()) {
+				validMessages.add(message);
+			}
+		}
+		validMessages.sort(Comparator.comparingLong(ArduinoMessage::getEpochMillis));
+		messagesAppended(validMessages);
+	}
+
+	@Override
+	public synchronized void messagesAppended(List<ArduinoMessage> messages) {
+		for (ArduinoMessage message : messages) {
+			if (!message.checkDataExists()) {
+				continue;
+			}
+			StationSeries series = this.stations.get(message.getPhoneNumber());
+			if (series == null) {
+				series = new StationSeries();
+				this.stations.put(message.getPhoneNumber(), series);
+			}
+			series.add(message.getEpochMillis(), new float[] {
+				message.getTemperature(), message.getHumidity(), message.getWeight() });
+		}
+	}
+
+	/**
+	 * Function to create a JSON document of the chart points of a station
+	 * between two times, with at most a maximum number of points per series.
+	 * @param station The phone number of the station.
+	 * @param fromEpoch The start of the time range in epoch seconds.
+	 * @param toEpoch The end of the time range in epoch seconds.
+	 * @param maxPoints The maximum number of points per series.
+	 * @return A JSON string containing each series as [epoch, value] pairs.
+	 */
+	public synchronized String toJSON(String station, long fromEpoch, long toEpoch, int maxPoints) {
+		StringBuilder JSON = new StringBuilder();
+		JSON.append("{\"station\":\"").append(JSONUtils.escape(station)).append('"');
+		JSON.append(",\"from\":").append(fromEpoch);
+		JSON.append(",\"to\":").append(toEpoch);
+
+		StationSeries series = this.stations.get(station);
+		if (series == null) {
+			JSON.append(",\"level\":\"raw\",\"series\":{");
+			for (int index = 0; index < SERIES_NAMES.length; index++) {
+				JSON.append(index == 0 ? "" : ",").append('"').append(SERIES_NAMES[index]).append("\":[]");
+			}
+			return JSON.append("}}").toString();
+		}
+
+		int start = series.lowerBound(fromEpoch);
+		int end = series.lowerBound(toEpoch + 1);
+		int numberOfReadings = end - start;
+
+		// Choose the cheapest source that stays within the point limit
+		int level = -1;
+		String levelName = "raw";
+		if (numberOfReadings > maxPoints) {
+			levelName = "lttb";
+			if (numberOfReadings > MAX_LTTB_READINGS) {
+				level = series.chooseLevel(fromEpoch, toEpoch, maxPoints);
+				levelName = LEVEL_NAMES[level];
+			}
+		}
+		JSON.append(",\"level\":\"").append(levelName).append("\",\"series\":{");
+
+		for (int seriesIndex = 0; seriesIndex < SERIES_NAMES.length; seriesIndex++) {
+			if (seriesIndex > 0) {
+				JSON.append(',');
+			}
+			JSON.append('"').append(SERIES_NAMES[seriesIndex]).append("\":[");
+			if (level >= 0) {
+				series.appendBuckets(JSON, level, seriesIndex, fromEpoch, toEpoch, maxPoints);
+			} else if (numberOfReadings > maxPoints) {
+				series.appendLTTB(JSON, seriesIndex, start, end, maxPoints);
+			} else {
+				series.appendRaw(JSON, seriesIndex, start, end);
+			}
+			JSON.append(']');
+		}
+
+		return JSON.append("}}").toString();
+	}
+
+	/**
+	 * Class to hold the readings of a single station in time order and the
+	 * pyramid of buckets built from them.
+	 */
+	private static class StationSeries {
+		private long[] epochs;
+		private float[][] values;
+		private int size;
+		private final List<NavigableMap<Long, Bucket>> levels;
+
+		/**
+		 * Constructor to create an empty series.
+		 */
+		StationSeries() {
+			this.epochs = new long[INITIAL_CAPACITY];
+			this.values = new float[SERIES_NAMES.length][INITIAL_CAPACITY];
+			this.size = 0;
+			this.levels = new ArrayList<NavigableMap<Long, Bucket>>();
+			for (int level = 0; level < LEVEL_SECONDS.length; level++) {
+				this.levels.add(new TreeMap<Long, Bucket>());
+			}
+		}
+
+		/**
+		 * Function to add a reading, keeping the readings in time order.
+		 * @param epoch The time of the reading in epoch seconds.
+		 * @param readingValues The value of each series.
+		 */
+		void add(long epoch, float[] readingValues) {
+			if (this.size == this.epochs.length) {
+				int capacity = this.size * 2;
+				this.epochs = Arrays.copyOf(this.epochs, capacity);
+				for (int index = 0; index < this.values.length; index++) {
+					this.values[index] = Arrays.copyOf(this.values[index], capacity);
+				}
+			}
+
+			// Readings usually arrive in order, otherwise shift later ones up
+			int position = this.size;
+			if ((this.size > 0) && (this.epochs[this.size - 1] > epoch)) {
+				position = lowerBound(epoch + 1);
+				System.arraycopy(this.epochs, position, this.epochs, position + 1, this.size - position);
+				for (int index = 0; index < this.values.length; index++) {
+					System.arraycopy(this.values[index], position,
+						this.values[index], position + 1, this.size - position);
+				}
+			}
+			this.epochs[position] = epoch;
+			for (int index = 0; index < this.values.length; index++) {
+				this.values[index][position] = readingValues[index];
+			}
+			this.size++;
+
+			// Update each level of the pyramid
+			for (int level = 0; level < LEVEL_SECONDS.length; level++) {
+				long bucketStart = epoch - Math.floorMod(epoch, LEVEL_SECONDS[level]);
+				Bucket bucket = this.levels.get(level).get(bucketStart);
+				if (bucket == null) {
+					bucket = new Bucket();
+					this.levels.get(level).put(bucketStart, bucket);
+				}
+				bucket.add(epoch, readingValues);
+			}
+		}
+
+		/**
+		 * Function to find the index of the first reading at or after a time.
+		 * @param epoch The time in epoch seconds.
+		 * @return The index of the first reading not before the time.
+		 */
+		int lowerBound(long epoch) {
+			int low = 0;
+			int high = this.size;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (this.epochs[middle] < epoch) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Function to choose the finest pyramid level where a min and max
+		 * point per bucket fits within the point limit, or the coarsest level
+		 * when none does, its buckets are then merged to fit.
+		 * @param fromEpoch The start of the time range in epoch seconds.
+		 * @param toEpoch The end of the time range in epoch seconds.
+		 * @param maxPoints The maximum number of points per series.
+		 * @return The index of the chosen level.
+		 */
+		int chooseLevel(long fromEpoch, long toEpoch, int maxPoints) {
+			// Only the part of the range holding readings matters
+			fromEpoch = Math.max(fromEpoch, this.epochs[0]);
+			toEpoch = Math.min(toEpoch, this.epochs[this.size - 1]);
+			for (int level = 0; level < LEVEL_SECONDS.length; level++) {
+				long rangeBuckets = (toEpoch - fromEpoch) / LEVEL_SECONDS[level] + 1;
+				if (rangeBuckets * 2 <= maxPoints) {
+					return level;
+				}
+			}
+			return LEVEL_SECONDS.length - 1;
+		}
+
+		/**
+		 * Function to append the min and max point of each bucket of a level.
+		 * When the level has more buckets than fit within the point limit,
+		 * adjacent buckets are merged so the points still cover the whole
+		 * range.
+		 * @param JSON The JSON string to append to.
+		 * @param level The pyramid level.
+		 * @param seriesIndex The series to append.
+		 * @param fromEpoch The start of the time range in epoch seconds.
+		 * @param toEpoch The end of the time range in epoch seconds.
+		 * @param maxPoints The maximum number of points per series.
+		 */
+		void appendBuckets(StringBuilder JSON, int level, int seriesIndex,
+				long fromEpoch, long toEpoch, int maxPoints) {
+			long firstBucket = fromEpoch - Math.floorMod(fromEpoch, LEVEL_SECONDS[level]);
+			NavigableMap<Long, Bucket> rangeBuckets =
+				this.levels.get(level).subMap(firstBucket, true, toEpoch, true);
+
+			// Number of adjacent buckets merged into each pair of points
+			int pointsPerGroup = Math.min(2, maxPoints);
+			int groups = maxPoints / pointsPerGroup;
+			int groupSize = Math.max(1, (rangeBuckets.size() + groups - 1) / groups);
+
+			boolean first = true;
+			Bucket group = null;
+			int groupBuckets = 0;
+			int remainingBuckets = rangeBuckets.size();
+			for (Bucket bucket : rangeBuckets.values()) {
+				if (group == null) {
+					group = new Bucket();
+				}
+				group.merge(bucket, seriesIndex);
+				groupBuckets++;
+				remainingBuckets--;
+				if ((groupBuckets < groupSize) && (remainingBuckets > 0)) {
+					continue;
+				}
+
+				// Keep the min and max in the order they happened
+				boolean minFirst = group.minEpochs[seriesIndex] <= group.maxEpochs[seriesIndex];
+				long firstEpoch = minFirst ? group.minEpochs[seriesIndex] : group.maxEpochs[seriesIndex];
+				float firstValue = minFirst ? group.minValues[seriesIndex] : group.maxValues[seriesIndex];
+				long secondEpoch = minFirst ? group.maxEpochs[seriesIndex] : group.minEpochs[seriesIndex];
+				float secondValue = minFirst ? group.maxValues[seriesIndex] : group.minValues[seriesIndex];
+
+				first = appendPoint(JSON, first, firstEpoch, firstValue);
+				if ((pointsPerGroup == 2) && (secondEpoch != firstEpoch)) {
+					first = appendPoint(JSON, first, secondEpoch, secondValue);
+				}
+				group = null;
+				groupBuckets = 0;
+			}
+		}
+
+		/**
+		 * Function to append every reading within a range.
+		 * @param JSON The JSON string to append to.
+		 * @param seriesIndex The series to append.
+		 * @param start The index of the first reading.
+		 * @param end The index after the last reading.
+		 */
+		void appendRaw(StringBuilder JSON, int seriesIndex, int start, int end) {
+			boolean first = true;
+			for (int index = start; index < end; index++) {
+				first = appendPoint(JSON, first, this.epochs[index], this.values[seriesIndex][index]);
+			}
+		}
+
+		/**
+		 * Function to append the readings within a range downsampled with the
+		 * Largest Triangle Three Buckets algorithm, which keeps the visual
+		 * shape of the series.
+		 * @param JSON The JSON string to append to.
+		 * @param seriesIndex The series to append.
+		 * @param start The index of the first reading.
+		 * @param end The index after the last reading.
+		 * @param maxPoints The number of points to downsample to.
+		 */
+		void appendLTTB(StringBuilder JSON, int seriesIndex, int start, int end, int maxPoints) {
+			float[] seriesValues = this.values[seriesIndex];
+			int length = end - start;
+			if (maxPoints < 3) {
+				appendPoint(JSON, true, this.epochs[start], seriesValues[start]);
+				if (maxPoints == 2) {
+					appendPoint(JSON, false, this.epochs[end - 1], seriesValues[end - 1]);
+				}
+				return;
+			}
+
+			// Always keep the first point
+			boolean first = appendPoint(JSON, true, this.epochs[start], seriesValues[start]);
+			double bucketSize = (double) (length - 2) / (maxPoints - 2);
+			int selected = start;
+
+			for (int bucket = 0; bucket < maxPoints - 2; bucket++) {
+				int bucketStart = start + 1 + (int) (bucket * bucketSize);
+				int bucketEnd = start + 1 + (int) ((bucket + 1) * bucketSize);
+
+				// Average point of the next bucket
+				int nextStart = bucketEnd;
+				int nextEnd = Math.min(start + 1 + (int) ((bucket + 2) * bucketSize), end);
+				if (nextStart >= nextEnd) {
+					nextStart = end - 1;
+					nextEnd = end;
+				}
+				double averageEpoch = 0;
+				double averageValue = 0;
+				for (int index = nextStart; index < nextEnd; index++) {
+					averageEpoch += this.epochs[index];
+					averageValue += seriesValues[index];
+				}
+				averageEpoch /= (nextEnd - nextStart);
+				averageValue /= (nextEnd - nextStart);
+
+				// Point in this bucket making the largest triangle
+				double selectedEpoch = this.epochs[selected];
+				double selectedValue = seriesValues[selected];
+				double largestArea = -1;
+				int largestIndex = bucketStart;
+				for (int index = bucketStart; index < bucketEnd; index++) {
+					double area = Math.abs(
+						(selectedEpoch - averageEpoch) * (seriesValues[index] - selectedValue) -
+						(selectedEpoch - this.epochs[index]) * (averageValue - selectedValue));
+					if (area > largestArea) {
+						largestArea = area;
+						largestIndex = index;
+					}
+				}
+
+				first = appendPoint(JSON, first, this.epochs[largestIndex], seriesValues[largestIndex]);
+				selected = largestIndex;
+			}
+
+			// Always keep the last point
+			appendPoint(JSON, first, this.epochs[end - 1], seriesValues[end - 1]);
+		}
+
+		/**
+		 * Function to append a single [epoch, value] point.
+		 * @param JSON The JSON string to append to.
+		 * @param first True if this is the first point of the series.
+		 * @param epoch The time of the point in epoch seconds.
+		 * @param value The value of the point.
+		 * @return False, as the next point is never the first.
+		 */
+		private static boolean appendPoint(StringBuilder JSON, boolean first, long epoch, float value) {
+			if (!first) {
+				JSON.append(',');
+			}
+			JSON.append('[').append(epoch).append(',').append(value).append(']');
+			return false;
+		}
+	}
+
+	/**
+	 * Class to hold the min and max of each series within a bucket of time.
+	 */
+	private static class Bucket {
+		private final float[] minValues;
+		private final float[] maxValues;
+		private final long[] minEpochs;
+		private final long[] maxEpochs;
+
+		/**
+		 * Constructor to create an empty bucket.
+		 */
+		Bucket() {
+			this.minValues = new float[SERIES_NAMES.length];
+			this.maxValues = new float[SERIES_NAMES.length];
+			this.minEpochs = new long[SERIES_NAMES.length];
+			this.maxEpochs = new long[SERIES_NAMES.length];
+			Arrays.fill(this.minValues, Float.POSITIVE_INFINITY);
+			Arrays.fill(this.maxValues, Float.NEGATIVE_INFINITY);
+		}
+
+		/**
+		 * Function to add a reading to the bucket.
+		 * @param epoch The time of the reading in epoch seconds.
+		 * @param readingValues The value of each series.
+		 */
+		void add(long epoch, float[] readingValues) {
+			for (int index = 0; index < readingValues.length; index++) {
+				if (readingValues[index] < this.minValues[index]) {
+					this.minValues[index] = readingValues[index];
+					this.minEpochs[index] = epoch;
+				}
+				if (readingValues[index] > this.maxValues[index]) {
+					this.maxValues[index] = readingValues[index];
+					this.maxEpochs[index] = epoch;
+				}
+			}
+		}
+
+		/**
+		 * Function to merge the min and max of a series of another bucket
+		 * into this bucket.
+		 * @param other The bucket to merge.
+		 * @param index The series to merge.
+		 */
+		void merge(Bucket other, int index) {
+			if (other.minValues[index] < this.minValues[index]) {
+				this.minValues[index] = other.minValues[index];
+				this.minEpochs[index] = other.minEpochs[index];
+			}
+			if (other.maxValues[index] > this.maxValues[index]) {
+				this.maxValues[index] = other.maxValues[index];
+				this.maxEpochs[index] = other.maxEpochs[index];
+			}
+		}
+	}
+
+}	// End class ChartIndex
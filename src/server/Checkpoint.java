@@ -0,0 +1,324 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+/**
+ * Class to define a compact binary checkpoint of the in-memory messages and
+ * the storage file offset they cover. On startup the checkpoint is memory
+ * mapped and only the storage written after the offset is parsed. The
+ * storage generation is kept in the header, so a checkpoint of storage that
+ * has since been replaced is never used.
+ * @author Elliott Waterman
+ */
+public class Checkpoint {
+	/**
+	 * Magic number at the start of a checkpoint file ("SBCP").
+	 */
+	private static final int MAGIC_NUMBER = 0x53424350;
+	/**
+	 * Version of the checkpoint file format.
+	 */
+	private static final int FORMAT_VERSION = 2;
+	/**
+	 * Number of bytes in the header before the first message.
+	 */
+	private static final int HEADER_LENGTH = 36;
+	/**
+	 * Number of storage bytes before the offset used to detect a storage
+	 * file that was replaced or rewritten since the checkpoint.
+	 */
+	private static final int FINGERPRINT_LENGTH = 256;
+	/**
+	 * Character set strings are encoded with inside the checkpoint.
+	 */
+	private static final Charset STRING_CHARSET = StandardCharsets.UTF_8;
+	/**
+	 * Flags marking which message fields are present (not null).
+	 */
+	private static final int HAS_MESSAGE_SID = 1;
+	private static final int HAS_PHONE_NUMBER = 1 << 1;
+	private static final int HAS_EPOCH = 1 << 2;
+	private static final int HAS_TEMPERATURE = 1 << 3;
+	private static final int HAS_HUMIDITY = 1 << 4;
+	private static final int HAS_WEIGHT = 1 << 5;
+	private static final int HAS_SNAKE_RFID = 1 << 6;
+	private static final int HAS_RAW_TEXT = 1 << 7;
+
+	private final ArrayList<ArduinoMessage> listOfMessages;
+	private final long storageOffset;
+
+	/**
+	 * Constructor to create a checkpoint of messages covering the storage.
+	 * @param listOfMessages The messages parsed from the storage file.
+	 * @param storageOffset The byte offset of the storage file covered.
+	 */
+	public Checkpoint(ArrayList<ArduinoMessage> listOfMessages, long storageOffset) {
+		this.listOfMessages = listOfMessages;
+		this.storageOffset = storageOffset;
+	}
+
+	/**
+	 * Getter function to return the messages in the checkpoint.
+	 * @return The list of checkpointed messages.
+	 */
+	public ArrayList<ArduinoMessage> getMessages() {
+		return listOfMessages;
+	}
+
+	/**
+	 * Getter function to return the byte offset of the storage file covered.
+	 * @return The storage offset in bytes.
+	 */
+	public long getStorageOffset() {
+		return storageOffset;
+	}
+
+	/**
+	 * Function to write the checkpoint to a file. The file is written to a
+	 * temporary file first and moved into place so a crash never leaves a
+	 * half written checkpoint.
+	 * @param checkpointFile The checkpoint file to write.
+	 * @param storageFile The storage file the checkpoint covers.
+	 * @param generation The generation of storage the messages were read from.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	public void write(File checkpointFile, File storageFile, long generation) throws IOException {
+		File temporaryFile = new File(checkpointFile.getPath() + ".tmp");
+
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temporaryFile), 64 * 1024))) {
+			output.writeInt(MAGIC_NUMBER);
+			output.writeInt(FORMAT_VERSION);
+			output.writeLong(generation);
+			output.writeLong(this.storageOffset);
+			output.writeLong(fingerprint(storageFile, this.storageOffset));
+			output.writeInt(this.listOfMessages.size());
+
+			for (ArduinoMessage message : this.listOfMessages) {
+				writeMessage(output, message);
+			}
+		}
+
+		Files.move(temporaryFile.toPath(), checkpointFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Function to read a checkpoint from a file. Returns null when there is no
+	 * checkpoint, or it does not match the current storage file.
+	 * @param checkpointFile The checkpoint file to read.
+	 * @param storageFile The storage file the checkpoint should cover.
+	 * @param generation The current generation of the storage file.
+	 * @return The checkpoint, or null if it cannot be used.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public static Checkpoint read(File checkpointFile, File storageFile, long generation) throws IOException {
+		if (!checkpointFile.isFile()) {
+			return null;
+		}
+
+		try (FileChannel channel = FileChannel.open(checkpointFile.toPath(), StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if ((buffer.remaining() < HEADER_LENGTH) ||
+				(buffer.getInt() != MAGIC_NUMBER) ||
+				(buffer.getInt() != FORMAT_VERSION)) {
+				System.out.println("Checkpoint file is not a recognised format.");
+				return null;
+			}
+
+			// Offsets of a replaced storage file mean nothing
+			if (buffer.getLong() != generation) {
+				System.out.println("Checkpoint is of another storage generation.");
+				return null;
+			}
+
+			long storageOffset = buffer.getLong();
+			long storageFingerprint = buffer.getLong();
+
+			// Storage file must still contain the checkpointed bytes unchanged
+			if ((storageOffset > storageFile.length()) ||
+				(storageFingerprint != fingerprint(storageFile, storageOffset))) {
+				System.out.println("Checkpoint does not match storage file.");
+				return null;
+			}
+
+			int numberOfMessages = buffer.getInt();
+			ArrayList<ArduinoMessage> listOfMessages = new ArrayList<ArduinoMessage>(numberOfMessages);
+			for (int index = 0; index < numberOfMessages; index++) {
+				listOfMessages.add(readMessage(buffer));
+			}
+
+			return new Checkpoint(listOfMessages, storageOffset);
+		} catch (RuntimeException rXcp) {
+			// Truncated or corrupt checkpoint, fall back to a full load
+			System.out.println("Checkpoint file could not be read.");
+			rXcp.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Function to write a single message in binary form.
+	 * @param output The output stream to write to.
+	 * @param message The message to write.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	private static void writeMessage(DataOutputStream output, ArduinoMessage message)
+			throws IOException {
+		int flags = 0;
+		flags |= (message.getMessageSid() != null) ? HAS_MESSAGE_SID : 0;
+		flags |= (message.getPhoneNumber() != null) ? HAS_PHONE_NUMBER : 0;
+		flags |= (message.getEpochMillis() != null) ? HAS_EPOCH : 0;
+		flags |= (message.getTemperature() != null) ? HAS_TEMPERATURE : 0;
+		flags |= (message.getHumidity() != null) ? HAS_HUMIDITY : 0;
+		flags |= (message.getWeight() != null) ? HAS_WEIGHT : 0;
+		flags |= (message.getSnakeRFID() != null) ? HAS_SNAKE_RFID : 0;
+		flags |= (message.getRawText() != null) ? HAS_RAW_TEXT : 0;
+		output.writeByte(flags);
+
+		if (message.getMessageSid() != null) {
+			writeString(output, message.getMessageSid());
+		}
+		if (message.getPhoneNumber() != null) {
+			writeString(output, message.getPhoneNumber());
+		}
+		if (message.getEpochMillis() != null) {
+			output.writeLong(message.getEpochMillis());
+		}
+		if (message.getTemperature() != null) {
+			output.writeFloat(message.getTemperature());
+		}
+		if (message.getHumidity() != null) {
+			output.writeFloat(message.getHumidity());
+		}
+		if (message.getWeight() != null) {
+			output.writeFloat(message.getWeight());
+		}
+		if (message.getSnakeRFID() != null) {
+			writeString(output, message.getSnakeRFID());
+		}
+
+		output.writeShort(message.getSkinkRFIDs().size());
+		for (String skinkRFID : message.getSkinkRFIDs()) {
+			writeString(output, skinkRFID);
+		}
+		if (message.getRawText() != null) {
+			writeString(output, message.getRawText());
+		}
+	}
+
+	/**
+	 * Function to read a single message in binary form.
+	 * @param buffer The buffer to read from.
+	 * @return The message that was read.
+	 */
+	private static ArduinoMessage readMessage(ByteBuffer buffer) {
+		ArduinoMessage message = new ArduinoMessage(null);
+		int flags = buffer.get();
+
+		if ((flags & HAS_MESSAGE_SID) != 0) {
+			message.setMessageSid(readString(buffer));
+		}
+		if ((flags & HAS_PHONE_NUMBER) != 0) {
+			message.setPhoneNumber(readString(buffer));
+		}
+		if ((flags & HAS_EPOCH) != 0) {
+			message.setEpochMillis(buffer.getLong());
+		}
+		if ((flags & HAS_TEMPERATURE) != 0) {
+			message.setTemperature(buffer.getFloat());
+		}
+		if ((flags & HAS_HUMIDITY) != 0) {
+			message.setHumidity(buffer.getFloat());
+		}
+		if ((flags & HAS_WEIGHT) != 0) {
+			message.setWeight(buffer.getFloat());
+		}
+		if ((flags & HAS_SNAKE_RFID) != 0) {
+			message.setSnakeRFID(readString(buffer));
+		}
+
+		int numberOfSkinks = buffer.getShort() & 0xFFFF;
+		ArrayList<String> skinkRFIDs = new ArrayList<String>(numberOfSkinks);
+		for (int index = 0; index < numberOfSkinks; index++) {
+			skinkRFIDs.add(readString(buffer));
+		}
+		message.setRFID(skinkRFIDs);
+		if ((flags & HAS_RAW_TEXT) != 0) {
+			message.setRawText(readString(buffer));
+		}
+
+		return message;
+	}
+
+	/**
+	 * Function to write a length prefixed UTF-8 string.
+	 * @param output The output stream to write to.
+	 * @param text The string to write.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	private static void writeString(DataOutputStream output, String text) throws IOException {
+		byte[] bytes = text.getBytes(STRING_CHARSET);
+		output.writeShort(bytes.length);
+		output.write(bytes);
+	}
+
+	/**
+	 * Function to read a length prefixed UTF-8 string.
+	 * @param buffer The buffer to read from.
+	 * @return The string that was read.
+	 */
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, STRING_CHARSET);
+	}
+
+	/**
+	 * Function to calculate a fingerprint of the storage bytes just before
+	 * an offset, used to check the storage file was not rewritten.
+	 * @param storageFile The storage file.
+	 * @param storageOffset The offset covered by the checkpoint.
+	 * @return A CRC32 of the bytes before the offset.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	private static long fingerprint(File storageFile, long storageOffset) throws IOException {
+		CRC32 checksum = new CRC32();
+		checksum.update((int) (storageOffset & 0xFF));
+		if ((storageOffset <= 0) || !storageFile.isFile()) {
+			return checksum.getValue();
+		}
+
+		int length = (int) Math.min(FINGERPRINT_LENGTH, storageOffset);
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		try (FileChannel channel = FileChannel.open(storageFile.toPath(), StandardOpenOption.READ)) {
+			long position = storageOffset - length;
+			while (buffer.hasRemaining()) {
+				int bytesRead = channel.read(buffer, position);
+				if (bytesRead < 0) {
+					break;
+				}
+				position += bytesRead;
+			}
+		}
+		checksum.update(buffer.array(), 0, buffer.position());
+		return checksum.getValue();
+	}
+
+}	// End class Checkpoint
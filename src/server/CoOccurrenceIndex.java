@@ -0,0 +1,271 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Class to count how often each skink was present while each snake basked.
+ * Tags are dictionary encoded and a snake and skink pair is packed into a
+ * long key, counted in a primitive map per day as readings arrive. A query
+ * only visits the days in its window and the pairs seen on those days, never
+ * the readings, so it stays fast however many readings are stored.
+ * @author Elliott Waterman
+ */
+public class CoOccurrenceIndex implements MessageListener {
+	/**
+	 * Width of a day bucket in seconds.
+	 */
+	private static final long DAY_SECONDS = 24 * 60 * 60;
+	/**
+	 * Mask of the skink id in a packed pair key.
+	 */
+	private static final long SKINK_MASK = 0xFFFFFFFFL;
+
+	private final TagDictionary dictionary;
+	private final NavigableMap<Long, DayCounts> days;
+	private final DayCounts totals;
+
+	/**
+	 * Constructor to create an empty co-occurrence index.
+	 */
+	public CoOccurrenceIndex() {
+		this.dictionary = new TagDictionary();
+		this.days = new TreeMap<Long, DayCounts>();
+		this.totals = new DayCounts();
+	}
+
+	@Override
+	public synchronized void messagesReset(List<ArduinoMessage> messages) {
+		this.dictionary.clear();
+		this.days.clear();
+		this.totals.clear();
+		messagesAppended(messages);
+	}
+
+	@Override
+	public synchronized void messagesAppended(List<ArduinoMessage> messages) {
+		int[] skinkIds = new int[8];
+		long lastDay = Long.MIN_VALUE;
+		DayCounts dayCounts = null;
+		for (ArduinoMessage message : messages) {
+			if (!message.checkDataExists()) {
+				continue;
+			}
+			int snakeId = this.dictionary.encode(message.getSnakeRFID());
+
+			// A skink read twice in one reading is only counted once
+			int numberOfSkinks = 0;
+			for (String skinkRFID : message.getSkinkRFIDs()) {
+				if (skinkRFID.isEmpty()) {
+					continue;
+				}
+				int skinkId = this.dictionary.encode(skinkRFID);
+				boolean seen = false;
+				for (int index = 0; index < numberOfSkinks; index++) {
+					seen |= (skinkIds[index] == skinkId);
+				}
+				if (!seen) {
+					if (numberOfSkinks == skinkIds.length) {
+						skinkIds = Arrays.copyOf(skinkIds, numberOfSkinks * 2);
+					}
+					skinkIds[numberOfSkinks++] = skinkId;
+				}
+			}
+
+			// Readings mostly arrive in time order, so the day rarely changes
+			long day = Math.floorDiv(message.getEpochMillis(), DAY_SECONDS);
+			if (day != lastDay) {
+				dayCounts = this.days.get(day);
+				if (dayCounts == null) {
+					dayCounts = new DayCounts();
+					this.days.put(day, dayCounts);
+				}
+				lastDay = day;
+			}
+			dayCounts.add(snakeId, skinkIds, numberOfSkinks);
+			this.totals.add(snakeId, skinkIds, numberOfSkinks);
+		}
+	}
+
+	/**
+	 * Function to create a JSON document of the tags seen with a tag between
+	 * two times, most often first. The tag can be a snake or a skink.
+	 * @param tag The RFID tag.
+	 * @param fromEpoch The start of the time range in epoch seconds, rounded
+	 * down to the day.
+	 * @param toEpoch The end of the time range in epoch seconds, rounded up to
+	 * the day.
+	 * @param limit The maximum number of tags returned.
+	 * @return A JSON string of the readings of the tag and its partners.
+	 */
+	public synchronized String tagToJSON(String tag, long fromEpoch, long toEpoch, int limit) {
+		int tagId = this.dictionary.find(tag);
+		long[] readings = new long[1];
+		LongIntHashMap partnerCounts = new LongIntHashMap();
+		if (tagId >= 0) {
+			for (DayCounts dayCounts : getDayCounts(fromEpoch, toEpoch)) {
+				readings[0] += dayCounts.snakeReadings.get(tagId);
+				dayCounts.pairs.forEach((pair, count) -> {
+					if (getSnakeId(pair) == tagId) {
+						partnerCounts.add(getSkinkId(pair), count);
+					} else if (getSkinkId(pair) == tagId) {
+						partnerCounts.add(getSnakeId(pair), count);
+					}
+				});
+			}
+		}
+
+		StringBuilder JSON = new StringBuilder();
+		JSON.append("{\"tag\":\"").append(JSONUtils.escape(tag)).append('"');
+		JSON.append(",\"from\":").append(fromEpoch);
+		JSON.append(",\"to\":").append(toEpoch);
+		JSON.append(",\"snakeReadings\":").append(readings[0]);
+		JSON.append(",\"partners\":[");
+		boolean first = true;
+		for (long[] entry : sortByCount(partnerCounts, limit)) {
+			JSON.append(first ? "" : ",");
+			JSON.append("{\"tag\":\"").append(JSONUtils.escape(this.dictionary.decode((int) entry[0])));
+			JSON.append("\",\"count\":").append(entry[1]).append('}');
+			first = false;
+		}
+		return JSON.append("]}").toString();
+	}
+
+	/**
+	 * Function to create a JSON document of the snake and skink interaction
+	 * graph between two times, the pairs seen most often first.
+	 * @param fromEpoch The start of the time range in epoch seconds, rounded
+	 * down to the day.
+	 * @param toEpoch The end of the time range in epoch seconds, rounded up to
+	 * the day.
+	 * @param limit The maximum number of edges returned.
+	 * @return A JSON string of the graph edges with their counts.
+	 */
+	public synchronized String graphToJSON(long fromEpoch, long toEpoch, int limit) {
+		LongIntHashMap pairCounts;
+		Collection<DayCounts> dayCounts = getDayCounts(fromEpoch, toEpoch);
+		if (dayCounts.size() == 1) {
+			// A single day or the whole history, no need to merge
+			pairCounts = dayCounts.iterator().next().pairs;
+		} else {
+			pairCounts = new LongIntHashMap();
+			for (DayCounts counts : dayCounts) {
+				counts.pairs.forEach((pair, count) -> pairCounts.add(pair, count));
+			}
+		}
+
+		StringBuilder JSON = new StringBuilder();
+		JSON.append("{\"from\":").append(fromEpoch);
+		JSON.append(",\"to\":").append(toEpoch);
+		JSON.append(",\"pairs\":").append(pairCounts.size());
+		JSON.append(",\"edges\":[");
+		boolean first = true;
+		for (long[] entry : sortByCount(pairCounts, limit)) {
+			JSON.append(first ? "" : ",");
+			JSON.append("{\"snake\":\"").append(JSONUtils.escape(this.dictionary.decode(getSnakeId(entry[0]))));
+			JSON.append("\",\"skink\":\"").append(JSONUtils.escape(this.dictionary.decode(getSkinkId(entry[0]))));
+			JSON.append("\",\"count\":").append(entry[1]).append('}');
+			first = false;
+		}
+		return JSON.append("]}").toString();
+	}
+
+	/**
+	 * Function to return the counts of the days within a time range, or the
+	 * totals when the range covers every day.
+	 * @param fromEpoch The start of the time range in epoch seconds.
+	 * @param toEpoch The end of the time range in epoch seconds.
+	 * @return The counts of each day in the range.
+	 */
+	private Collection<DayCounts> getDayCounts(long fromEpoch, long toEpoch) {
+		Collection<DayCounts> dayCounts = this.days.subMap(Math.floorDiv(fromEpoch, DAY_SECONDS), true,
+			Math.floorDiv(toEpoch, DAY_SECONDS), true).values();
+		if ((this.days.size() > 1) && (dayCounts.size() == this.days.size())) {
+			return Collections.singletonList(this.totals);
+		}
+		return dayCounts;
+	}
+
+	/**
+	 * Function to return the largest entries of a map, largest first.
+	 * @param counts The map of counts.
+	 * @param limit The maximum number of entries returned.
+	 * @return Key and count pairs.
+	 */
+	private static List<long[]> sortByCount(LongIntHashMap counts, int limit) {
+		List<long[]> entries = new ArrayList<long[]>(counts.size());
+		counts.forEach((key, count) -> entries.add(new long[] { key, count }));
+		entries.sort((first, second) -> Long.compare(second[1], first[1]));
+		return (entries.size() > limit) ? entries.subList(0, limit) : entries;
+	}
+
+	/**
+	 * Function to pack a snake and skink id into a pair key.
+	 * @param snakeId The id of the snake tag.
+	 * @param skinkId The id of the skink tag.
+	 * @return The pair key.
+	 */
+	private static long toPair(int snakeId, int skinkId) {
+		return ((long) snakeId << 32) | (skinkId & SKINK_MASK);
+	}
+
+	/**
+	 * Function to return the snake id of a pair key.
+	 * @param pair The pair key.
+	 * @return The id of the snake tag.
+	 */
+	private static int getSnakeId(long pair) {
+		return (int) (pair >>> 32);
+	}
+
+	/**
+	 * Function to return the skink id of a pair key.
+	 * @param pair The pair key.
+	 * @return The id of the skink tag.
+	 */
+	private static int getSkinkId(long pair) {
+		return (int) (pair & SKINK_MASK);
+	}
+
+	/**
+	 * Class to hold the counts of a day, or of the whole history.
+	 */
+	private static class DayCounts {
+		private LongIntHashMap snakeReadings;
+		private LongIntHashMap pairs;
+
+		/**
+		 * Constructor to create empty counts.
+		 */
+		DayCounts() {
+			clear();
+		}
+
+		/**
+		 * Function to count a reading of a snake with the skinks present.
+		 * @param snakeId The id of the snake tag.
+		 * @param skinkIds The ids of the skink tags.
+		 * @param numberOfSkinks The number of skink ids used.
+		 */
+		void add(int snakeId, int[] skinkIds, int numberOfSkinks) {
+			this.snakeReadings.add(snakeId, 1);
+			for (int index = 0; index < numberOfSkinks; index++) {
+				this.pairs.add(toPair(snakeId, skinkIds[index]), 1);
+			}
+		}
+
+		/**
+		 * Function to remove all counts.
+		 */
+		void clear() {
+			this.snakeReadings = new LongIntHashMap();
+			this.pairs = new LongIntHashMap();
+		}
+	}
+
+}	// End class CoOccurrenceIndex
@@ -0,0 +1,180 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class to decode the compact SMS payload sent by the SBSBS into the CSV
+ * readings of the legacy format (epoch, temperature, humidity, weight, tags).
+ * Each SMS is self contained and in the form:
+ *   #2&lt;base epoch&gt;;&lt;reading&gt;;&lt;reading&gt;...
+ *   reading: &lt;epoch delta&gt;.&lt;temperature&gt;.&lt;humidity&gt;.&lt;weight&gt;.&lt;tag&gt;[.&lt;tag&gt;...]
+ * Numbers are base 36 with a leading '-' when negative. The epoch delta is
+ * seconds since the previous reading (the base epoch for the first reading),
+ * temperature, humidity and weight are in tenths. A tag is '=' followed by
+ * the tag the first time it appears in the SMS, afterwards the index (base
+ * 36) of its first appearance, or '!' for an empty tag so later tags keep
+ * their position. Every character is in the GSM basic character set, so a
+ * full payload is one SMS. Payloads of version 1 (prefix '~') are still
+ * decoded.
+ * @author Elliott Waterman
+ */
+public class CompactPayload {
+	/**
+	 * Prefix of a compact payload, followed by the version character.
+	 */
+	private static final char PAYLOAD_PREFIX = '#';
+	/**
+	 * Version of the compact payload format that can be decoded.
+	 */
+	private static final char PAYLOAD_VERSION = '2';
+	/**
+	 * Prefix and version of the first compact payload format, '~' costs two
+	 * characters of an SMS so it was replaced.
+	 */
+	private static final char LEGACY_PAYLOAD_PREFIX = '~';
+	private static final char LEGACY_PAYLOAD_VERSION = '1';
+	/**
+	 * Radix of the numbers in the payload.
+	 */
+	private static final int NUMBER_RADIX = 36;
+	/**
+	 * Separator between readings and after the header.
+	 */
+	private static final String READING_SEPARATOR = ";";
+	/**
+	 * Separator between the fields of a reading.
+	 */
+	private static final String FIELD_SEPARATOR = "\\.";
+	/**
+	 * Marker of a tag sent in full rather than by index.
+	 */
+	private static final char NEW_TAG_MARKER = '=';
+	/**
+	 * Marker of an empty tag, such as a reading without a snake.
+	 */
+	private static final String EMPTY_TAG_MARKER = "!";
+	/**
+	 * Number of sensor fields in a reading before the tags.
+	 */
+	private static final int NUMBER_OF_SENSOR_FIELDS = 4;
+	/**
+	 * Separator for a comma separator value.
+	 */
+	private static final String CSV_SEPARATOR = ",";
+
+	/**
+	 * Function to check whether a message body is a compact payload.
+	 * @param bodyText The text message body.
+	 * @return True if the body starts with a compact payload prefix.
+	 */
+	public static boolean isCompact(String bodyText) {
+		return (bodyText != null) && !bodyText.isEmpty() &&
+			((bodyText.charAt(0) == PAYLOAD_PREFIX) || (bodyText.charAt(0) == LEGACY_PAYLOAD_PREFIX));
+	}
+
+	/**
+	 * Function to split a message body into its readings, a compact payload
+	 * is decoded and a legacy body has one CSV reading per line.
+	 * @param bodyText The text message body.
+	 * @return A list of CSV readings without the SID and phone number, not trimmed.
+	 * @throws IllegalArgumentException If a compact payload cannot be decoded.
+	 */
+	public static List<String> splitReadings(String bodyText) {
+		if (isCompact(bodyText)) {
+			return decode(bodyText);
+		}
+		return Arrays.asList(bodyText.split(System.lineSeparator()));
+	}
+
+	/**
+	 * Function to decode a compact payload into legacy CSV readings.
+	 * @param bodyText The text message body.
+	 * @return A list of CSV readings without the SID and phone number.
+	 * @throws IllegalArgumentException If the payload cannot be decoded.
+	 */
+	public static List<String> decode(String bodyText) {
+		String payload = bodyText.trim();
+		if ((payload.length() < 3) || !isCompact(payload)) {
+			throw new IllegalArgumentException("Not a compact payload.");
+		}
+		char version = (payload.charAt(0) == PAYLOAD_PREFIX) ? PAYLOAD_VERSION : LEGACY_PAYLOAD_VERSION;
+		if (payload.charAt(1) != version) {
+			throw new IllegalArgumentException("Unknown compact payload version " + payload.substring(0, 2));
+		}
+
+		String[] sections = payload.substring(2).split(READING_SEPARATOR);
+		long epoch = parseNumber(sections[0]);
+		List<String> tags = new ArrayList<String>();
+		List<String> readings = new ArrayList<String>(sections.length - 1);
+
+		for (int index = 1; index < sections.length; index++) {
+			if (sections[index].isEmpty()) {
+				continue;
+			}
+			String[] fields = sections[index].split(FIELD_SEPARATOR);
+			if (fields.length < NUMBER_OF_SENSOR_FIELDS) {
+				throw new IllegalArgumentException("Reading has too few fields: " + sections[index]);
+			}
+
+			epoch += parseNumber(fields[0]);
+
+			StringBuilder CSVReading = new StringBuilder();
+			CSVReading.append(epoch);
+			CSVReading.append(CSV_SEPARATOR);
+			CSVReading.append(parseTenths(fields[1]));
+			CSVReading.append(CSV_SEPARATOR);
+			CSVReading.append(parseTenths(fields[2]));
+			CSVReading.append(CSV_SEPARATOR);
+			CSVReading.append(parseTenths(fields[3]));
+
+			for (int field = NUMBER_OF_SENSOR_FIELDS; field < fields.length; field++) {
+				String tag;
+				if (fields[field].equals(EMPTY_TAG_MARKER)) {
+					tag = "";
+				} else if ((fields[field].length() > 0) && (fields[field].charAt(0) == NEW_TAG_MARKER)) {
+					tag = fields[field].substring(1);
+					tags.add(tag);
+				} else {
+					int tagIndex = (int) parseNumber(fields[field]);
+					if ((tagIndex < 0) || (tagIndex >= tags.size())) {
+						throw new IllegalArgumentException("Unknown tag index " + fields[field]);
+					}
+					tag = tags.get(tagIndex);
+				}
+				CSVReading.append(CSV_SEPARATOR);
+				CSVReading.append(tag);
+			}
+
+			readings.add(CSVReading.toString());
+		}
+
+		return readings;
+	}
+
+	/**
+	 * Function to parse a base 36 number.
+	 * @param number The number text.
+	 * @return The parsed number.
+	 * @throws IllegalArgumentException If the text is not a number.
+	 */
+	private static long parseNumber(String number) {
+		try {
+			return Long.parseLong(number, NUMBER_RADIX);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid number " + number, nfe);
+		}
+	}
+
+	/**
+	 * Function to parse a base 36 number of tenths into a decimal value.
+	 * @param number The number text.
+	 * @return The value the number of tenths represents.
+	 * @throws IllegalArgumentException If the text is not a number.
+	 */
+	private static float parseTenths(String number) {
+		return parseNumber(number) / 10f;
+	}
+
+}	// End class CompactPayload
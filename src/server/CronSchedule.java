@@ -0,0 +1,171 @@
+package server;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.BitSet;
+
+/**
+ * Class to define when a background job runs, using a cron expression of five
+ * fields: minute, hour, day of month, month and day of week (0 or 7 is
+ * Sunday). Each field can be '*', a number, a range "a-b", a list "a,b" and
+ * have a step "/n", for example "0 22 * * *" or "*&#47;15 * * * *".
+ * @author Elliott Waterman
+ */
+public class CronSchedule {
+	/**
+	 * Number of fields in a cron expression.
+	 */
+	private static final int NUMBER_OF_FIELDS = 5;
+	/**
+	 * Years searched for a matching time before giving up.
+	 */
+	private static final int MAX_YEARS_SEARCHED = 5;
+
+	private final String expression;
+	private final BitSet minutes;
+	private final BitSet hours;
+	private final BitSet daysOfMonth;
+	private final BitSet months;
+	private final BitSet daysOfWeek;
+	private final boolean anyDayOfMonth;
+	private final boolean anyDayOfWeek;
+
+	/**
+	 * Constructor to parse a cron expression.
+	 * @param expression The five field cron expression.
+	 * @throws IllegalArgumentException If the expression is invalid.
+	 */
+	public CronSchedule(String expression) {
+		String[] fields = expression.trim().split("\\s+");
+		if (fields.length != NUMBER_OF_FIELDS) {
+			throw new IllegalArgumentException("Cron expression needs 5 fields: " + expression);
+		}
+		this.expression = expression;
+		this.minutes = parseField(fields[0], 0, 59);
+		this.hours = parseField(fields[1], 0, 23);
+		this.daysOfMonth = parseField(fields[2], 1, 31);
+		this.months = parseField(fields[3], 1, 12);
+		this.daysOfWeek = parseField(fields[4], 0, 7);
+		// Sunday can be written as 0 or 7
+		if (this.daysOfWeek.get(7)) {
+			this.daysOfWeek.set(0);
+		}
+		this.anyDayOfMonth = fields[2].equals("*");
+		this.anyDayOfWeek = fields[4].equals("*");
+	}
+
+	/**
+	 * Function to find the next time the schedule matches, strictly after a
+	 * given time. A time already in the past is never returned.
+	 * @param time The time to search from.
+	 * @return The next matching time, to the minute.
+	 * @throws IllegalStateException If no time matches within five years.
+	 */
+	public LocalDateTime nextAfter(LocalDateTime time) {
+		LocalDateTime next = time.truncatedTo(ChronoUnit.MINUTES).plusMinutes(1);
+		LocalDateTime limit = time.plusYears(MAX_YEARS_SEARCHED);
+
+		while (next.isBefore(limit)) {
+			if (!this.months.get(next.getMonthValue())) {
+				next = next.withDayOfMonth(1).truncatedTo(ChronoUnit.DAYS).plusMonths(1);
+				continue;
+			}
+			if (!matchesDay(next)) {
+				next = next.truncatedTo(ChronoUnit.DAYS).plusDays(1);
+				continue;
+			}
+			if (!this.hours.get(next.getHour())) {
+				next = next.truncatedTo(ChronoUnit.HOURS).plusHours(1);
+				continue;
+			}
+			if (!this.minutes.get(next.getMinute())) {
+				next = next.plusMinutes(1);
+				continue;
+			}
+			return next;
+		}
+
+		throw new IllegalStateException("Cron expression never matches: " + this.expression);
+	}
+
+	/**
+	 * Function to check the day of a time matches, when both the day of month
+	 * and day of week are restricted either can match (as in cron).
+	 * @param time The time to check.
+	 * @return True if the day matches.
+	 */
+	private boolean matchesDay(LocalDateTime time) {
+		boolean dayOfMonthMatches = this.daysOfMonth.get(time.getDayOfMonth());
+		boolean dayOfWeekMatches = this.daysOfWeek.get(time.getDayOfWeek().getValue() % 7);
+		if (this.anyDayOfMonth || this.anyDayOfWeek) {
+			return dayOfMonthMatches && dayOfWeekMatches;
+		}
+		return dayOfMonthMatches || dayOfWeekMatches;
+	}
+
+	/**
+	 * Function to parse a single field of a cron expression.
+	 * @param field The field text.
+	 * @param minimum The smallest allowed value.
+	 * @param maximum The largest allowed value.
+	 * @return The set of matching values.
+	 * @throws IllegalArgumentException If the field is invalid.
+	 */
+	private static BitSet parseField(String field, int minimum, int maximum) {
+		BitSet values = new BitSet(maximum + 1);
+		for (String part : field.split(",")) {
+			int step = 1;
+			int slash = part.indexOf('/');
+			if (slash >= 0) {
+				step = parseNumber(part.substring(slash + 1), 1, maximum);
+				part = part.substring(0, slash);
+			}
+
+			int start;
+			int end;
+			if (part.equals("*")) {
+				start = minimum;
+				end = maximum;
+			} else if (part.indexOf('-') > 0) {
+				int dash = part.indexOf('-');
+				start = parseNumber(part.substring(0, dash), minimum, maximum);
+				end = parseNumber(part.substring(dash + 1), minimum, maximum);
+			} else {
+				start = parseNumber(part, minimum, maximum);
+				end = (slash >= 0) ? maximum : start;
+			}
+
+			for (int value = start; value <= end; value += step) {
+				values.set(value);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Function to parse a number of a cron field within bounds.
+	 * @param number The number text.
+	 * @param minimum The smallest allowed value.
+	 * @param maximum The largest allowed value.
+	 * @return The parsed number.
+	 * @throws IllegalArgumentException If the number is invalid.
+	 */
+	private static int parseNumber(String number, int minimum, int maximum) {
+		int value;
+		try {
+			value = Integer.parseInt(number);
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid cron value " + number, nfe);
+		}
+		if ((value < minimum) || (value > maximum)) {
+			throw new IllegalArgumentException("Cron value out of range " + number);
+		}
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+}	// End class CronSchedule
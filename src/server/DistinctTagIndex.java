@@ -0,0 +1,216 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Class to estimate how many distinct snakes and skinks were seen by each
+ * station, using a HyperLogLog sketch per station per hour and per day built
+ * as readings arrive. Sketches are merged to answer any time range and any
+ * set of stations without reading the stored messages.
+ * @author Elliott Waterman
+ */
+public class DistinctTagIndex implements MessageListener {
+	/**
+	 * Kind of tag counted, snakes or skinks.
+	 */
+	public static final int SNAKES = 0;
+	public static final int SKINKS = 1;
+	/**
+	 * Names of the kinds of tag, used as query parameters.
+	 */
+	private static final String[] KIND_NAMES = { "snake", "skink" };
+	/**
+	 * Widths of the hour and day buckets in seconds.
+	 */
+	private static final long HOUR_SECONDS = 60 * 60;
+	private static final long DAY_SECONDS = 24 * HOUR_SECONDS;
+
+	private final Map<String, StationSketches> stations;
+
+	/**
+	 * Constructor to create an empty index.
+	 */
+	public DistinctTagIndex() {
+		this.stations = new HashMap<String, StationSketches>();
+	}
+
+	@Override
+	public synchronized void messagesReset(List<ArduinoMessage> messages) {
+		this.stations.clear();
+		messagesAppended(messages);
+	}
+
+	@Override
+	public synchronized void messagesAppended(List<ArduinoMessage> messages) {
+		for (ArduinoMessage message : messages) {
+			if (!message.checkDataExists()) {
+				continue;
+			}
+			StationSketches sketches = this.stations.get(message.getPhoneNumber());
+			if (sketches == null) {
+				sketches = new StationSketches();
+				this.stations.put(message.getPhoneNumber(), sketches);
+			}
+			long hour = Math.floorDiv(message.getEpochMillis(), HOUR_SECONDS);
+			long day = Math.floorDiv(message.getEpochMillis(), DAY_SECONDS);
+			HyperLogLog[] hourSketches = getSketches(sketches.hours, hour);
+			HyperLogLog[] daySketches = getSketches(sketches.days, day);
+
+			hourSketches[SNAKES].add(message.getSnakeRFID());
+			daySketches[SNAKES].add(message.getSnakeRFID());
+			sketches.totals[SNAKES].add(message.getSnakeRFID());
+			for (String skinkRFID : message.getSkinkRFIDs()) {
+				if (!skinkRFID.isEmpty()) {
+					hourSketches[SKINKS].add(skinkRFID);
+					daySketches[SKINKS].add(skinkRFID);
+					sketches.totals[SKINKS].add(skinkRFID);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Function to find the kind of tag of a name.
+	 * @param name The name, "snake" or "skink".
+	 * @return The kind of tag, or -1 if the name is unknown.
+	 */
+	public static int kindFromName(String name) {
+		for (int kind = 0; kind < KIND_NAMES.length; kind++) {
+			if (KIND_NAMES[kind].equalsIgnoreCase(name)) {
+				return kind;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Function to create a JSON document of the estimated distinct tags of a
+	 * kind seen by some stations between two times, in total and optionally
+	 * per hour or day.
+	 * @param stationList The phone numbers of the stations, null for all.
+	 * @param kind The kind of tag, SNAKES or SKINKS.
+	 * @param fromEpoch The start of the time range in epoch seconds, rounded
+	 * down to the hour.
+	 * @param toEpoch The end of the time range in epoch seconds.
+	 * @param perDay True for an estimate per day, false for per hour, null
+	 * for the total only.
+	 * @return A JSON string of the total and each bucket as [epoch, estimate].
+	 */
+	public synchronized String toJSON(List<String> stationList, int kind,
+			long fromEpoch, long toEpoch, Boolean perDay) {
+		List<StationSketches> selected = new ArrayList<StationSketches>();
+		if (stationList == null) {
+			selected.addAll(this.stations.values());
+		} else {
+			for (String station : stationList) {
+				StationSketches sketches = this.stations.get(station);
+				if (sketches != null) {
+					selected.add(sketches);
+				}
+			}
+		}
+
+		// Whole days inside the range come from the day sketches, the hours
+		// either side from the hour sketches
+		long firstHour = Math.floorDiv(fromEpoch, HOUR_SECONDS);
+		long lastHour = Math.floorDiv(toEpoch, HOUR_SECONDS);
+		long firstFullDay = -Math.floorDiv(-fromEpoch, DAY_SECONDS);
+		long endFullDay = Math.floorDiv(toEpoch + 1, DAY_SECONDS);
+		HyperLogLog total = new HyperLogLog();
+		for (StationSketches sketches : selected) {
+			if ((firstFullDay <= sketches.days.firstKey()) && (endFullDay > sketches.days.lastKey())) {
+				// Range covers every reading of the station
+				total.merge(sketches.totals[kind]);
+			} else if (firstFullDay < endFullDay) {
+				merge(total, sketches.days.subMap(firstFullDay, endFullDay).values(), kind);
+				merge(total, sketches.hours.subMap(firstHour, firstFullDay * 24).values(), kind);
+				if (endFullDay * 24 <= lastHour) {
+					merge(total, sketches.hours.subMap(endFullDay * 24, true, lastHour, true).values(), kind);
+				}
+			} else {
+				merge(total, sketches.hours.subMap(firstHour, true, lastHour, true).values(), kind);
+			}
+		}
+
+		StringBuilder JSON = new StringBuilder();
+		JSON.append("{\"kind\":\"").append(KIND_NAMES[kind]).append('"');
+		JSON.append(",\"from\":").append(fromEpoch);
+		JSON.append(",\"to\":").append(toEpoch);
+		JSON.append(",\"stations\":").append(selected.size());
+		JSON.append(",\"total\":").append(total.estimate());
+
+		if (perDay != null) {
+			long bucketSeconds = perDay ? DAY_SECONDS : HOUR_SECONDS;
+			long firstBucket = Math.floorDiv(fromEpoch, bucketSeconds);
+			long lastBucket = Math.floorDiv(toEpoch, bucketSeconds);
+			NavigableMap<Long, HyperLogLog> buckets = new TreeMap<Long, HyperLogLog>();
+			for (StationSketches sketches : selected) {
+				NavigableMap<Long, HyperLogLog[]> stationBuckets = perDay ? sketches.days : sketches.hours;
+				for (Map.Entry<Long, HyperLogLog[]> entry : 
+						stationBuckets.subMap(firstBucket, true, lastBucket, true).entrySet()) {
+					HyperLogLog bucket = buckets.get(entry.getKey());
+					if (bucket == null) {
+						bucket = new HyperLogLog();
+						buckets.put(entry.getKey(), bucket);
+					}
+					bucket.merge(entry.getValue()[kind]);
+				}
+			}
+
+			JSON.append(",\"per\":\"").append(perDay ? "day" : "hour").append("\",\"buckets\":[");
+			boolean first = true;
+			for (Map.Entry<Long, HyperLogLog> entry : buckets.entrySet()) {
+				JSON.append(first ? "" : ",");
+				JSON.append('[').append(entry.getKey() * bucketSeconds);
+				JSON.append(',').append(entry.getValue().estimate()).append(']');
+				first = false;
+			}
+			JSON.append(']');
+		}
+
+		return JSON.append('}').toString();
+	}
+
+	/**
+	 * Function to merge the sketches of a kind of tag into a total.
+	 * @param total The sketch merged into.
+	 * @param sketches The bucket sketches to merge.
+	 * @param kind The kind of tag.
+	 */
+	private static void merge(HyperLogLog total, Collection<HyperLogLog[]> sketches, int kind) {
+		for (HyperLogLog[] bucketSketches : sketches) {
+			total.merge(bucketSketches[kind]);
+		}
+	}
+
+	/**
+	 * Function to return the sketches of a bucket, creating them if needed.
+	 * @param buckets The buckets of a station.
+	 * @param bucket The bucket number.
+	 * @return The snake and skink sketches of the bucket.
+	 */
+	private static HyperLogLog[] getSketches(NavigableMap<Long, HyperLogLog[]> buckets, long bucket) {
+		HyperLogLog[] sketches = buckets.get(bucket);
+		if (sketches == null) {
+			sketches = new HyperLogLog[] { new HyperLogLog(), new HyperLogLog() };
+			buckets.put(bucket, sketches);
+		}
+		return sketches;
+	}
+
+	/**
+	 * Class to hold the hour, day and all time sketches of a station.
+	 */
+	private static class StationSketches {
+		private final NavigableMap<Long, HyperLogLog[]> hours = new TreeMap<Long, HyperLogLog[]>();
+		private final NavigableMap<Long, HyperLogLog[]> days = new TreeMap<Long, HyperLogLog[]>();
+		private final HyperLogLog[] totals = { new HyperLogLog(), new HyperLogLog() };
+	}
+
+}	// End class DistinctTagIndex
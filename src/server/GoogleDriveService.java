@@ -1,7 +1,9 @@
 package server;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.nio.file.Files;
 import java.nio.file.Paths;
@@ -62,12 +64,15 @@ public class GoogleDriveService {
     
     /**
      * Function to upload the SBSBS CSV report file to Google Drive. May need authorising in default
-     * browser before function completes.
+     * browser before function completes. The report is the valid readings of the configured storage,
+     * whichever backend or file it is, exported to a temporary file first.
+     * @param cursor The valid readings of storage, closed when done.
      * @return The name of the uploaded file.
      * @throws IOException A thrown IO exception.
      * @throws GeneralSecurityException A general security exception.
      */
-    public static String uploadReportFile() throws IOException, GeneralSecurityException {
+    public static String uploadReportFile(ReadingCursor cursor)
+            throws IOException, GeneralSecurityException {
         // Build a new authorized API client service.
         final NetHttpTransport HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
         Drive driveService = new Drive.Builder(HTTP_TRANSPORT, JSON_FACTORY, getCredentials(HTTP_TRANSPORT))
@@ -82,11 +87,29 @@ public class GoogleDriveService {
         // Relate/convert into Google spreadsheet
         //fileMetadata.setMimeType("application/vnd.google-apps.spreadsheet");
         
-        java.io.File filePath = new java.io.File("SBSBS.csv");
-        FileContent mediaContent = new FileContent("text/csv", filePath);
-        driveService.files().create(fileMetadata, mediaContent)
-            .setFields("id")
-            .execute();
+        java.io.File filePath = java.io.File.createTempFile(UPLOAD_REPORT_NAME, UPLOAD_REPORT_EXTENSION);
+        try {
+            try (ReadingCursor uploadCursor = cursor;
+                    OutputStream output = new FileOutputStream(filePath)) {
+                ReadingExporter.export(uploadCursor, ReadingExporter.FORMAT_CSV, output);
+            }
+            
+            FileContent mediaContent = new FileContent("text/csv", filePath);
+            ServerEvents.DriveUploadEvent event = new ServerEvents.DriveUploadEvent();
+            event.fileName = fileMetadata.getName();
+            event.bytes = filePath.length();
+            event.begin();
+            try {
+                driveService.files().create(fileMetadata, mediaContent)
+                    .setFields("id")
+                    .execute();
+                event.success = true;
+            } finally {
+                event.commit();
+            }
+        } finally {
+            Files.deleteIfExists(filePath.toPath());
+        }
         //System.out.println("File ID: " + file.getId());  //File file = driveService
         
         return fileMetadata.getName();
@@ -0,0 +1,362 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Class to summarise the readings of a station over one hour: the number of
+ * readings, the lowest, mean and highest temperature, humidity and weight,
+ * and the snakes and skinks seen. Stored one per line in the form:
+ *   station, hour (epoch seconds), readings, temperature min, mean, max,
+ *   humidity min, mean, max, weight min, mean, max, snake tags..., |,
+ *   skink tags..., |, readings...
+ * Each reading is the second of the hour in base 36, a dot and the index of
+ * its snake tag, so a reading sent again can be recognised after the raw
+ * reading has been reduced away. Readings are only in the aggregate log,
+ * not in the CSV string of the aggregate. Lines written before skinks or
+ * readings were kept have no | for them.
+ * @author Elliott Waterman
+ */
+public class HourlyAggregate {
+	/**
+	 * Number of seconds in an hour.
+	 */
+	public static final long SECONDS_PER_HOUR = 60 * 60;
+	/**
+	 * Separator for a comma separator value.
+	 */
+	private static final String CSV_SEPARATOR = ",";
+	/**
+	 * Number of fields before the snake tags.
+	 */
+	private static final int NUMBER_OF_FIELDS = 12;
+	/**
+	 * Field between the snake tags and the skink tags, and between the skink
+	 * tags and the readings.
+	 */
+	private static final String SECTION_FIELD = "|";
+	/**
+	 * Separator between the second and the snake of a reading.
+	 */
+	private static final String READING_SEPARATOR = ".";
+
+	private final String station;
+	private final long hourEpoch;
+	private int readings;
+	private final Summary temperature;
+	private final Summary humidity;
+	private final Summary weight;
+	private final TreeSet<String> snakeRFIDs;
+	private final TreeSet<String> skinkRFIDs;
+	/**
+	 * Readings of the hour as second of the hour in base 36, a dot and the
+	 * snake tag, null if not known.
+	 */
+	private TreeSet<String> readingKeys;
+
+	/**
+	 * Class to hold the lowest, total and highest of a sensor reading.
+	 */
+	private static class Summary {
+		private float min = Float.POSITIVE_INFINITY;
+		private double total = 0;
+		private float max = Float.NEGATIVE_INFINITY;
+
+		/**
+		 * Function to add a value to the summary.
+		 * @param value The sensor reading.
+		 */
+		void add(float value) {
+			this.min = Math.min(this.min, value);
+			this.total += value;
+			this.max = Math.max(this.max, value);
+		}
+
+		/**
+		 * Function to add the values of another summary.
+		 * @param other The other summary.
+		 */
+		void merge(Summary other) {
+			this.min = Math.min(this.min, other.min);
+			this.total += other.total;
+			this.max = Math.max(this.max, other.max);
+		}
+	}
+
+	/**
+	 * Constructor to create an empty aggregate of a station hour.
+	 * @param station The phone number of the station.
+	 * @param hourEpoch The start of the hour in epoch seconds.
+	 */
+	public HourlyAggregate(String station, long hourEpoch) {
+		this.station = station;
+		this.hourEpoch = hourEpoch;
+		this.readings = 0;
+		this.temperature = new Summary();
+		this.humidity = new Summary();
+		this.weight = new Summary();
+		this.snakeRFIDs = new TreeSet<String>();
+		this.skinkRFIDs = new TreeSet<String>();
+		this.readingKeys = new TreeSet<String>();
+	}
+
+	/**
+	 * Function to return the start of the hour of a time.
+	 * @param epoch The time in epoch seconds.
+	 * @return The start of the hour in epoch seconds.
+	 */
+	public static long getHourEpoch(long epoch) {
+		return Math.floorDiv(epoch, SECONDS_PER_HOUR) * SECONDS_PER_HOUR;
+	}
+
+	/**
+	 * Function to aggregate the readings matching a filter by station and
+	 * hour.
+	 * @param messages The readings.
+	 * @param filter The filter readings must match.
+	 * @return The aggregates, sorted by station and hour.
+	 */
+	public static ArrayList<HourlyAggregate> aggregate(List<ArduinoMessage> messages, ReadingFilter filter) {
+		Map<String, TreeMap<Long, HourlyAggregate>> aggregatesByStation =
+			new TreeMap<String, TreeMap<Long, HourlyAggregate>>();
+		for (ArduinoMessage message : messages) {
+			if (!filter.matches(message)) {
+				continue;
+			}
+			long hourEpoch = getHourEpoch(message.getEpochMillis());
+			aggregatesByStation
+				.computeIfAbsent(message.getPhoneNumber(), key -> new TreeMap<Long, HourlyAggregate>())
+				.computeIfAbsent(hourEpoch, key -> new HourlyAggregate(message.getPhoneNumber(), hourEpoch))
+				.add(message);
+		}
+
+		ArrayList<HourlyAggregate> aggregates = new ArrayList<HourlyAggregate>();
+		for (TreeMap<Long, HourlyAggregate> stationAggregates : aggregatesByStation.values()) {
+			aggregates.addAll(stationAggregates.values());
+		}
+		return aggregates;
+	}
+
+	/**
+	 * Function to add a reading of the station hour.
+	 * @param message A valid reading.
+	 */
+	public void add(ArduinoMessage message) {
+		this.readings++;
+		this.temperature.add(message.getTemperature());
+		this.humidity.add(message.getHumidity());
+		this.weight.add(message.getWeight());
+		this.snakeRFIDs.add(message.getSnakeRFID());
+		for (String skinkRFID : message.getSkinkRFIDs()) {
+			// An empty tag means no skink was read
+			if (!skinkRFID.isEmpty()) {
+				this.skinkRFIDs.add(skinkRFID);
+			}
+		}
+		if (this.readingKeys != null) {
+			this.readingKeys.add(getReadingKey(message));
+		}
+	}
+
+	/**
+	 * Function to check whether a reading may already be counted in the
+	 * aggregate, the same station, second and snake as a counted reading.
+	 * @param message A reading of the station hour.
+	 * @return True if it may be counted, always for aggregates stored before readings were kept.
+	 */
+	public boolean mayContain(ArduinoMessage message) {
+		return (this.readingKeys == null) || this.readingKeys.contains(getReadingKey(message));
+	}
+
+	/**
+	 * Function to return the key of a reading within its hour.
+	 * @param message A reading of the station hour.
+	 * @return The second of the hour in base 36, a dot and the snake tag.
+	 */
+	private String getReadingKey(ArduinoMessage message) {
+		return Long.toString(message.getEpochMillis() - this.hourEpoch, 36) + 
+			READING_SEPARATOR + message.getSnakeRFID();
+	}
+
+	/**
+	 * Function to add the readings of another aggregate of the same station
+	 * hour.
+	 * @param other The other aggregate.
+	 */
+	public void merge(HourlyAggregate other) {
+		this.readings += other.readings;
+		this.temperature.merge(other.temperature);
+		this.humidity.merge(other.humidity);
+		this.weight.merge(other.weight);
+		this.snakeRFIDs.addAll(other.snakeRFIDs);
+		this.skinkRFIDs.addAll(other.skinkRFIDs);
+		if ((this.readingKeys == null) || (other.readingKeys == null)) {
+			this.readingKeys = null;
+		} else {
+			this.readingKeys.addAll(other.readingKeys);
+		}
+	}
+
+	/**
+	 * Function to parse an aggregate line.
+	 * @param CSVText A line of the aggregate log.
+	 * @return The aggregate, null if the line is not an aggregate.
+	 */
+	public static HourlyAggregate parse(String CSVText) {
+		String[] fields = CSVText.split(CSV_SEPARATOR);
+		if (fields.length < NUMBER_OF_FIELDS) {
+			return null;
+		}
+		try {
+			HourlyAggregate aggregate = new HourlyAggregate(fields[0], Long.parseLong(fields[1]));
+			aggregate.readings = Integer.parseInt(fields[2]);
+			parseSummary(aggregate.temperature, fields, 3, aggregate.readings);
+			parseSummary(aggregate.humidity, fields, 6, aggregate.readings);
+			parseSummary(aggregate.weight, fields, 9, aggregate.readings);
+			int sections = 0;
+			ArrayList<String> snakeRFIDs = new ArrayList<String>();
+			ArrayList<String> readingFields = new ArrayList<String>();
+			for (int index = NUMBER_OF_FIELDS; index < fields.length; index++) {
+				if (fields[index].equals(SECTION_FIELD)) {
+					sections++;
+				} else if (sections == 0) {
+					snakeRFIDs.add(fields[index]);
+				} else if (sections == 1) {
+					aggregate.skinkRFIDs.add(fields[index]);
+				} else {
+					readingFields.add(fields[index]);
+				}
+			}
+			aggregate.snakeRFIDs.addAll(snakeRFIDs);
+
+			// Readings name their snake by its index in the sorted snake tags
+			if (sections < 2) {
+				aggregate.readingKeys = null;
+			}
+			for (String readingField : readingFields) {
+				int separatorIndex = readingField.indexOf(READING_SEPARATOR);
+				if (separatorIndex < 0) {
+					return null;
+				}
+				int snakeIndex = Integer.parseInt(readingField.substring(separatorIndex + 1));
+				if ((snakeIndex < 0) || (snakeIndex >= snakeRFIDs.size())) {
+					return null;
+				}
+				aggregate.readingKeys.add(readingField.substring(0, separatorIndex) + 
+					READING_SEPARATOR + snakeRFIDs.get(snakeIndex));
+			}
+			return aggregate;
+		} catch (NumberFormatException nfe) {
+			return null;
+		}
+	}
+
+	/**
+	 * Function to parse the lowest, mean and highest of a sensor reading.
+	 * @param summary The summary to set.
+	 * @param fields The fields of the aggregate line.
+	 * @param start The index of the lowest value.
+	 * @param readings The number of readings in the hour.
+	 */
+	private static void parseSummary(Summary summary, String[] fields, int start, int readings) {
+		summary.min = Float.parseFloat(fields[start]);
+		summary.total = Double.parseDouble(fields[start + 1]) * readings;
+		summary.max = Float.parseFloat(fields[start + 2]);
+	}
+
+	/**
+	 * Function to parse the aggregate to a CSV string.
+	 * @return A CSV string of the aggregate.
+	 */
+	public String toCSVString() {
+		StringBuilder CSVString = new StringBuilder();
+		CSVString.append(this.station);
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(this.hourEpoch);
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(this.readings);
+		appendSummary(CSVString, this.temperature);
+		appendSummary(CSVString, this.humidity);
+		appendSummary(CSVString, this.weight);
+		for (String snakeRFID : this.snakeRFIDs) {
+			CSVString.append(CSV_SEPARATOR);
+			CSVString.append(snakeRFID);
+		}
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(SECTION_FIELD);
+		for (String skinkRFID : this.skinkRFIDs) {
+			CSVString.append(CSV_SEPARATOR);
+			CSVString.append(skinkRFID);
+		}
+		return CSVString.toString();
+	}
+
+	/**
+	 * Function to parse the aggregate to a line of the aggregate log, the CSV
+	 * string followed by the readings when they are known.
+	 * @return A line of the aggregate log.
+	 */
+	public String toLogString() {
+		StringBuilder logString = new StringBuilder(toCSVString());
+		if (this.readingKeys == null) {
+			return logString.toString();
+		}
+		HashMap<String, Integer> snakeIndexes = new HashMap<String, Integer>();
+		for (String snakeRFID : this.snakeRFIDs) {
+			snakeIndexes.put(snakeRFID, snakeIndexes.size());
+		}
+		logString.append(CSV_SEPARATOR);
+		logString.append(SECTION_FIELD);
+		for (String readingKey : this.readingKeys) {
+			int separatorIndex = readingKey.indexOf(READING_SEPARATOR);
+			logString.append(CSV_SEPARATOR);
+			logString.append(readingKey, 0, separatorIndex + 1);
+			logString.append(snakeIndexes.get(readingKey.substring(separatorIndex + 1)));
+		}
+		return logString.toString();
+	}
+
+	/**
+	 * Function to add the lowest, mean and highest of a sensor reading to a
+	 * CSV string, the mean to two decimal places.
+	 * @param CSVString The CSV string being built.
+	 * @param summary The summary of the sensor reading.
+	 */
+	private void appendSummary(StringBuilder CSVString, Summary summary) {
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(summary.min);
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(Math.round(summary.total * 100 / this.readings) / 100.0);
+		CSVString.append(CSV_SEPARATOR);
+		CSVString.append(summary.max);
+	}
+
+	/**
+	 * Getter function to return the station phone number.
+	 * @return The phone number of the station.
+	 */
+	public String getStation() {
+		return station;
+	}
+
+	/**
+	 * Getter function to return the start of the hour.
+	 * @return The start of the hour in epoch seconds.
+	 */
+	public long getHourEpoch() {
+		return hourEpoch;
+	}
+
+	/**
+	 * Getter function to return the number of readings in the hour.
+	 * @return The number of readings.
+	 */
+	public int getReadings() {
+		return readings;
+	}
+
+}	// End class HourlyAggregate
@@ -0,0 +1,190 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Class to store the hourly aggregates of readings reduced by the retention
+ * policy. Aggregates are appended together with a watermark line giving the
+ * time before which every hour has been aggregated, in one write, so a run
+ * cut short is aggregated again rather than lost. Reading keeps the last
+ * copy of an hour, so an hour aggregated twice is not counted twice.
+ * After storage is compacted a line records how many of its readings are
+ * covered, so readings stored later for hours before the watermark can be
+ * told apart and added to the aggregates of their hours.
+ * @author Elliott Waterman
+ */
+public class HourlyAggregateLog {
+	/**
+	 * Start of a watermark line, followed by the epoch seconds before which
+	 * every hour has been aggregated.
+	 */
+	private static final String WATERMARK_PREFIX = "#aggregatedBefore,";
+	/**
+	 * Start of a covered line, followed by a storage generation and the
+	 * number of readings at its start covered by the aggregates. Only the
+	 * last line of the log counts, aggregates appended after it may have
+	 * been written for a storage that was never swapped in.
+	 */
+	private static final String COVERED_PREFIX = "#coveredReadings,";
+
+	private final File aggregateFile;
+
+	/**
+	 * Constructor to set the aggregate log file.
+	 * @param aggregateFile The file aggregates are appended to.
+	 */
+	public HourlyAggregateLog(File aggregateFile) {
+		this.aggregateFile = aggregateFile;
+	}
+
+	/**
+	 * Function to read the time before which every hour has been aggregated.
+	 * @return The watermark in epoch seconds, 0 if nothing is aggregated.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public synchronized long readWatermark() throws IOException {
+		long watermark = 0;
+		if (!this.aggregateFile.isFile()) {
+			return watermark;
+		}
+		try (BufferedReader reader = new BufferedReader(new FileReader(this.aggregateFile))) {
+			String inputLine;
+			while ((inputLine = reader.readLine()) != null) {
+				if (inputLine.startsWith(WATERMARK_PREFIX)) {
+					try {
+						watermark = Long.parseLong(inputLine.substring(WATERMARK_PREFIX.length()).trim());
+					} catch (NumberFormatException nfe) {
+						System.out.println("Invalid aggregate watermark " + inputLine);
+					}
+				}
+			}
+		}
+		return watermark;
+	}
+
+	/**
+	 * Function to read how many readings at the start of a storage
+	 * generation are covered by the aggregates, every reading among them
+	 * from before the watermark has been aggregated.
+	 * @param generation The generation of storage.
+	 * @return The number of readings, -1 if not known.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public synchronized long readCoveredReadings(long generation) throws IOException {
+		String lastLine = null;
+		if (this.aggregateFile.isFile()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(this.aggregateFile))) {
+				String inputLine;
+				while ((inputLine = reader.readLine()) != null) {
+					lastLine = inputLine;
+				}
+			}
+		}
+		if ((lastLine == null) || !lastLine.startsWith(COVERED_PREFIX)) {
+			return -1;
+		}
+		String[] fields = lastLine.substring(COVERED_PREFIX.length()).split(",");
+		try {
+			if ((fields.length == 2) && (Long.parseLong(fields[0].trim()) == generation)) {
+				return Long.parseLong(fields[1].trim());
+			}
+		} catch (NumberFormatException nfe) {
+			System.out.println("Invalid covered readings " + lastLine);
+		}
+		return -1;
+	}
+
+	/**
+	 * Function to record how many readings at the start of a storage
+	 * generation are covered by the aggregates, written to disk before
+	 * returning.
+	 * @param generation The generation of storage.
+	 * @param readings The number of readings covered.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	public synchronized void appendCoveredReadings(long generation, long readings) throws IOException {
+		FileOutputStream output = new FileOutputStream(this.aggregateFile, true);
+		try (Writer writer = new OutputStreamWriter(output, Charset.defaultCharset())) {
+			writer.write(COVERED_PREFIX + generation + "," + readings);
+			writer.write(System.lineSeparator());
+			writer.flush();
+			output.getFD().sync();
+		}
+	}
+
+	/**
+	 * Function to append aggregates and move the watermark on, written to
+	 * disk before returning.
+	 * @param aggregates The aggregates of the hours before the watermark.
+	 * @param watermark The time before which every hour is now aggregated.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	public synchronized void append(List<HourlyAggregate> aggregates, long watermark) throws IOException {
+		FileOutputStream output = new FileOutputStream(this.aggregateFile, true);
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(output, Charset.defaultCharset()), 64 * 1024)) {
+			for (HourlyAggregate aggregate : aggregates) {
+				writer.write(aggregate.toLogString());
+				writer.write(System.lineSeparator());
+			}
+			writer.write(WATERMARK_PREFIX + watermark);
+			writer.write(System.lineSeparator());
+			writer.flush();
+			// The raw readings are removed once this returns
+			output.getFD().sync();
+		}
+	}
+
+	/**
+	 * Function to read the stored aggregates of hours within a time range.
+	 * @param station The phone number of the station, null for all.
+	 * @param fromEpoch The start of the time range in epoch seconds.
+	 * @param toEpoch The end of the time range in epoch seconds (inclusive).
+	 * @return The aggregates, sorted by station and hour.
+	 * @throws IOException An IO exception caused by reading the file.
+	 */
+	public synchronized ArrayList<HourlyAggregate> read(String station, long fromEpoch, long toEpoch)
+			throws IOException {
+		Map<String, TreeMap<Long, HourlyAggregate>> aggregatesByStation =
+			new TreeMap<String, TreeMap<Long, HourlyAggregate>>();
+		if (this.aggregateFile.isFile()) {
+			try (BufferedReader reader = new BufferedReader(new FileReader(this.aggregateFile))) {
+				String inputLine;
+				while ((inputLine = reader.readLine()) != null) {
+					if (inputLine.startsWith(WATERMARK_PREFIX) || inputLine.startsWith(COVERED_PREFIX)) {
+						continue;
+					}
+					HourlyAggregate aggregate = HourlyAggregate.parse(inputLine);
+					if ((aggregate == null) ||
+						((station != null) && !station.equals(aggregate.getStation())) ||
+						(aggregate.getHourEpoch() < fromEpoch) || (aggregate.getHourEpoch() > toEpoch)) {
+						continue;
+					}
+					// A later copy of an hour replaces the earlier one
+					aggregatesByStation
+						.computeIfAbsent(aggregate.getStation(), key -> new TreeMap<Long, HourlyAggregate>())
+						.put(aggregate.getHourEpoch(), aggregate);
+				}
+			}
+		}
+
+		ArrayList<HourlyAggregate> aggregates = new ArrayList<HourlyAggregate>();
+		for (TreeMap<Long, HourlyAggregate> stationAggregates : aggregatesByStation.values()) {
+			aggregates.addAll(stationAggregates.values());
+		}
+		return aggregates;
+	}
+
+}	// End class HourlyAggregateLog
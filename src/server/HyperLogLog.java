@@ -0,0 +1,175 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Class to estimate the number of distinct tags added, in a fixed small
+ * amount of memory, using the HyperLogLog algorithm. Sketches of different
+ * stations or times can be merged to estimate the distinct tags of them all.
+ * A sketch starts sparse, storing only the registers that are set, as most
+ * stations see few tags an hour, and becomes a dense array of 2048 registers
+ * once more are set. The standard error of an estimate is about 2.3%.
+ * @author Elliott Waterman
+ */
+public class HyperLogLog {
+	/**
+	 * Number of hash bits used to choose a register.
+	 */
+	private static final int PRECISION = 11;
+	/**
+	 * Number of registers of a dense sketch.
+	 */
+	private static final int NUMBER_OF_REGISTERS = 1 << PRECISION;
+	/**
+	 * Largest number of set registers kept sparse, beyond this the sparse
+	 * entries are slower to search than dense registers to hold.
+	 */
+	private static final int MAX_SPARSE_ENTRIES = NUMBER_OF_REGISTERS / 8;
+	/**
+	 * Bias correction constant for the number of registers.
+	 */
+	private static final double ALPHA = 0.7213 / (1 + 1.079 / NUMBER_OF_REGISTERS);
+
+	// Sparse entries are the register index shifted left 8 bits, or'd with the rank
+	private int[] sparseEntries;
+	private int numberOfSparseEntries;
+	private byte[] registers;
+
+	/**
+	 * Constructor to create an empty sketch.
+	 */
+	public HyperLogLog() {
+		this.sparseEntries = new int[4];
+		this.numberOfSparseEntries = 0;
+		this.registers = null;
+	}
+
+	/**
+	 * Function to add a tag to the sketch.
+	 * @param tag The RFID tag.
+	 */
+	public void add(String tag) {
+		long hash = hash(tag);
+		int index = (int) (hash >>> (64 - PRECISION));
+		// Rank is the position of the first set bit after the index bits
+		int rank = Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1;
+		setRegister(index, rank);
+	}
+
+	/**
+	 * Function to add every tag of another sketch to this sketch.
+	 * @param other The sketch to merge in.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.registers != null) {
+			toDense();
+			for (int index = 0; index < NUMBER_OF_REGISTERS; index++) {
+				if (other.registers[index] > this.registers[index]) {
+					this.registers[index] = other.registers[index];
+				}
+			}
+			return;
+		}
+		for (int entry = 0; entry < other.numberOfSparseEntries; entry++) {
+			setRegister(other.sparseEntries[entry] >>> 8, other.sparseEntries[entry] & 0xFF);
+		}
+	}
+
+	/**
+	 * Function to estimate the number of distinct tags added.
+	 * @return The estimated number of distinct tags.
+	 */
+	public long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		if (this.registers == null) {
+			zeros = NUMBER_OF_REGISTERS - this.numberOfSparseEntries;
+			sum = zeros;
+			for (int entry = 0; entry < this.numberOfSparseEntries; entry++) {
+				sum += Math.scalb(1.0, -(this.sparseEntries[entry] & 0xFF));
+			}
+		} else {
+			for (byte register : this.registers) {
+				if (register == 0) {
+					zeros++;
+				}
+				sum += Math.scalb(1.0, -register);
+			}
+		}
+
+		double estimate = ALPHA * NUMBER_OF_REGISTERS * NUMBER_OF_REGISTERS / sum;
+		if ((estimate <= 2.5 * NUMBER_OF_REGISTERS) && (zeros > 0)) {
+			// Small counts are more accurate from the number of empty registers
+			estimate = NUMBER_OF_REGISTERS * Math.log((double) NUMBER_OF_REGISTERS / zeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Function to raise a register to a rank, registers never go down.
+	 * @param index The register index.
+	 * @param rank The rank of a hash.
+	 */
+	private void setRegister(int index, int rank) {
+		if (this.registers != null) {
+			if (rank > this.registers[index]) {
+				this.registers[index] = (byte) rank;
+			}
+			return;
+		}
+
+		for (int entry = 0; entry < this.numberOfSparseEntries; entry++) {
+			if ((this.sparseEntries[entry] >>> 8) == index) {
+				if (rank > (this.sparseEntries[entry] & 0xFF)) {
+					this.sparseEntries[entry] = (index << 8) | rank;
+				}
+				return;
+			}
+		}
+		if (this.numberOfSparseEntries == MAX_SPARSE_ENTRIES) {
+			toDense();
+			this.registers[index] = (byte) rank;
+			return;
+		}
+		if (this.numberOfSparseEntries == this.sparseEntries.length) {
+			this.sparseEntries = Arrays.copyOf(this.sparseEntries, this.numberOfSparseEntries * 2);
+		}
+		this.sparseEntries[this.numberOfSparseEntries++] = (index << 8) | rank;
+	}
+
+	/**
+	 * Function to change a sparse sketch into dense registers.
+	 */
+	private void toDense() {
+		if (this.registers != null) {
+			return;
+		}
+		this.registers = new byte[NUMBER_OF_REGISTERS];
+		for (int entry = 0; entry < this.numberOfSparseEntries; entry++) {
+			this.registers[this.sparseEntries[entry] >>> 8] = (byte) (this.sparseEntries[entry] & 0xFF);
+		}
+		this.sparseEntries = null;
+		this.numberOfSparseEntries = 0;
+	}
+
+	/**
+	 * Function to hash a tag to 64 well mixed bits (FNV-1a then the MurmurHash3
+	 * finaliser).
+	 * @param tag The RFID tag.
+	 * @return The hash of the tag.
+	 */
+	private static long hash(String tag) {
+		long hash = 0xcbf29ce484222325L;
+		for (int index = 0; index < tag.length(); index++) {
+			hash ^= tag.charAt(index);
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}	// End class HyperLogLog
@@ -0,0 +1,48 @@
+package server;
+
+/**
+ * Class of helper functions for building JSON strings by hand.
+ * @author Elliott Waterman
+ */
+public class JSONUtils {
+
+	/**
+	 * Function to escape a string so it can be placed inside JSON quotes.
+	 * @param text The string to escape, may be null.
+	 * @return The escaped string, empty if the string was null.
+	 */
+	public static String escape(String text) {
+		if (text == null) {
+			return "";
+		}
+		StringBuilder escaped = new StringBuilder(text.length() + 8);
+		for (int index = 0; index < text.length(); index++) {
+			char character = text.charAt(index);
+			switch (character) {
+				case '"':
+					escaped.append("\\\"");
+					break;
+				case '\\':
+					escaped.append("\\\\");
+					break;
+				case '\n':
+					escaped.append("\\n");
+					break;
+				case '\r':
+					escaped.append("\\r");
+					break;
+				case '\t':
+					escaped.append("\\t");
+					break;
+				default:
+					if (character < 0x20) {
+						escaped.append(String.format("\\u%04x", (int) character));
+					} else {
+						escaped.append(character);
+					}
+			}
+		}
+		return escaped.toString();
+	}
+
+}	// End class JSONUtils
@@ -0,0 +1,167 @@
+package server;
+
+import java.util.Arrays;
+
+/**
+ * Class to map long keys to int values without boxing, using open addressing
+ * with linear probing. Used for counts keyed by packed tag ids, where a
+ * HashMap of Long to Integer would use several times the memory.
+ * @author Elliott Waterman
+ */
+public class LongIntHashMap {
+	/**
+	 * Key marking an empty slot, the key can still be stored separately.
+	 */
+	private static final long EMPTY_KEY = Long.MIN_VALUE;
+	/**
+	 * Largest fraction of slots used before the table grows.
+	 */
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] keys;
+	private int[] values;
+	private int size;
+	private boolean hasEmptyKey;
+	private int emptyKeyValue;
+
+	/**
+	 * Interface to visit each entry of a map.
+	 */
+	public interface Visitor {
+		/**
+		 * Function called for each entry.
+		 * @param key The entry key.
+		 * @param value The entry value.
+		 */
+		void visit(long key, int value);
+	}
+
+	/**
+	 * Constructor to create an empty map.
+	 */
+	public LongIntHashMap() {
+		this(16);
+	}
+
+	/**
+	 * Constructor to create an empty map that holds a number of entries
+	 * before it grows.
+	 * @param expectedSize The number of entries expected.
+	 */
+	public LongIntHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+		this.keys = new long[capacity];
+		Arrays.fill(this.keys, EMPTY_KEY);
+		this.values = new int[capacity];
+	}
+
+	/**
+	 * Function to return the value of a key.
+	 * @param key The key.
+	 * @return The value, 0 if the key is not in the map.
+	 */
+	public int get(long key) {
+		if (key == EMPTY_KEY) {
+			return this.hasEmptyKey ? this.emptyKeyValue : 0;
+		}
+		int mask = this.keys.length - 1;
+		for (int slot = hash(key) & mask; this.keys[slot] != EMPTY_KEY; slot = (slot + 1) & mask) {
+			if (this.keys[slot] == key) {
+				return this.values[slot];
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Function to add to the value of a key, a missing key counts as 0.
+	 * @param key The key.
+	 * @param amount The amount to add.
+	 * @return The new value.
+	 */
+	public int add(long key, int amount) {
+		if (key == EMPTY_KEY) {
+			if (!this.hasEmptyKey) {
+				this.hasEmptyKey = true;
+				this.size++;
+			}
+			this.emptyKeyValue += amount;
+			return this.emptyKeyValue;
+		}
+		int mask = this.keys.length - 1;
+		int slot = hash(key) & mask;
+		while (this.keys[slot] != EMPTY_KEY) {
+			if (this.keys[slot] == key) {
+				this.values[slot] += amount;
+				return this.values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		this.keys[slot] = key;
+		this.values[slot] = amount;
+		this.size++;
+		if (this.size > this.keys.length * LOAD_FACTOR) {
+			grow();
+		}
+		return amount;
+	}
+
+	/**
+	 * Function to return the number of entries in the map.
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Function to visit every entry of the map, in no particular order.
+	 * @param visitor The visitor called for each entry.
+	 */
+	public void forEach(Visitor visitor) {
+		if (this.hasEmptyKey) {
+			visitor.visit(EMPTY_KEY, this.emptyKeyValue);
+		}
+		for (int slot = 0; slot < this.keys.length; slot++) {
+			if (this.keys[slot] != EMPTY_KEY) {
+				visitor.visit(this.keys[slot], this.values[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Function to double the table and re-insert the entries.
+	 */
+	private void grow() {
+		long[] oldKeys = this.keys;
+		int[] oldValues = this.values;
+		this.keys = new long[oldKeys.length * 2];
+		Arrays.fill(this.keys, EMPTY_KEY);
+		this.values = new int[oldValues.length * 2];
+
+		int mask = this.keys.length - 1;
+		for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+			if (oldKeys[oldSlot] == EMPTY_KEY) {
+				continue;
+			}
+			int slot = hash(oldKeys[oldSlot]) & mask;
+			while (this.keys[slot] != EMPTY_KEY) {
+				slot = (slot + 1) & mask;
+			}
+			this.keys[slot] = oldKeys[oldSlot];
+			this.values[slot] = oldValues[oldSlot];
+		}
+	}
+
+	/**
+	 * Function to spread the bits of a key, so packed ids that differ only
+	 * in their high bits do not share slots.
+	 * @param key The key.
+	 * @return The hash of the key.
+	 */
+	private static int hash(long key) {
+		long mixed = key * 0x9E3779B97F4A7C15L;
+		return (int) (mixed ^ (mixed >>> 32));
+	}
+
+}	// End class LongIntHashMap
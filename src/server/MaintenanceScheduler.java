@@ -0,0 +1,232 @@
+package server;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Class to run background maintenance jobs (uploads, checkpoints, compaction)
+ * on cron schedules. Each job runs with a random jitter, never overlaps with
+ * itself, declares whether it uses the disk or the processor so only a limited
+ * number of each run together, and is held back during the evening window
+ * when the stations send their readings.
+ * @author Elliott Waterman
+ */
+public class MaintenanceScheduler {
+	/**
+	 * Time to wait before trying again when a budget or the quiet window
+	 * stops a job from starting (1 minute).
+	 */
+	private static final long RETRY_DELAY_MILLIS = 60 * 1000;
+
+	/**
+	 * Enum to define the resource a job mostly uses, and how many jobs using
+	 * it can run at the same time.
+	 */
+	public enum Budget {
+		/**
+		 * Jobs that mostly read and write files or the network.
+		 */
+		IO(1),
+		/**
+		 * Jobs that mostly use the processor.
+		 */
+		CPU(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+		private final int concurrentJobs;
+		private final Semaphore permits;
+
+		/**
+		 * Constructor to set the number of jobs that can run together.
+		 * @param concurrentJobs The number of jobs that can run together.
+		 */
+		Budget(int concurrentJobs) {
+			this.concurrentJobs = concurrentJobs;
+			this.permits = new Semaphore(concurrentJobs);
+		}
+	}
+
+	private final ScheduledExecutorService executor;
+	private final LocalTime quietStart;
+	private final LocalTime quietEnd;
+
+	/**
+	 * Constructor to create a scheduler that holds jobs back during a daily
+	 * quiet window.
+	 * @param quietStart The time of day the quiet window starts.
+	 * @param quietEnd The time of day the quiet window ends.
+	 */
+	public MaintenanceScheduler(LocalTime quietStart, LocalTime quietEnd) {
+		// A thread for every job the budgets let run at the same time
+		int threads = 0;
+		for (Budget budget : Budget.values()) {
+			threads += budget.concurrentJobs;
+		}
+		ScheduledThreadPoolExecutor threadPool = new ScheduledThreadPoolExecutor(threads, runnable -> {
+			Thread thread = new Thread(runnable, "maintenance");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		threadPool.setRemoveOnCancelPolicy(true);
+		this.executor = threadPool;
+		this.quietStart = quietStart;
+		this.quietEnd = quietEnd;
+	}
+
+	/**
+	 * Function to add a job to the scheduler.
+	 * @param name The name of the job, used in logs and metrics.
+	 * @param schedule When the job runs.
+	 * @param budget The resource the job mostly uses.
+	 * @param maxJitterMillis The largest random delay added to each run.
+	 * @param task The work of the job.
+	 */
+	public void schedule(String name, CronSchedule schedule, Budget budget,
+			long maxJitterMillis, Runnable task) {
+		Job job = new Job(name, schedule, budget, maxJitterMillis, task);
+		job.scheduleNext();
+		System.out.println("Job " + name + " scheduled with \"" + schedule + "\".");
+	}
+
+	/**
+	 * Function to stop running jobs, jobs already running are finished.
+	 */
+	public void shutdown() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Function to check whether a time is within the daily quiet window.
+	 * @param time The time to check.
+	 * @return True if jobs should be held back.
+	 */
+	private boolean isQuietTime(LocalTime time) {
+		if (this.quietStart.isBefore(this.quietEnd)) {
+			return !time.isBefore(this.quietStart) && time.isBefore(this.quietEnd);
+		}
+		// Window passes midnight
+		return !time.isBefore(this.quietStart) || time.isBefore(this.quietEnd);
+	}
+
+	/**
+	 * Class to hold a scheduled job and its running state.
+	 */
+	private class Job implements Runnable {
+		private final String name;
+		private final CronSchedule schedule;
+		private final Budget budget;
+		private final long maxJitterMillis;
+		private final Runnable task;
+		private final AtomicBoolean running;
+		private final AtomicBoolean retryPending;
+
+		/**
+		 * Constructor to set the job values.
+		 * @param name The name of the job.
+		 * @param schedule When the job runs.
+		 * @param budget The resource the job mostly uses.
+		 * @param maxJitterMillis The largest random delay added to each run.
+		 * @param task The work of the job.
+		 */
+		Job(String name, CronSchedule schedule, Budget budget, long maxJitterMillis, Runnable task) {
+			this.name = name;
+			this.schedule = schedule;
+			this.budget = budget;
+			this.maxJitterMillis = maxJitterMillis;
+			this.task = task;
+			this.running = new AtomicBoolean(false);
+			this.retryPending = new AtomicBoolean(false);
+		}
+
+		/**
+		 * Function to schedule the next run of the job from its cron schedule.
+		 */
+		void scheduleNext() {
+			LocalDateTime now = LocalDateTime.now();
+			long delay = Duration.between(now, this.schedule.nextAfter(now)).toMillis();
+			if (this.maxJitterMillis > 0) {
+				delay += ThreadLocalRandom.current().nextLong(this.maxJitterMillis + 1);
+			}
+			executor.schedule(this, delay, TimeUnit.MILLISECONDS);
+		}
+
+		/**
+		 * Function to try the job again shortly, without moving its schedule.
+		 */
+		private void retryLater() {
+			if (this.retryPending.compareAndSet(false, true)) {
+				executor.schedule(() -> start(false), RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+			}
+		}
+
+		@Override
+		public void run() {
+			// Book the next run first so a failing job keeps its schedule
+			scheduleNext();
+			start(true);
+		}
+
+		/**
+		 * Function to start the job if nothing stops it.
+		 * @param scheduled True if started by the schedule, false if a retry.
+		 */
+		private void start(boolean scheduled) {
+			if (!scheduled) {
+				this.retryPending.set(false);
+			} else if (this.retryPending.get()) {
+				// Already waiting to start
+				return;
+			}
+			if (this.running.get()) {
+				skip();
+				return;
+			}
+			if (isQuietTime(LocalTime.now())) {
+				retryLater();
+				return;
+			}
+			if (!this.running.compareAndSet(false, true)) {
+				// Started by another run since the check above
+				skip();
+				return;
+			}
+			if (!this.budget.permits.tryAcquire()) {
+				this.running.set(false);
+				retryLater();
+				return;
+			}
+
+			long startTime = System.currentTimeMillis();
+			try {
+				this.task.run();
+				ServerMetrics.increment("job." + this.name + ".completed");
+			} catch (RuntimeException | Error xcp) {
+				// A failing job must not stop the scheduler
+				System.out.println("Job " + this.name + " failed.");
+				xcp.printStackTrace();
+				ServerMetrics.increment("job." + this.name + ".failed");
+			} finally {
+				this.budget.permits.release();
+				this.running.set(false);
+				ServerMetrics.add("job." + this.name + ".millis", System.currentTimeMillis() - startTime);
+			}
+		}
+
+		/**
+		 * Function to count a run skipped as the job is still running, the
+		 * running job does its work.
+		 */
+		private void skip() {
+			System.out.println("Job " + this.name + " still running, skipped.");
+			ServerMetrics.increment("job." + this.name + ".skipped");
+		}
+	}
+
+}	// End class MaintenanceScheduler
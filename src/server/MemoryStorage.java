@@ -0,0 +1,149 @@
+package server;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class to store messages in memory only, for load tests and benchmarks of
+ * the ingest and report paths without disk writes. Offsets are message
+ * indexes. Stored messages are never changed in place: appends only write
+ * past the end and a full array is copied into a larger one, so a reader
+ * holding the contents sees a fixed snapshot without locking.
+ * Messages are lost when the server stops.
+ * @author Elliott Waterman
+ */
+public class MemoryStorage implements MessageStorage {
+	/**
+	 * Number of messages the storage can hold before it first grows.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private volatile Contents contents;
+	private volatile long generation;
+
+	/**
+	 * Constructor to create empty storage.
+	 */
+	public MemoryStorage() {
+		this.contents = new Contents(new ArduinoMessage[INITIAL_CAPACITY], 0);
+		// Storage is empty after every start, so it is a new generation
+		this.generation = System.currentTimeMillis();
+	}
+
+	@Override
+	public boolean check() {
+		return true;
+	}
+
+	@Override
+	public synchronized long append(List<ArduinoMessage> newMessages) {
+		ArduinoMessage[] array = this.contents.messages;
+		int size = this.contents.size;
+		if (size + newMessages.size() > array.length) {
+			array = Arrays.copyOf(array, Math.max(size + newMessages.size(), array.length * 2));
+		}
+		for (ArduinoMessage message : newMessages) {
+			array[size++] = message;
+		}
+		this.contents = new Contents(array, size);
+		return size;
+	}
+
+	@Override
+	public ArrayList<ArduinoMessage> read(long startOffset, long endOffset) {
+		Contents snapshot = this.contents;
+		int start = (int) Math.max(0, startOffset);
+		int end = (int) Math.min(endOffset, snapshot.size);
+		ArrayList<ArduinoMessage> listOfMessages = new ArrayList<ArduinoMessage>(Math.max(0, end - start));
+		for (int index = start; index < end; index++) {
+			listOfMessages.add(snapshot.messages[index]);
+		}
+		return listOfMessages;
+	}
+
+	@Override
+	public ReadingCursor openCursor(long startOffset, long endOffset, ReadingFilter filter) {
+		final Contents snapshot = this.contents;
+		final int end = (int) Math.min(endOffset, snapshot.size);
+		return new ReadingCursor() {
+			private int index = (int) Math.max(0, startOffset);
+
+			@Override
+			public ArduinoMessage next() {
+				while (this.index < end) {
+					ArduinoMessage message = snapshot.messages[this.index++];
+					if ((filter == null) || filter.matches(message)) {
+						return message;
+					}
+				}
+				return null;
+			}
+
+			@Override
+			public void close() {
+				// Nothing to release
+			}
+		};
+	}
+
+	@Override
+	public long getEndOffset() {
+		return this.contents.size;
+	}
+
+	@Override
+	public long getGeneration() {
+		return this.generation;
+	}
+
+	@Override
+	public synchronized long replace(List<ArduinoMessage> newMessages, long snapshotOffset) {
+		Contents current = this.contents;
+		int tail = (int) Math.max(0, current.size - snapshotOffset);
+		ArduinoMessage[] array = new ArduinoMessage[Math.max(INITIAL_CAPACITY, (newMessages.size() + tail) * 2)];
+		int size = 0;
+		for (ArduinoMessage message : newMessages) {
+			array[size++] = message;
+		}
+		// Messages appended after the snapshot follow the new messages
+		System.arraycopy(current.messages, current.size - tail, array, size, tail);
+		size += tail;
+
+		// Readers of the old array keep their snapshot
+		this.contents = new Contents(array, size);
+		this.generation++;
+		return size;
+	}
+
+	@Override
+	public File getFile() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return "In-memory storage";
+	}
+
+	/**
+	 * Class to hold the message array and the number of messages in it, so
+	 * both are read together.
+	 */
+	private static class Contents {
+		private final ArduinoMessage[] messages;
+		private final int size;
+
+		/**
+		 * Constructor to set the contents.
+		 * @param messages The message array.
+		 * @param size The number of messages in the array.
+		 */
+		Contents(ArduinoMessage[] messages, int size) {
+			this.messages = messages;
+			this.size = size;
+		}
+	}
+
+}	// End class MemoryStorage
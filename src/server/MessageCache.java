@@ -0,0 +1,98 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class to hold the in-memory state built from the storage file, the parsed
+ * messages and the byte offset of the storage file they cover.
+ * @author Elliott Waterman
+ */
+public class MessageCache {
+	private final ArrayList<ArduinoMessage> listOfMessages;
+	private final List<MessageListener> listeners;
+	private long storageOffset;
+
+	/**
+	 * Constructor to create an empty cache covering no storage.
+	 */
+	public MessageCache() {
+		this.listOfMessages = new ArrayList<ArduinoMessage>();
+		this.listeners = new CopyOnWriteArrayList<MessageListener>();
+		this.storageOffset = 0;
+	}
+
+	/**
+	 * Function to add a listener that is told about every change to the
+	 * cache. The listener is given the current contents straight away.
+	 * @param listener The listener to add.
+	 */
+	public synchronized void addListener(MessageListener listener) {
+		this.listeners.add(listener);
+		listener.messagesReset(this.listOfMessages);
+	}
+
+	/**
+	 * Function to replace the contents of the cache.
+	 * @param messages The messages covering the storage file up to the offset.
+	 * @param storageOffset The byte offset of the storage file covered.
+	 */
+	public synchronized void reset(List<ArduinoMessage> messages, long storageOffset) {
+		this.listOfMessages.clear();
+		this.listOfMessages.addAll(messages);
+		this.storageOffset = storageOffset;
+		for (MessageListener listener : this.listeners) {
+			listener.messagesReset(this.listOfMessages);
+		}
+	}
+
+	/**
+	 * Function to add messages that were appended to the storage file.
+	 * @param messages The messages appended to the storage file.
+	 * @param storageOffset The byte offset of the storage file after appending.
+	 */
+	public synchronized void append(List<ArduinoMessage> messages, long storageOffset) {
+		this.listOfMessages.addAll(messages);
+		this.storageOffset = storageOffset;
+		for (MessageListener listener : this.listeners) {
+			listener.messagesAppended(messages);
+		}
+	}
+
+	/**
+	 * Function to add a single message that was appended to the storage file.
+	 * @param message The message appended to the storage file.
+	 * @param storageOffset The byte offset of the storage file after appending.
+	 */
+	public synchronized void append(ArduinoMessage message, long storageOffset) {
+		append(Collections.singletonList(message), storageOffset);
+	}
+
+	/**
+	 * Function to copy the cached messages so they can be used without
+	 * holding the cache lock.
+	 * @return A copy of the list of cached messages.
+	 */
+	public synchronized ArrayList<ArduinoMessage> getMessages() {
+		return new ArrayList<ArduinoMessage>(this.listOfMessages);
+	}
+
+	/**
+	 * Getter function to return the byte offset of the storage file covered.
+	 * @return The storage offset in bytes.
+	 */
+	public synchronized long getStorageOffset() {
+		return storageOffset;
+	}
+
+	/**
+	 * Function to create a consistent checkpoint of the cache contents.
+	 * @return A checkpoint of the messages and storage offset.
+	 */
+	public synchronized Checkpoint createCheckpoint() {
+		return new Checkpoint(getMessages(), this.storageOffset);
+	}
+
+}	// End class MessageCache
@@ -0,0 +1,23 @@
+package server;
+
+import java.util.List;
+
+/**
+ * Interface to be notified when messages are loaded into or appended to the
+ * message cache, used to keep indexes built on the messages up to date.
+ * @author Elliott Waterman
+ */
+public interface MessageListener {
+	/**
+	 * Function called when the cache contents are replaced.
+	 * @param messages All messages now in the cache.
+	 */
+	void messagesReset(List<ArduinoMessage> messages);
+
+	/**
+	 * Function called when messages are appended to the cache.
+	 * @param messages The appended messages.
+	 */
+	void messagesAppended(List<ArduinoMessage> messages);
+
+}	// End interface MessageListener
@@ -0,0 +1,48 @@
+package server;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class to hold the SIDs of the SMS that have readings in storage, kept up
+ * to date as readings arrive so an SMS already stored can be recognised
+ * without going through the readings.
+ * @author Elliott Waterman
+ */
+public class MessageSidIndex implements MessageListener {
+
+	private final Set<String> messageSids;
+
+	/**
+	 * Constructor to create an empty SID index.
+	 */
+	public MessageSidIndex() {
+		this.messageSids = new HashSet<String>();
+	}
+
+	@Override
+	public synchronized void messagesReset(List<ArduinoMessage> messages) {
+		this.messageSids.clear();
+		messagesAppended(messages);
+	}
+
+	@Override
+	public synchronized void messagesAppended(List<ArduinoMessage> messages) {
+		for (ArduinoMessage message : messages) {
+			if (message.getMessageSid() != null) {
+				this.messageSids.add(message.getMessageSid());
+			}
+		}
+	}
+
+	/**
+	 * Function to check whether an SMS has readings in storage.
+	 * @param messageSid The SID of the SMS.
+	 * @return True if a reading of the SMS is stored.
+	 */
+	public synchronized boolean contains(String messageSid) {
+		return this.messageSids.contains(messageSid);
+	}
+
+}	// End class MessageSidIndex
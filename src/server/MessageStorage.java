@@ -0,0 +1,82 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interface to store messages received from the stations. Storage is append
+ * only and addressed by offsets: the end offset returned by an append is a
+ * snapshot, reads up to it always see the same messages even while later
+ * messages are appended.
+ * @author Elliott Waterman
+ */
+public interface MessageStorage {
+	/**
+	 * Function to check the storage can be used, creating it if needed.
+	 * @return True if messages can be read and appended.
+	 * @throws IOException An IO exception caused by creating the storage.
+	 */
+	boolean check() throws IOException;
+
+	/**
+	 * Function to append a batch of messages to the end of the storage.
+	 * @param messages The messages to be stored.
+	 * @return The end offset of the storage after the messages.
+	 * @throws IOException An IO exception caused by writing the storage.
+	 */
+	long append(List<ArduinoMessage> messages) throws IOException;
+
+	/**
+	 * Function to read the messages between two offsets.
+	 * @param startOffset The offset to start reading from.
+	 * @param endOffset The offset to stop reading at.
+	 * @return The messages in the order they were stored.
+	 * @throws IOException An IO exception caused by reading the storage.
+	 */
+	ArrayList<ArduinoMessage> read(long startOffset, long endOffset) throws IOException;
+
+	/**
+	 * Function to open a cursor over the messages between two offsets.
+	 * @param startOffset The offset to start reading from.
+	 * @param endOffset The offset to stop reading at.
+	 * @param filter The filter messages must match, null for all messages.
+	 * @return A cursor which must be closed after use.
+	 * @throws IOException An IO exception caused by reading the storage.
+	 */
+	ReadingCursor openCursor(long startOffset, long endOffset, ReadingFilter filter) throws IOException;
+
+	/**
+	 * Function to return the current end offset of the storage.
+	 * @return The offset after the last stored message.
+	 */
+	long getEndOffset();
+
+	/**
+	 * Function to return the generation of the storage, which changes
+	 * whenever stored messages are replaced, so offsets taken before no
+	 * longer point at the same messages.
+	 * @return The generation of the storage.
+	 */
+	long getGeneration();
+
+	/**
+	 * Function to replace the messages stored before an offset, used to swap
+	 * in compacted storage. Messages stored after the offset are kept after
+	 * the new messages.
+	 * @param messages The messages replacing those before the offset.
+	 * @param snapshotOffset The offset the new messages were made from.
+	 * @return The end offset of the storage after the replacement.
+	 * @throws IOException An IO exception caused by writing the storage.
+	 */
+	long replace(List<ArduinoMessage> messages, long snapshotOffset) throws IOException;
+
+	/**
+	 * Function to return the file holding the storage, used to checkpoint
+	 * the messages read from it.
+	 * @return The storage file, or null if storage is not kept in a file.
+	 */
+	File getFile();
+
+}	// End interface MessageStorage
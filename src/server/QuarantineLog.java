@@ -0,0 +1,289 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class to store readings that were rejected by the SMS handler in a separate
+ * log file, together with a reason code, so they can be reprocessed later
+ * against updated validation rules.
+ * Each line is in the form: reason code, received epoch seconds, raw reading.
+ * An SMS quarantined whole, because its station is over the rate limit, has
+ * the SID, phone number and body with its line breaks escaped in place of
+ * the raw reading, and is split into readings when reprocessed.
+ * @author Elliott Waterman
+ */
+public class QuarantineLog {
+	/**
+	 * Separator for a comma separator value.
+	 */
+	private static final String CSV_SEPARATOR = ",";
+
+	private final File quarantineFile;
+	private BufferedWriter writer;
+	/**
+	 * SIDs of the SMS with quarantined readings, read from the file when
+	 * first needed.
+	 */
+	private Set<String> messageSids;
+
+	/**
+	 * Interface to store messages that now pass validation.
+	 */
+	public interface Promoter {
+		/**
+		 * Function to store a batch of promoted messages.
+		 * @param messages The messages that passed validation.
+		 * @throws IOException An IO exception caused by storing the messages.
+		 */
+		void promote(List<ArduinoMessage> messages) throws IOException;
+	}
+
+	/**
+	 * Class to define the outcome of reprocessing the quarantine log.
+	 */
+	public static class Result {
+		private final int promoted;
+		private final int remaining;
+
+		/**
+		 * Constructor to set the outcome counts.
+		 * @param promoted Number of readings promoted to storage.
+		 * @param remaining Number of readings left in quarantine.
+		 */
+		Result(int promoted, int remaining) {
+			this.promoted = promoted;
+			this.remaining = remaining;
+		}
+
+		/**
+		 * Getter function to return the number of promoted readings.
+		 * @return Number of readings promoted to storage.
+		 */
+		public int getPromoted() {
+			return promoted;
+		}
+
+		/**
+		 * Getter function to return the number of readings left.
+		 * @return Number of readings left in quarantine.
+		 */
+		public int getRemaining() {
+			return remaining;
+		}
+	}
+
+	/**
+	 * Constructor to set the quarantine log file.
+	 * @param quarantineFile The file rejected readings are appended to.
+	 */
+	public QuarantineLog(File quarantineFile) {
+		this.quarantineFile = quarantineFile;
+		this.writer = null;
+		this.messageSids = null;
+	}
+
+	/**
+	 * Function to append a rejected reading to the quarantine log. The
+	 * writer is kept open so each rejection costs a single write.
+	 * @param reason The reason the reading was rejected.
+	 * @param rawReading The reading as received, must not contain new lines.
+	 */
+	public synchronized void add(RejectReason reason, String rawReading) {
+		try {
+			if (this.writer == null) {
+				this.writer = new BufferedWriter(new FileWriter(this.quarantineFile, true));
+			}
+			this.writer.write(reason.getCode());
+			this.writer.write(CSV_SEPARATOR);
+			this.writer.write(Long.toString(System.currentTimeMillis() / 1000));
+			this.writer.write(CSV_SEPARATOR);
+			this.writer.write(rawReading);
+			this.writer.write(System.lineSeparator());
+			this.writer.flush();
+			if ((this.messageSids != null) && (reason != RejectReason.MISSING_PARAMETERS)) {
+				this.messageSids.add(getMessageSid(rawReading));
+			}
+		} catch (IOException ioXcp) {
+			System.out.println("Could not write to quarantine file.");
+			ioXcp.printStackTrace();
+			closeWriter();
+		}
+	}
+
+	/**
+	 * Function to append a whole SMS to the quarantine log in one write,
+	 * without decoding it.
+	 * @param reason The reason the SMS was rejected.
+	 * @param messageSid The SID of the SMS.
+	 * @param fromPhoneNumber The phone number of the station.
+	 * @param bodyText The text message body.
+	 */
+	public void addMessage(RejectReason reason, String messageSid, String fromPhoneNumber, String bodyText) {
+		add(reason, messageSid + CSV_SEPARATOR + fromPhoneNumber + CSV_SEPARATOR +
+			bodyText.replace("\r", "\\r").replace("\n", "\\n"));
+	}
+
+	/**
+	 * Function to reprocess every quarantined reading against the current
+	 * validation rules. Readings that now pass are promoted as one batch and
+	 * the rest are kept in the quarantine log with their updated reason.
+	 * @param promoter Where the promoted messages are stored.
+	 * @return The number of promoted and remaining readings.
+	 * @throws IOException An IO exception caused by reading or writing files.
+	 */
+	public synchronized Result reprocess(Promoter promoter) throws IOException {
+		if (!this.quarantineFile.isFile()) {
+			return new Result(0, 0);
+		}
+		closeWriter();
+
+		List<ArduinoMessage> passedMessages = new ArrayList<ArduinoMessage>();
+		List<String> remainingLines = new ArrayList<String>();
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(this.quarantineFile))) {
+			String inputLine;
+			while ((inputLine = reader.readLine()) != null) {
+				String[] parts = inputLine.split(CSV_SEPARATOR, 3);
+				if ((parts.length < 3) || (parts[0].length() != 1)) {
+					// Unknown line, keep it as it was
+					remainingLines.add(inputLine);
+					continue;
+				}
+
+				RejectReason reason = RejectReason.fromCode(parts[0].charAt(0));
+				if (reason == RejectReason.MISSING_PARAMETERS) {
+					// Cannot become a valid reading
+					remainingLines.add(inputLine);
+					continue;
+				}
+
+				for (String rawReading : getRawReadings(reason, parts[2])) {
+					ArduinoMessage message = new ArduinoMessage(rawReading);
+					RejectReason newReason = message.validate();
+					if (newReason == null) {
+						passedMessages.add(message);
+					} else {
+						remainingLines.add(newReason.getCode() + CSV_SEPARATOR +
+							parts[1] + CSV_SEPARATOR + rawReading);
+					}
+				}
+			}
+		}
+
+		// Store the promoted readings before removing them from quarantine
+		if (!passedMessages.isEmpty()) {
+			promoter.promote(passedMessages);
+		}
+
+		// Rewrite the quarantine log with the readings that still fail
+		File temporaryFile = new File(this.quarantineFile.getPath() + ".tmp");
+		try (BufferedWriter temporaryWriter = new BufferedWriter(new FileWriter(temporaryFile))) {
+			for (String line : remainingLines) {
+				temporaryWriter.write(line);
+				temporaryWriter.write(System.lineSeparator());
+			}
+		}
+		Files.move(temporaryFile.toPath(), this.quarantineFile.toPath(),
+			StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		// Read again when next needed, promoted SMS are now in storage
+		this.messageSids = null;
+
+		return new Result(passedMessages.size(), remainingLines.size());
+	}
+
+	/**
+	 * Function to check whether an SMS has readings in quarantine, readings
+	 * quarantined for missing parameters have no SID so are not included.
+	 * @param messageSid The SID of the SMS.
+	 * @return True if a reading of the SMS is quarantined.
+	 */
+	public synchronized boolean containsMessageSid(String messageSid) {
+		if (this.messageSids == null) {
+			this.messageSids = new HashSet<String>();
+			if (this.quarantineFile.isFile()) {
+				try (BufferedReader reader = new BufferedReader(new FileReader(this.quarantineFile))) {
+					String inputLine;
+					while ((inputLine = reader.readLine()) != null) {
+						String[] parts = inputLine.split(CSV_SEPARATOR, 3);
+						if ((parts.length == 3) && (parts[0].length() == 1) &&
+							(RejectReason.fromCode(parts[0].charAt(0)) != RejectReason.MISSING_PARAMETERS)) {
+							this.messageSids.add(getMessageSid(parts[2]));
+						}
+					}
+				} catch (IOException ioXcp) {
+					System.out.println("Could not read quarantine file.");
+					ioXcp.printStackTrace();
+					this.messageSids = null;
+					return false;
+				}
+			}
+		}
+		return this.messageSids.contains(messageSid);
+	}
+
+	/**
+	 * Function to split a quarantined SMS into its raw readings, other
+	 * quarantined lines are a single raw reading.
+	 * @param reason The reason the line was quarantined.
+	 * @param rawText The raw reading, or the SID, phone number and escaped body of an SMS.
+	 * @return The raw readings, each starting with the SID and phone number.
+	 */
+	private static List<String> getRawReadings(RejectReason reason, String rawText) {
+		String[] fields = rawText.split(CSV_SEPARATOR, 3);
+		if ((reason != RejectReason.RATE_LIMITED) || (fields.length < 3)) {
+			return Collections.singletonList(rawText);
+		}
+		String bodyText = fields[2].replace("\\r", "\r").replace("\\n", "\n");
+		List<String> rawReadings = new ArrayList<String>();
+		try {
+			for (String CSVMessage : CompactPayload.splitReadings(bodyText)) {
+				CSVMessage = CSVMessage.trim();
+				if (!CSVMessage.isEmpty()) {
+					rawReadings.add(fields[0] + CSV_SEPARATOR + fields[1] + CSV_SEPARATOR + CSVMessage);
+				}
+			}
+		} catch (IllegalArgumentException iaXcp) {
+			// Kept as it was, it is reported as malformed
+			return Collections.singletonList(rawText);
+		}
+		return rawReadings;
+	}
+
+	/**
+	 * Function to get the SID of the SMS a raw reading came from.
+	 * @param rawReading The reading as received, starting with the SID.
+	 * @return The SID of the SMS.
+	 */
+	private static String getMessageSid(String rawReading) {
+		int separatorIndex = rawReading.indexOf(CSV_SEPARATOR);
+		return (separatorIndex < 0) ? rawReading : rawReading.substring(0, separatorIndex);
+	}
+
+	/**
+	 * Function to close the open writer, it is reopened on the next write.
+	 */
+	private void closeWriter() {
+		if (this.writer == null) {
+			return;
+		}
+		try {
+			this.writer.close();
+		} catch (IOException ioXcp) {
+			ioXcp.printStackTrace();
+		}
+		this.writer = null;
+	}
+
+}	// End class QuarantineLog
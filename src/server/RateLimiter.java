@@ -0,0 +1,145 @@
+package server;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to limit the rate of requests per key (phone number or client
+ * address) with a token bucket for each key. A bucket holds up to a burst of
+ * tokens, refills at a steady rate and each request takes one token.
+ * @author Elliott Waterman
+ */
+public class RateLimiter {
+	/**
+	 * Number of buckets kept before idle full buckets are removed.
+	 */
+	private static final int MAX_IDLE_BUCKETS = 10000;
+	/**
+	 * Shortest time between removals of idle buckets, so a flood of new keys
+	 * does not make every request scan every bucket.
+	 */
+	private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	private final double burstSize;
+	private final double tokensPerSecond;
+	private final Map<String, TokenBucket> buckets;
+	private final AtomicLong lastSweepNanos;
+
+	/**
+	 * Constructor to set the size and refill rate of each bucket.
+	 * @param burstSize The largest number of requests allowed at once.
+	 * @param tokensPerSecond The steady number of requests allowed per second.
+	 */
+	public RateLimiter(double burstSize, double tokensPerSecond) {
+		this.burstSize = burstSize;
+		this.tokensPerSecond = tokensPerSecond;
+		this.buckets = new ConcurrentHashMap<String, TokenBucket>();
+		this.lastSweepNanos = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Function to take a token for a key if one is available.
+	 * @param key The phone number or client address making the request.
+	 * @return True if the request is allowed, false if it should be rejected.
+	 */
+	public boolean tryAcquire(String key) {
+		if (key == null) {
+			key = "";
+		}
+		long now = System.nanoTime();
+		if (this.buckets.size() > MAX_IDLE_BUCKETS) {
+			// Only the request that claims the sweep scans the buckets
+			long lastSweep = this.lastSweepNanos.get();
+			if ((now - lastSweep >= SWEEP_INTERVAL_NANOS) && this.lastSweepNanos.compareAndSet(lastSweep, now)) {
+				removeIdleBuckets(now);
+			}
+		}
+		TokenBucket bucket = this.buckets.computeIfAbsent(key, k -> new TokenBucket(this.burstSize, now));
+		return bucket.tryAcquire(now);
+	}
+
+	/**
+	 * Function to return how long until a key has a token again.
+	 * @param key The phone number or client address making the request.
+	 * @return The number of whole seconds to wait, at least 1.
+	 */
+	public long getRetryAfterSeconds(String key) {
+		TokenBucket bucket = this.buckets.get(key == null ? "" : key);
+		if (bucket == null) {
+			return 1;
+		}
+		return Math.max(1, (long) Math.ceil(bucket.getMissingTokens(System.nanoTime()) / this.tokensPerSecond));
+	}
+
+	/**
+	 * Function to remove buckets that have refilled completely, they behave
+	 * the same as a new bucket.
+	 * @param now The current time in nanoseconds.
+	 */
+	private void removeIdleBuckets(long now) {
+		Iterator<TokenBucket> iterator = this.buckets.values().iterator();
+		while (iterator.hasNext()) {
+			if (iterator.next().getMissingTokens(now) <= 0) {
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Class to hold the tokens of a single key.
+	 */
+	private class TokenBucket {
+		private double tokens;
+		private long lastRefillNanos;
+
+		/**
+		 * Constructor to create a full bucket.
+		 * @param tokens The number of tokens to start with.
+		 * @param now The current time in nanoseconds.
+		 */
+		TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.lastRefillNanos = now;
+		}
+
+		/**
+		 * Function to refill the bucket and take a token if available.
+		 * @param now The current time in nanoseconds.
+		 * @return True if a token was taken.
+		 */
+		synchronized boolean tryAcquire(long now) {
+			refill(now);
+			if (this.tokens >= 1) {
+				this.tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * Function to return the number of tokens needed to be full.
+		 * @param now The current time in nanoseconds.
+		 * @return The number of missing tokens.
+		 */
+		synchronized double getMissingTokens(long now) {
+			refill(now);
+			return burstSize - this.tokens;
+		}
+
+		/**
+		 * Function to add the tokens earned since the last refill.
+		 * @param now The current time in nanoseconds.
+		 */
+		private void refill(long now) {
+			double elapsedSeconds = (now - this.lastRefillNanos) / 1e9;
+			if (elapsedSeconds > 0) {
+				this.tokens = Math.min(burstSize, this.tokens + elapsedSeconds * tokensPerSecond);
+				this.lastRefillNanos = now;
+			}
+		}
+	}
+
+}	// End class RateLimiter
@@ -0,0 +1,19 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Interface to read stored messages one at a time, so a range of storage can
+ * be processed without collecting every message into a list.
+ * @author Elliott Waterman
+ */
+public interface ReadingCursor extends Closeable {
+	/**
+	 * Function to read the next message.
+	 * @return The next message, or null when there are no more messages.
+	 * @throws IOException An IO exception caused by reading storage.
+	 */
+	ArduinoMessage next() throws IOException;
+
+}	// End interface ReadingCursor
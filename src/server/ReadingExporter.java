@@ -0,0 +1,61 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Class to stream messages from a cursor to an output stream in CSV or
+ * newline delimited JSON format. Messages are written as they are read so
+ * memory use does not depend on the size of the export.
+ * @author Elliott Waterman
+ */
+public class ReadingExporter {
+	/**
+	 * Export format name for CSV, the same format as the storage file.
+	 */
+	public static final String FORMAT_CSV = "csv";
+	/**
+	 * Export format name for newline delimited JSON.
+	 */
+	public static final String FORMAT_NDJSON = "ndjson";
+
+	/**
+	 * Function to check an export format name is supported.
+	 * @param format The export format name.
+	 * @return True if the format is supported.
+	 */
+	public static boolean isSupportedFormat(String format) {
+		return FORMAT_CSV.equals(format) || FORMAT_NDJSON.equals(format);
+	}
+
+	/**
+	 * Function to write every message of a cursor to an output stream.
+	 * @param cursor The cursor to read messages from.
+	 * @param format The export format name.
+	 * @param output The output stream to write to, it is not closed.
+	 * @return The number of messages written.
+	 * @throws IOException An IO exception caused by reading or writing.
+	 */
+	public static long export(ReadingCursor cursor, String format, OutputStream output)
+			throws IOException {
+		boolean isJSON = FORMAT_NDJSON.equals(format);
+		Writer writer = new BufferedWriter(
+			new OutputStreamWriter(output, StandardCharsets.UTF_8), 64 * 1024);
+
+		long numberOfMessages = 0;
+		ArduinoMessage message;
+		while ((message = cursor.next()) != null) {
+			writer.write(isJSON ? message.parseToJSONString() : message.parseToCSVString());
+			writer.write('\n');
+			numberOfMessages++;
+		}
+		writer.flush();
+
+		return numberOfMessages;
+	}
+
+}	// End class ReadingExporter
@@ -0,0 +1,187 @@
+package server;
+
+/**
+ * Class to define which stored messages a request is interested in, by time
+ * range, station phone number, snake tag, RFID tag and temperature and
+ * weight ranges. A null station or tag matches every message. Filters can
+ * be checked on a storage file line before it is parsed, so only the lines
+ * that may match are made into messages.
+ * @author Elliott Waterman
+ */
+public class ReadingFilter {
+	private final long fromEpoch;
+	private final long toEpoch;
+	private final String station;
+	private final String snake;
+	private final String tag;
+	private final float minTemperature;
+	private final float maxTemperature;
+	private final float minWeight;
+	private final float maxWeight;
+
+	/**
+	 * Constructor to set the filter values, with any temperature, weight and
+	 * snake.
+	 * @param fromEpoch The start of the time range in epoch seconds.
+	 * @param toEpoch The end of the time range in epoch seconds (inclusive).
+	 * @param station The phone number of the station, null for all.
+	 * @param tag A snake or skink RFID tag, null for all.
+	 */
+	public ReadingFilter(long fromEpoch, long toEpoch, String station, String tag) {
+		this(fromEpoch, toEpoch, station, null, tag, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY,
+			Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Constructor to set the filter values.
+	 * @param fromEpoch The start of the time range in epoch seconds.
+	 * @param toEpoch The end of the time range in epoch seconds (inclusive).
+	 * @param station The phone number of the station, null for all.
+	 * @param snake The snake RFID tag, null for all.
+	 * @param tag A snake or skink RFID tag, null for all.
+	 * @param minTemperature The lowest temperature (inclusive).
+	 * @param maxTemperature The highest temperature (inclusive).
+	 * @param minWeight The lowest weight (inclusive).
+	 * @param maxWeight The highest weight (inclusive).
+	 */
+	public ReadingFilter(long fromEpoch, long toEpoch, String station, String snake, String tag,
+			float minTemperature, float maxTemperature, float minWeight, float maxWeight) {
+		this.fromEpoch = fromEpoch;
+		this.toEpoch = toEpoch;
+		this.station = station;
+		this.snake = snake;
+		this.tag = tag;
+		this.minTemperature = minTemperature;
+		this.maxTemperature = maxTemperature;
+		this.minWeight = minWeight;
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Function to check a message is valid and matches the filter.
+	 * @param message The message to check.
+	 * @return True if the message matches.
+	 */
+	public boolean matches(ArduinoMessage message) {
+		if (!message.checkDataExists()) {
+			return false;
+		}
+		long epoch = message.getEpochMillis();
+		if ((epoch < this.fromEpoch) || (epoch > this.toEpoch)) {
+			return false;
+		}
+		if ((this.station != null) && !this.station.equals(message.getPhoneNumber())) {
+			return false;
+		}
+		if ((this.snake != null) && !this.snake.equals(message.getSnakeRFID())) {
+			return false;
+		}
+		float temperature = message.getTemperature();
+		if ((temperature < this.minTemperature) || (temperature > this.maxTemperature)) {
+			return false;
+		}
+		float weight = message.getWeight();
+		if ((weight < this.minWeight) || (weight > this.maxWeight)) {
+			return false;
+		}
+		if ((this.tag != null) &&
+			!this.tag.equals(message.getSnakeRFID()) &&
+			!message.getSkinkRFIDs().contains(this.tag)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Function to check a storage file line before parsing it, looking only
+	 * at the fields the filter uses, cheapest first. A line that cannot be
+	 * ruled out (including one that does not parse) may match, it is then
+	 * parsed and checked with matches.
+	 * @param line The storage file line.
+	 * @return False if the line cannot match, true if it may.
+	 */
+	public boolean mayMatch(ReadingLine line) {
+		if ((this.station != null) && line.hasField(ReadingLine.PHONE_NUMBER_FIELD) &&
+			!line.fieldEquals(ReadingLine.PHONE_NUMBER_FIELD, this.station)) {
+			return false;
+		}
+		try {
+			if ((this.fromEpoch > Long.MIN_VALUE) || (this.toEpoch < Long.MAX_VALUE)) {
+				long epoch = line.parseLong(ReadingLine.EPOCH_FIELD);
+				if ((epoch < this.fromEpoch) || (epoch > this.toEpoch)) {
+					return false;
+				}
+			}
+			if ((this.snake != null) && line.hasField(ReadingLine.SNAKE_RFID_FIELD) &&
+				!line.fieldEquals(ReadingLine.SNAKE_RFID_FIELD, this.snake)) {
+				return false;
+			}
+			if ((this.minTemperature > Float.NEGATIVE_INFINITY) || (this.maxTemperature < Float.POSITIVE_INFINITY)) {
+				float temperature = line.parseFloat(ReadingLine.TEMPERATURE_FIELD);
+				if ((temperature < this.minTemperature) || (temperature > this.maxTemperature)) {
+					return false;
+				}
+			}
+			if ((this.minWeight > Float.NEGATIVE_INFINITY) || (this.maxWeight < Float.POSITIVE_INFINITY)) {
+				float weight = line.parseFloat(ReadingLine.WEIGHT_FIELD);
+				if ((weight < this.minWeight) || (weight > this.maxWeight)) {
+					return false;
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			// Leave the line to be parsed and rejected as a message
+			return true;
+		}
+		if (this.tag != null) {
+			// The tag is the snake or any skink after it
+			for (int field = ReadingLine.SNAKE_RFID_FIELD; line.hasField(field); field++) {
+				if (line.fieldEquals(field, this.tag)) {
+					return true;
+				}
+			}
+			return !line.hasField(ReadingLine.SNAKE_RFID_FIELD);
+		}
+		return true;
+	}
+
+	/**
+	 * Getter function to return the start of the time range.
+	 * @return The start of the time range in epoch seconds.
+	 */
+	public long getFromEpoch() {
+		return fromEpoch;
+	}
+
+	/**
+	 * Getter function to return the end of the time range.
+	 * @return The end of the time range in epoch seconds.
+	 */
+	public long getToEpoch() {
+		return toEpoch;
+	}
+
+	/**
+	 * Getter function to return the station phone number.
+	 * @return The station phone number, null for all.
+	 */
+	public String getStation() {
+		return station;
+	}
+
+	/**
+	 * Getter function to return the snake RFID tag.
+	 * @return The snake RFID tag, null for all.
+	 */
+	public String getSnake() {
+		return snake;
+	}
+
+	/**
+	 * Getter function to return the RFID tag.
+	 * @return The snake or skink RFID tag, null for all.
+	 */
+	public String getTag() {
+		return tag;
+	}
+
+}	// End class ReadingFilter
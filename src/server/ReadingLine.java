@@ -0,0 +1,200 @@
+package server;
+
+/**
+ * Class to look at the fields of a storage file line without parsing it into
+ * an ArduinoMessage. Fields are found as they are asked for, so checking the
+ * station of a reading only scans the start of the line. One object is
+ * reused for every line of a scan.
+ * @author Elliott Waterman
+ */
+public class ReadingLine {
+	/**
+	 * Separator for a comma separator value.
+	 */
+	private static final char CSV_SEPARATOR = ',';
+	/**
+	 * Index of each field in a storage file line.
+	 */
+	public static final int MESSAGE_SID_FIELD = 0;
+	public static final int PHONE_NUMBER_FIELD = 1;
+	public static final int EPOCH_FIELD = 2;
+	public static final int TEMPERATURE_FIELD = 3;
+	public static final int HUMIDITY_FIELD = 4;
+	public static final int WEIGHT_FIELD = 5;
+	public static final int SNAKE_RFID_FIELD = 6;
+	/**
+	 * Number of fields remembered before the array grows, enough for a
+	 * reading with several skinks.
+	 */
+	private static final int INITIAL_FIELDS = 16;
+
+	private String line;
+	private int[] fieldStarts;
+	private int numberOfFieldsFound;
+	private boolean allFieldsFound;
+
+	/**
+	 * Constructor to create a reader of lines, set with each line in turn.
+	 */
+	public ReadingLine() {
+		this.fieldStarts = new int[INITIAL_FIELDS];
+	}
+
+	/**
+	 * Function to look at a new line, forgetting the fields of the last one.
+	 * @param line The storage file line.
+	 */
+	public void set(String line) {
+		this.line = line;
+		this.fieldStarts[0] = 0;
+		this.numberOfFieldsFound = 1;
+		this.allFieldsFound = false;
+	}
+
+	/**
+	 * Getter function to return the line.
+	 * @return The storage file line.
+	 */
+	public String getLine() {
+		return line;
+	}
+
+	/**
+	 * Function to check whether the line has a field.
+	 * @param field The index of the field.
+	 * @return True if the line has the field.
+	 */
+	public boolean hasField(int field) {
+		return findField(field);
+	}
+
+	/**
+	 * Function to compare a field with a value without copying the field.
+	 * @param field The index of the field.
+	 * @param value The value to compare with.
+	 * @return True if the line has the field and it equals the value.
+	 */
+	public boolean fieldEquals(int field, String value) {
+		if (!findField(field)) {
+			return false;
+		}
+		int start = this.fieldStarts[field];
+		int length = getFieldEnd(field) - start;
+		return (length == value.length()) && this.line.regionMatches(start, value, 0, length);
+	}
+
+	/**
+	 * Function to compare a field with a value in the order of
+	 * String.compareTo, without copying the field.
+	 * @param field The index of the field, the line must have it.
+	 * @param value The value to compare with.
+	 * @return Less than 0, 0 or more than 0 as the field is before, equal to or after the value.
+	 */
+	public int compareField(int field, String value) {
+		findField(field);
+		int start = this.fieldStarts[field];
+		int length = getFieldEnd(field) - start;
+		int shortest = Math.min(length, value.length());
+		for (int index = 0; index < shortest; index++) {
+			int difference = this.line.charAt(start + index) - value.charAt(index);
+			if (difference != 0) {
+				return difference;
+			}
+		}
+		return length - value.length();
+	}
+
+	/**
+	 * Function to parse a whole number field, in the same way as
+	 * Long.parseLong but without copying the field.
+	 * @param field The index of the field.
+	 * @return The number in the field.
+	 * @throws NumberFormatException If the line has no such field or it is not a number.
+	 */
+	public long parseLong(int field) {
+		if (!findField(field)) {
+			throw new NumberFormatException("No field " + field);
+		}
+		int index = this.fieldStarts[field];
+		int end = getFieldEnd(field);
+		boolean negative = false;
+		if ((index < end) && ((this.line.charAt(index) == '-') || (this.line.charAt(index) == '+'))) {
+			negative = this.line.charAt(index) == '-';
+			index++;
+		}
+		// Longer numbers may overflow, leave them to Long.parseLong
+		if ((index == end) || (end - index > 18)) {
+			return Long.parseLong(getField(field));
+		}
+		long value = 0;
+		for (; index < end; index++) {
+			char digit = this.line.charAt(index);
+			if ((digit < '0') || (digit > '9')) {
+				throw new NumberFormatException("Not a number in field " + field);
+			}
+			value = (value * 10) + (digit - '0');
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Function to parse a decimal number field in the same way as the
+	 * ArduinoMessage does.
+	 * @param field The index of the field.
+	 * @return The number in the field.
+	 * @throws NumberFormatException If the line has no such field or it is not a number.
+	 */
+	public float parseFloat(int field) {
+		if (!findField(field)) {
+			throw new NumberFormatException("No field " + field);
+		}
+		return Float.parseFloat(getField(field));
+	}
+
+	/**
+	 * Function to copy a field.
+	 * @param field The index of the field, the line must have it.
+	 * @return The text of the field.
+	 */
+	public String getField(int field) {
+		findField(field);
+		return this.line.substring(this.fieldStarts[field], getFieldEnd(field));
+	}
+
+	/**
+	 * Function to find the start of fields up to a field, scanning on from
+	 * the last field found.
+	 * @param field The index of the field.
+	 * @return True if the line has the field.
+	 */
+	private boolean findField(int field) {
+		while ((this.numberOfFieldsFound <= field) && !this.allFieldsFound) {
+			int separator = this.line.indexOf(CSV_SEPARATOR,
+				this.fieldStarts[this.numberOfFieldsFound - 1]);
+			if (separator < 0) {
+				this.allFieldsFound = true;
+				break;
+			}
+			if (this.numberOfFieldsFound == this.fieldStarts.length) {
+				int[] grownStarts = new int[this.fieldStarts.length * 2];
+				System.arraycopy(this.fieldStarts, 0, grownStarts, 0, this.fieldStarts.length);
+				this.fieldStarts = grownStarts;
+			}
+			this.fieldStarts[this.numberOfFieldsFound++] = separator + 1;
+		}
+		return field < this.numberOfFieldsFound;
+	}
+
+	/**
+	 * Function to return the end of a field already found.
+	 * @param field The index of the field.
+	 * @return The index in the line after the last character of the field.
+	 */
+	private int getFieldEnd(int field) {
+		if (findField(field + 1)) {
+			return this.fieldStarts[field + 1] - 1;
+		}
+		return this.line.length();
+	}
+
+}	// End class ReadingLine
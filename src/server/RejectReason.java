@@ -0,0 +1,62 @@
+package server;
+
+/**
+ * Enum to define why a reading was rejected and stored in the quarantine log.
+ * Each reason has a single character code used in the log file.
+ * @author Elliott Waterman
+ */
+public enum RejectReason {
+	/**
+	 * The webhook did not contain a message SID, phone number or body.
+	 */
+	MISSING_PARAMETERS('P'),
+	/**
+	 * A field is missing or could not be parsed.
+	 */
+	MALFORMED('M'),
+	/**
+	 * A reading is outside the bounds of the validation rules.
+	 */
+	OUT_OF_BOUNDS('B'),
+	/**
+	 * The storage file could not be written to.
+	 */
+	STORAGE_ERROR('S'),
+	/**
+	 * The station sent more messages than its rate limit allows.
+	 */
+	RATE_LIMITED('R');
+
+	private final char code;
+
+	/**
+	 * Constructor to set the log file code of the reason.
+	 * @param code The single character code.
+	 */
+	RejectReason(char code) {
+		this.code = code;
+	}
+
+	/**
+	 * Getter function to return the log file code of the reason.
+	 * @return The single character code.
+	 */
+	public char getCode() {
+		return code;
+	}
+
+	/**
+	 * Function to find the reason of a log file code.
+	 * @param code The single character code.
+	 * @return The matching reason, or null if the code is unknown.
+	 */
+	public static RejectReason fromCode(char code) {
+		for (RejectReason reason : values()) {
+			if (reason.code == code) {
+				return reason;
+			}
+		}
+		return null;
+	}
+
+}	// End enum RejectReason
@@ -0,0 +1,260 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+/**
+ * Class to keep a follower server in step with a leader server by tailing
+ * the leader's storage over HTTP. Every poll asks the leader for the storage
+ * written after the last offset applied, the readings are applied to local
+ * storage and the in-memory messages in one batch. The leader's storage
+ * generation changes when its storage is replaced (compaction), the leader
+ * then answers 409 and the follower starts again from an empty storage,
+ * counted as not caught up until a poll has fetched the new generation.
+ * The generation and offsets applied are kept in a state file, so a
+ * restarted follower carries on where it stopped.
+ * @author Elliott Waterman
+ */
+public class ReplicationFollower {
+	/**
+	 * Path of the replication log on the leader.
+	 */
+	public static final String LOG_PATH = "/replication/log";
+	/**
+	 * Response headers holding the leader's storage generation and the
+	 * offset the response reads up to.
+	 */
+	public static final String GENERATION_HEADER = "X-Replication-Generation";
+	public static final String END_OFFSET_HEADER = "X-Replication-End-Offset";
+	/**
+	 * Last line of a complete replication log response, a response cut short
+	 * is not applied.
+	 */
+	public static final String END_MARKER = "#end";
+	/**
+	 * Time between polls of the leader.
+	 */
+	private static final long POLL_INTERVAL_MILLIS = 1000;
+	/**
+	 * Time to wait for the leader before a poll fails.
+	 */
+	private static final int TIMEOUT_MILLIS = 30 * 1000;
+
+	/**
+	 * Interface to apply the leader's readings to the follower.
+	 */
+	public interface Applier {
+		/**
+		 * Function to empty local storage and the in-memory messages.
+		 * @throws IOException An IO exception caused by replacing storage.
+		 */
+		void reset() throws IOException;
+
+		/**
+		 * Function to append readings from the leader.
+		 * @param messages The readings, in the leader's storage order.
+		 * @return The end offset of local storage after appending.
+		 * @throws IOException An IO exception caused by writing storage.
+		 */
+		long apply(List<ArduinoMessage> messages) throws IOException;
+	}
+
+	private final String leaderURL;
+	private final MessageStorage storage;
+	private final File stateFile;
+	private final Applier applier;
+	private final CloseableHttpClient httpClient;
+	private final ScheduledExecutorService executor;
+	private long generation;
+	private long leaderOffset;
+	private volatile long lastSyncMillis;
+
+	/**
+	 * Constructor to set the leader followed and where its readings go.
+	 * @param leaderURL The address of the leader, such as http://localhost:4567.
+	 * @param storage The local storage.
+	 * @param stateFile The file keeping the replication state.
+	 * @param applier The receiver of the leader's readings.
+	 */
+	public ReplicationFollower(String leaderURL, MessageStorage storage, File stateFile, Applier applier) {
+		this.leaderURL = leaderURL.endsWith("/") ?
+			leaderURL.substring(0, leaderURL.length() - 1) : leaderURL;
+		this.storage = storage;
+		this.stateFile = stateFile;
+		this.applier = applier;
+		RequestConfig requestConfig = RequestConfig.custom()
+			.setConnectTimeout(TIMEOUT_MILLIS)
+			.setSocketTimeout(TIMEOUT_MILLIS)
+			.build();
+		this.httpClient = HttpClients.custom().setDefaultRequestConfig(requestConfig).build();
+		this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "replication");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Function to load the replication state and start polling the leader.
+	 */
+	public void start() {
+		readState();
+		System.out.println("Following " + this.leaderURL + " from generation " +
+			this.generation + " offset " + this.leaderOffset);
+		this.executor.scheduleWithFixedDelay(() -> {
+			try {
+				poll();
+			} catch (IOException | RuntimeException xcp) {
+				// A failed poll is tried again, the lag shows how long for
+				System.out.println("Replication poll failed: " + xcp.getMessage());
+				ServerMetrics.increment("replication.failed");
+			}
+		}, 0, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Function to return how far the follower may be behind the leader, the
+	 * time since a poll last caught up with the leader's storage.
+	 * @return The replication lag in milliseconds, Long.MAX_VALUE if not caught up since starting or resyncing.
+	 */
+	public long getLagMillis() {
+		long lastSync = this.lastSyncMillis;
+		return (lastSync == 0) ? Long.MAX_VALUE : System.currentTimeMillis() - lastSync;
+	}
+
+	/**
+	 * Function to fetch and apply the storage the leader wrote since the
+	 * last poll.
+	 * @throws IOException An IO exception caused by fetching or applying.
+	 */
+	private void poll() throws IOException {
+		long requestTime = System.currentTimeMillis();
+		HttpGet request = new HttpGet(this.leaderURL + LOG_PATH +
+			"?generation=" + this.generation + "&offset=" + this.leaderOffset);
+
+		ArrayList<ArduinoMessage> messages = new ArrayList<ArduinoMessage>();
+		long endOffset;
+		try (CloseableHttpResponse response = this.httpClient.execute(request)) {
+			int status = response.getStatusLine().getStatusCode();
+			if (status == HttpStatus.SC_CONFLICT) {
+				// Offsets of another generation mean nothing here
+				long leaderGeneration = parseHeader(response.getFirstHeader(GENERATION_HEADER));
+				System.out.println("Leader storage is generation " + leaderGeneration +
+					", replicating again from the start.");
+				// Storage is empty until the next poll catches up, not in step
+				this.lastSyncMillis = 0;
+				this.applier.reset();
+				this.generation = leaderGeneration;
+				this.leaderOffset = 0;
+				writeState(this.storage.getEndOffset());
+				ServerMetrics.increment("replication.resyncs");
+				return;
+			}
+			if (status != HttpStatus.SC_OK) {
+				throw new IOException("Leader answered " + response.getStatusLine());
+			}
+			endOffset = parseHeader(response.getFirstHeader(END_OFFSET_HEADER));
+
+			// Collect the whole response first, a partial batch is never applied
+			boolean complete = false;
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+					response.getEntity().getContent(), StandardCharsets.UTF_8))) {
+				String inputLine;
+				while ((inputLine = reader.readLine()) != null) {
+					if (inputLine.equals(END_MARKER)) {
+						complete = true;
+						break;
+					}
+					messages.add(new ArduinoMessage(inputLine));
+				}
+			}
+			if (!complete) {
+				throw new IOException("Replication log response was cut short.");
+			}
+		}
+
+		if (!messages.isEmpty()) {
+			long localEndOffset = this.applier.apply(messages);
+			this.leaderOffset = endOffset;
+			writeState(localEndOffset);
+			ServerMetrics.add("replication.messages", messages.size());
+		} else if (endOffset != this.leaderOffset) {
+			this.leaderOffset = endOffset;
+			writeState(this.storage.getEndOffset());
+		}
+		this.lastSyncMillis = requestTime;
+	}
+
+	/**
+	 * Function to read the replication state. State that does not match
+	 * local storage, such as after a crash between appending and writing the
+	 * state, is dropped so the follower replicates again from the start.
+	 */
+	private void readState() {
+		this.generation = 0;
+		this.leaderOffset = 0;
+		if (!this.stateFile.isFile()) {
+			return;
+		}
+		try {
+			String[] fields = new String(Files.readAllBytes(this.stateFile.toPath()),
+				StandardCharsets.UTF_8).trim().split(" ");
+			if ((fields.length == 3) && (Long.parseLong(fields[2]) == this.storage.getEndOffset())) {
+				this.generation = Long.parseLong(fields[0]);
+				this.leaderOffset = Long.parseLong(fields[1]);
+			} else {
+				System.out.println("Replication state does not match storage.");
+			}
+		} catch (IOException | NumberFormatException xcp) {
+			System.out.println("Replication state could not be read.");
+		}
+	}
+
+	/**
+	 * Function to write the replication state, in the form
+	 * "generation leaderOffset localEndOffset".
+	 * @param localEndOffset The end offset of local storage.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	private void writeState(long localEndOffset) throws IOException {
+		try (FileWriter writer = new FileWriter(this.stateFile)) {
+			writer.write(this.generation + " " + this.leaderOffset + " " + localEndOffset);
+		}
+	}
+
+	/**
+	 * Function to parse a number response header.
+	 * @param header The header, may be null.
+	 * @return The number in the header.
+	 * @throws IOException If the header is missing or not a number.
+	 */
+	private static long parseHeader(Header header) throws IOException {
+		if (header == null) {
+			throw new IOException("Leader response has no replication headers.");
+		}
+		try {
+			return Long.parseLong(header.getValue().trim());
+		} catch (NumberFormatException nfe) {
+			throw new IOException("Invalid replication header " + header, nfe);
+		}
+	}
+
+}	// End class ReplicationFollower
@@ -1,5 +1,6 @@
 package server;
 
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -37,6 +38,12 @@ public class ReportGenerator {
 	 * @return An HTML string containing a table of report data.
 	 */
 	public static String generateHTML(ArrayList<ArduinoMessage> listOfMessages) {
+		ServerEvents.ReportRenderEvent event = new ServerEvents.ReportRenderEvent();
+		event.begin();
+		
+		// Libraries are served from the bundle when added to the assets directory
+		AssetBundle assets = AssetBundle.current();
+		
 		// Create HTML document type and header
     	StringBuilder HTMLReport = new StringBuilder("<!doctype html><html lang=\"en\">" +
     		"<head>" +
@@ -45,16 +52,19 @@ public class ReportGenerator {
 			  "<meta name=\"description\" content=\"Data report utilising SMS received from the smart basking station\">" +
 			  "<meta name=\"author\" content=\"Elliott Waterman\">" +
 			  "<!-- Favicon -->" +
-			  "<link rel=\"shortcut icon\" type=\"image/x-icon\" href=\"assets/favicon.ico\">" +
+			  "<link rel=\"shortcut icon\" type=\"image/x-icon\" href=\"" + assets.getURL("favicon.ico") + "\">" +
 			  "<!-- jQuery include -->" +
-			  "<script src=\"https://cdnjs.cloudflare.com/ajax/libs/jquery/3.3.1/jquery.min.js\"></script>" +
+			  "<script src=\"" + assets.getURL("jquery.min.js", 
+				  "https://cdnjs.cloudflare.com/ajax/libs/jquery/3.3.1/jquery.min.js") + "\"></script>" +
 			  "<!-- Tabulator include -->" +
-			  "<link rel=\"stylesheet\" href=\"https://cdnjs.cloudflare.com/ajax/libs/tabulator/4.1.4/css/tabulator.min.css\">" +
-			  "<script type=\"text/javascript\" src=\"https://cdnjs.cloudflare.com/ajax/libs/tabulator/4.1.4/js/tabulator.min.js\"></script>" +
+			  "<link rel=\"stylesheet\" href=\"" + assets.getURL("tabulator.min.css", 
+				  "https://cdnjs.cloudflare.com/ajax/libs/tabulator/4.1.4/css/tabulator.min.css") + "\">" +
+			  "<script type=\"text/javascript\" src=\"" + assets.getURL("tabulator.min.js", 
+				  "https://cdnjs.cloudflare.com/ajax/libs/tabulator/4.1.4/js/tabulator.min.js") + "\"></script>" +
 			  "<!-- Stylesheet -->" +
-			  "<link rel=\"stylesheet\" href=\"assets/styles.css\">" +
+			  "<link rel=\"stylesheet\" href=\"" + assets.getURL("styles.css") + "\">" +
 			  "<!-- JavaScript -->" +
-			  "<script type=\"text/javascript\" src=\"assets/main.js\"></script>" +
+			  "<script type=\"text/javascript\" src=\"" + assets.getURL("main.js") + "\"></script>" +
 			"</head>" +
 			"<body>");
     	
@@ -62,8 +72,8 @@ public class ReportGenerator {
     	HTMLReport.append("<h1>Smart Boa Snake Basking Station</h1>");
     	HTMLReport.append("<h2>Report Viewer</h2>");
     	
-    	//Download report file, SBSBS.csv
-    	HTMLReport.append("<a href=\"SBSBS.csv\">");
+    	//Download report file, exported from storage
+    	HTMLReport.append("<a href=\"/export\">");
     	HTMLReport.append("<button class=\"btn\">Download CSV Report File</button>");
     	HTMLReport.append("</a>");
     	
@@ -136,7 +146,16 @@ public class ReportGenerator {
 		HTMLReport.append("</body></html>");
     	
 		// Return completed HTML string
-    	return HTMLReport.toString();
+    	String HTMLString = HTMLReport.toString();
+    	event.end();
+    	// Only count the bytes of renders slow enough to be recorded
+    	if (event.shouldCommit()) {
+    		event.rows = listOfMessages.size();
+    		event.bytes = HTMLString.getBytes(StandardCharsets.UTF_8).length;
+    		event.commit();
+    	}
+    	
+    	return HTMLString;
 	}
 	
 }	// End class ReportGenerator
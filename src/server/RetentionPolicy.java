@@ -0,0 +1,117 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Class to define how long readings are kept raw. Readings older than the
+ * raw retention are reduced to hourly aggregates and the first and last
+ * reading of each snake visit. The policy is read from a properties file
+ * each time it is applied, without one every reading is kept raw.
+ * @author Elliott Waterman
+ */
+public class RetentionPolicy {
+	/**
+	 * Properties file that sets the retention policy.
+	 */
+	private static final File POLICY_FILE = new File("retention.properties");
+	/**
+	 * Default longest time between readings of a snake in the same visit.
+	 */
+	private static final long DEFAULT_VISIT_GAP_MINUTES = 10;
+	/**
+	 * Number of seconds in a day.
+	 */
+	private static final long SECONDS_PER_DAY = 24 * 60 * 60;
+
+	private final int rawDays;
+	private final long visitGapSeconds;
+
+	/**
+	 * Constructor to set the retention values.
+	 * @param rawDays Number of days readings are kept raw, 0 to keep every reading raw.
+	 * @param visitGapSeconds Longest time between readings of a snake in the same visit.
+	 */
+	public RetentionPolicy(int rawDays, long visitGapSeconds) {
+		this.rawDays = rawDays;
+		this.visitGapSeconds = visitGapSeconds;
+	}
+
+	/**
+	 * Function to load the policy from the properties file, keys missing
+	 * from the file use their default.
+	 * @return The loaded retention policy.
+	 */
+	public static RetentionPolicy load() {
+		Properties properties = new Properties();
+		if (POLICY_FILE.isFile()) {
+			try (InputStream input = new FileInputStream(POLICY_FILE)) {
+				properties.load(input);
+			} catch (IOException ioXcp) {
+				System.out.println("Retention policy could not be read, keeping readings raw.");
+				ioXcp.printStackTrace();
+			}
+		}
+
+		return new RetentionPolicy(
+			(int) getLong(properties, "raw.days", 0),
+			getLong(properties, "visit.gap.minutes", DEFAULT_VISIT_GAP_MINUTES) * 60);
+	}
+
+	/**
+	 * Function to read a whole number property.
+	 * @param properties The loaded properties.
+	 * @param key The property key.
+	 * @param defaultValue The value used when the key is missing or invalid.
+	 * @return The property value or the default.
+	 */
+	private static long getLong(Properties properties, String key, long defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Math.max(0, Long.parseLong(value.trim()));
+		} catch (NumberFormatException nfe) {
+			System.out.println("Invalid retention policy " + key + "=" + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Function to check whether old readings are reduced.
+	 * @return True if readings are only kept raw for a number of days.
+	 */
+	public boolean isEnabled() {
+		return this.rawDays > 0;
+	}
+
+	/**
+	 * Function to return the time before which readings are reduced, the
+	 * start of an hour so hourly aggregates always cover whole hours.
+	 * @param nowEpoch The current time in epoch seconds.
+	 * @return The cutoff in epoch seconds.
+	 */
+	public long getCutoffEpoch(long nowEpoch) {
+		return HourlyAggregate.getHourEpoch(nowEpoch - (this.rawDays * SECONDS_PER_DAY));
+	}
+
+	/**
+	 * Getter function to return the longest time between readings of a
+	 * snake in the same visit.
+	 * @return The visit gap in seconds.
+	 */
+	public long getVisitGapSeconds() {
+		return visitGapSeconds;
+	}
+
+	@Override
+	public String toString() {
+		return isEnabled() ? "Retention: raw for " + this.rawDays + " days, visits split after " +
+			(this.visitGapSeconds / 60) + " minutes" : "Retention: all readings raw";
+	}
+
+}	// End class RetentionPolicy
@@ -2,26 +2,38 @@ package server;
 
 import com.twilio.twiml.MessagingResponse;
 
-import spark.Spark;
+import spark.Request;
 import static spark.Spark.*;
 //import static spark.Spark.get;
 //import static spark.Spark.post;
 
-import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPOutputStream;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.client.utils.URLEncodedUtils;
@@ -34,22 +46,148 @@ import org.apache.http.client.utils.URLEncodedUtils;
  */
 public class SMSReceiverReportViewer {
 	/**
-	 * Separator for a comma separator value.
+	 * Port the server listens on, the server.port system property can 
+	 * change it so a leader and follower can run on one machine.
 	 */
-	private static final int PORT_NUMBER = 4567;
+	private static final int PORT_NUMBER = Integer.getInteger("server.port", 4567);
 	/**
 	 * A TwiML XML string that defines when no message is sent as a response.
 	 */
 	private static final String NO_MESSAGE_REPLY = 
 		new MessagingResponse.Builder().build().toXml();
 	/**
-	 * Data storage file for the Smart Boa snake basking station.
+	 * Data storage for the Smart Boa snake basking station, a CSV file unless
+	 * storage.properties configures another backend.
 	 */
-	private static final File STORAGE_FILE = new File("SBSBS.csv");
+	private static final MessageStorage STORAGE = StorageBackend.createConfigured();
 	/**
 	 * Separator for a comma separator value.
 	 */
 	private static final String CSV_SEPARATOR = ",";
+	/**
+	 * Checkpoint file of the in-memory messages, used for fast restarts.
+	 */
+	private static final File CHECKPOINT_FILE = new File("SBSBS.checkpoint");
+	/**
+	 * Schedule of checkpoints of the in-memory messages (every 15 minutes).
+	 */
+	private static final String CHECKPOINT_SCHEDULE = "*/15 * * * *";
+	/**
+	 * Lock held while writing a checkpoint, the scheduled job and the
+	 * shutdown hook share one temporary file.
+	 */
+	private static final Object CHECKPOINT_LOCK = new Object();
+	/**
+	 * Schedule of the storage compaction and retention (every night at 03:00).
+	 */
+	private static final String COMPACTION_SCHEDULE = "0 3 * * *";
+	/**
+	 * Daily window when the stations send their readings (from 22:55), 
+	 * background jobs wait until it ends.
+	 */
+	private static final LocalTime QUIET_START = LocalTime.of(22, 45);
+	private static final LocalTime QUIET_END = LocalTime.of(23, 30);
+	/**
+	 * In-memory messages parsed from the storage file.
+	 */
+	private static final MessageCache MESSAGE_CACHE = new MessageCache();
+	/**
+	 * Log of readings that were rejected, kept for reprocessing.
+	 */
+	private static final QuarantineLog QUARANTINE_LOG = 
+		new QuarantineLog(new File("SBSBS_quarantine.csv"));
+	/**
+	 * Hourly aggregates of the readings reduced by the retention policy.
+	 */
+	private static final HourlyAggregateLog HOURLY_AGGREGATE_LOG = 
+		new HourlyAggregateLog(new File("SBSBS_hourly.csv"));
+	/**
+	 * Downsampled time series of the in-memory messages for charts.
+	 */
+	private static final ChartIndex CHART_INDEX = new ChartIndex();
+	/**
+	 * Default and maximum number of points per chart series.
+	 */
+	private static final int DEFAULT_CHART_POINTS = 1000;
+	private static final int MAX_CHART_POINTS = 10000;
+	/**
+	 * Counts of the skinks present while each snake basked, per day.
+	 */
+	private static final CoOccurrenceIndex CO_OCCURRENCE_INDEX = new CoOccurrenceIndex();
+	/**
+	 * Default and maximum number of tags or edges in a co-occurrence result.
+	 */
+	private static final int DEFAULT_CO_OCCURRENCE_LIMIT = 100;
+	private static final int MAX_CO_OCCURRENCE_LIMIT = 10000;
+	/**
+	 * Sketches of the distinct snakes and skinks per station per hour and day.
+	 */
+	private static final DistinctTagIndex DISTINCT_TAG_INDEX = new DistinctTagIndex();
+	/**
+	 * SIDs of the SMS with stored readings.
+	 */
+	private static final MessageSidIndex MESSAGE_SID_INDEX = new MessageSidIndex();
+	/**
+	 * SIDs of the SMS being ingested, so the webhook and a backfill do not 
+	 * both store the same SMS.
+	 */
+	private static final Set<String> INGESTING_SIDS = new HashSet<String>();
+	/**
+	 * Number of message history pages fetched at the same time by a backfill.
+	 */
+	private static final int BACKFILL_CONCURRENT_REQUESTS = 4;
+	/**
+	 * Environment variables holding the Twilio account used by a backfill, 
+	 * the twilio.api.url system property can point it at a stub.
+	 */
+	private static final String TWILIO_ACCOUNT_SID_VARIABLE = "TWILIO_ACCOUNT_SID";
+	private static final String TWILIO_AUTH_TOKEN_VARIABLE = "TWILIO_AUTH_TOKEN";
+	/**
+	 * Address of the leader server when this server is a read-only follower, 
+	 * set with the replication.leader system property.
+	 */
+	private static final String REPLICATION_LEADER = System.getProperty("replication.leader");
+	/**
+	 * State of a follower: the leader storage generation and offsets applied.
+	 */
+	private static final File REPLICATION_STATE_FILE = new File("SBSBS.replication");
+	/**
+	 * Largest replication lag a follower serves reads with, set with the 
+	 * replication.max.lag.seconds system property (default 60 seconds).
+	 */
+	private static final long MAX_REPLICATION_LAG_MILLIS = 
+		Long.getLong("replication.max.lag.seconds", 60) * 1000;
+	/**
+	 * Generation of storage the in-memory message offsets belong to, changed 
+	 * with the in-memory messages when storage is replaced.
+	 */
+	private static volatile long cacheGeneration;
+	/**
+	 * Rate limit of webhooks per station phone number, a burst of 60 then 
+	 * 1 per second. Twilio does not retry a webhook, so readings over the 
+	 * limit are quarantined rather than refused.
+	 */
+	private static final RateLimiter SMS_RATE_LIMITER = new RateLimiter(60, 1);
+	/**
+	 * Rate limit of report page requests per client, a burst of 10 then 
+	 * 1 every 5 seconds.
+	 */
+	private static final RateLimiter REPORT_RATE_LIMITER = new RateLimiter(10, 0.2);
+	/**
+	 * Number of report pages that can be rendered at the same time.
+	 */
+	private static final Semaphore REPORT_RENDER_PERMITS = 
+		new Semaphore(Math.max(2, Runtime.getRuntime().availableProcessors() / 2));
+	/**
+	 * Request attribute set when a report render permit is held.
+	 */
+	private static final String RENDER_PERMIT_ATTRIBUTE = "renderPermit";
+	/**
+	 * Whether requests come through a proxy that appends the client address 
+	 * to X-Forwarded-For (such as ngrok), set with the trusted.proxy system 
+	 * property. Without it the header is ignored, any client can write it.
+	 */
+	private static final boolean TRUSTED_PROXY = Boolean.getBoolean("trusted.proxy");
 	
 	/**
 	 * Java main application class to run the environment and services.
@@ -62,14 +200,11 @@ public class SMSReceiverReportViewer {
         port(PORT_NUMBER);
     	
         /**
-         * Specifies the directory within resources that will be publicly 
-         * available when the application is running. Place static web files in 
-         * this directory (JS, CSS).
+         * Only the asset bundle is publicly available, the working directory 
+         * also holds storage, credentials and tokens. Place static web files 
+         * in the assets directory (JS, CSS, fonts).
          */
-        File relativeLocation = new File("");
-        Spark.staticFiles.externalLocation(relativeLocation.getAbsolutePath());
-        //Spark.staticFiles.location("/assets");
-        // Use location for server files ie get("/main.js" etc)
+        System.out.println("Serving " + AssetBundle.current().size() + " assets.");
     	
         /**
          * During setup of the server the storage file must exist and be 
@@ -77,9 +212,9 @@ public class SMSReceiverReportViewer {
          */
         try {
         	int tries = 5;
-			while (!checkStorageFile() && tries != 0) {
-				System.out.print("Checking Storage File: ");
-				System.out.println(STORAGE_FILE.toString());
+			while (!STORAGE.check() && tries != 0) {
+				System.out.print("Checking Storage: ");
+				System.out.println(STORAGE.toString());
 				tries--;
 			}
 			if (tries == 0) {
@@ -90,13 +225,124 @@ public class SMSReceiverReportViewer {
 			ioXcp.printStackTrace();
 		}
         
+        /**
+         * Build the in-memory messages from the last checkpoint and the 
+         * storage written after it.
+         */
+        try {
+        	MESSAGE_CACHE.addListener(CHART_INDEX);
+        	MESSAGE_CACHE.addListener(CO_OCCURRENCE_INDEX);
+        	MESSAGE_CACHE.addListener(DISTINCT_TAG_INDEX);
+        	MESSAGE_CACHE.addListener(MESSAGE_SID_INDEX);
+        	loadMessageCache();
+        	cacheGeneration = STORAGE.getGeneration();
+        } catch (IOException ioXcp) {
+        	System.out.println("Could not load storage file!");
+        	ioXcp.printStackTrace();
+        	return;
+        }
+        
+        /**
+         * A follower only serves reads, everything that writes storage is 
+         * done by the leader. Reads wait until the follower has caught up.
+         */
+        final ReplicationFollower follower = (REPLICATION_LEADER == null) ? null : 
+        	new ReplicationFollower(REPLICATION_LEADER, STORAGE, REPLICATION_STATE_FILE, 
+    			new ReplicationFollower.Applier() {
+	        		@Override
+	        		public void reset() throws IOException {
+	        			resetReplicatedStorage();
+	        		}
+	        		
+	        		@Override
+	        		public long apply(List<ArduinoMessage> messages) throws IOException {
+	        			return appendReplicatedStorage(messages);
+	        		}
+	        	});
+        if (follower != null) {
+        	for (String path : new String[] {"/sms", "/upload", "/quarantine/reprocess", "/backfill"}) {
+        		before(path, (req, res) -> {
+        			ServerMetrics.increment("replication.rejected_writes");
+        			halt(403, "Read-only follower of " + REPLICATION_LEADER);
+        		});
+        	}
+        	// Only the leader has the hourly aggregates of reduced readings
+        	before("/hourly", (req, res) -> {
+        		res.redirect(REPLICATION_LEADER + "/hourly" + 
+    				((req.queryString() == null) ? "" : "?" + req.queryString()));
+        		halt();
+        	});
+        	for (String path : new String[] {"/", "/export"}) {
+        		before(path, (req, res) -> {
+        			if (follower.getLagMillis() > MAX_REPLICATION_LAG_MILLIS) {
+        				ServerMetrics.increment("replication.lagging");
+        				res.header("Retry-After", "5");
+        				halt(503, "Follower is behind " + REPLICATION_LEADER + ", try again shortly.");
+        			}
+        		});
+        	}
+        }
+        
+        /**
+         * Admission control of the report page, each client has its own rate 
+         * limit and only a few reports are rendered at the same time.
+         */
+        before("/", (req, res) -> {
+        	String client = getClientAddress(req);
+        	if (!REPORT_RATE_LIMITER.tryAcquire(client)) {
+        		ServerMetrics.increment("report.rate_limited");
+        		res.header("Retry-After", 
+    				Long.toString(REPORT_RATE_LIMITER.getRetryAfterSeconds(client)));
+        		halt(429, "Too many requests, try again shortly.");
+        	}
+        	if (!REPORT_RENDER_PERMITS.tryAcquire()) {
+        		ServerMetrics.increment("report.overloaded");
+        		res.header("Retry-After", "5");
+        		halt(503, "Server busy, try again shortly.");
+        	}
+        	req.attribute(RENDER_PERMIT_ATTRIBUTE, Boolean.TRUE);
+        	ServerMetrics.increment("report.accepted");
+        });
+        
+        /**
+         * Release the report render permit, runs even if rendering failed.
+         */
+        afterAfter("/", (req, res) -> {
+        	if (req.attribute(RENDER_PERMIT_ATTRIBUTE) != null) {
+        		REPORT_RENDER_PERMITS.release();
+        	}
+        });
+        
+        /**
+         * Function to serve the server metrics as plain text.
+         */
+        get("/metrics", (req, res) -> {
+        	if (follower != null) {
+        		ServerMetrics.set("replication.lag.millis", follower.getLagMillis());
+        	}
+        	res.type("text/plain");
+        	return ServerMetrics.toText();
+        });
+        
     	/**
     	 * Function to serve a user request to GET an HTML document (website) 
     	 * for displaying CSV data from the SBSBS in the form of a report.
+    	 * Query parameters (optional): the same filters as the export.
     	 */
         get("/", (req, res) -> {
-        	// Read in data from CSVstorage file
-        	ArrayList<ArduinoMessage> listOfMessages = readCSVFile();
+        	// Get data from the in-memory messages
+        	ArrayList<ArduinoMessage> listOfMessages = MESSAGE_CACHE.getMessages();
+        	if (!req.queryParams().isEmpty()) {
+        		ReadingFilter filter;
+        		try {
+        			filter = parseReadingFilter(req);
+        		}
+        		catch (NumberFormatException nfe) {
+        			res.status(400);
+        			return "Invalid number parameter.";
+        		}
+        		listOfMessages.removeIf(message -> !filter.matches(message));
+        	}
         	
         	// Create HTML report page
         	String reportView = ReportGenerator.generateHTML(listOfMessages);
@@ -104,6 +350,303 @@ public class SMSReceiverReportViewer {
         	return reportView;
         });
         
+        /**
+         * Function to serve a file of the asset bundle. Hashed names never 
+         * change content so are cached for good, plain names are checked 
+         * with the ETag on every use. The gzip copy is sent when accepted.
+         */
+        get(AssetBundle.URL_PREFIX + ":file", (req, res) -> {
+        	String fileName = req.params(":file");
+        	AssetBundle.Asset asset = AssetBundle.current().findHashed(fileName);
+        	if (asset != null) {
+        		res.header("Cache-Control", "public, max-age=31536000, immutable");
+        	} else {
+        		asset = AssetBundle.current().find(fileName);
+        		if (asset == null) {
+        			res.status(404);
+        			return "Asset not found.";
+        		}
+        		res.header("Cache-Control", "no-cache");
+        	}
+        	String eTag = "\"" + asset.getHash() + "\"";
+        	res.header("ETag", eTag);
+        	res.header("Vary", "Accept-Encoding");
+        	res.type(asset.getContentType());
+        	if (eTag.equals(req.headers("If-None-Match"))) {
+        		res.status(304);
+        		return "";
+        	}
+        	
+        	byte[] content = asset.getContent();
+        	String acceptEncoding = req.headers("Accept-Encoding");
+        	if ((asset.getGzipContent() != null) && 
+    				(acceptEncoding != null) && acceptEncoding.contains("gzip")) {
+        		content = asset.getGzipContent();
+        		res.header("Content-Encoding", "gzip");
+        	}
+        	res.raw().setContentLength(content.length);
+        	// Written and closed here so the content is not compressed again
+        	OutputStream output = res.raw().getOutputStream();
+        	output.write(content);
+        	output.close();
+        	
+        	return "";
+        });
+        
+        /**
+         * Function to serve chart data of a station as JSON, each series is 
+         * downsampled to at most the requested number of points.
+         * Query parameters: station, from and to (epoch seconds), points.
+         */
+        get("/chart", (req, res) -> {
+        	String station = req.queryParams("station");
+        	if (station == null) {
+        		res.status(400);
+        		return "Missing station parameter.";
+        	}
+        	
+        	try {
+	        	long fromEpoch = parseLongParameter(req.queryParams("from"), 0);
+	        	long toEpoch = parseLongParameter(req.queryParams("to"), Long.MAX_VALUE - 1);
+	        	int maxPoints = (int) Math.min(MAX_CHART_POINTS, 
+	    			parseLongParameter(req.queryParams("points"), DEFAULT_CHART_POINTS));
+	        	if (maxPoints < 1) {
+	        		maxPoints = DEFAULT_CHART_POINTS;
+	        	}
+	        	
+	        	res.type("application/json");
+	        	return CHART_INDEX.toJSON(station, fromEpoch, toEpoch, maxPoints);
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        });
+        
+        /**
+         * Function to serve snake and skink co-occurrence counts as JSON. With 
+         * a tag, the tags seen with it; without, the interaction graph edges.
+         * Query parameters: tag, from and to (epoch seconds, whole days), limit.
+         */
+        get("/cooccurrence", (req, res) -> {
+        	try {
+	        	long fromEpoch = parseLongParameter(req.queryParams("from"), 0);
+	        	long toEpoch = parseLongParameter(req.queryParams("to"), Long.MAX_VALUE - 1);
+	        	int limit = (int) Math.min(MAX_CO_OCCURRENCE_LIMIT, 
+	    			parseLongParameter(req.queryParams("limit"), DEFAULT_CO_OCCURRENCE_LIMIT));
+	        	if (limit < 1) {
+	        		limit = DEFAULT_CO_OCCURRENCE_LIMIT;
+	        	}
+	        	
+	        	res.type("application/json");
+	        	String tag = req.queryParams("tag");
+	        	if (tag == null) {
+	        		return CO_OCCURRENCE_INDEX.graphToJSON(fromEpoch, toEpoch, limit);
+	        	}
+	        	return CO_OCCURRENCE_INDEX.tagToJSON(tag, fromEpoch, toEpoch, limit);
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        });
+        
+        /**
+         * Function to serve the estimated number of distinct snakes or skinks 
+         * seen by stations as JSON, in total and optionally per hour or day.
+         * Query parameters: kind (snake or skink), station (comma separated, 
+         * all if missing), from and to (epoch seconds), per (hour or day).
+         */
+        get("/distinct", (req, res) -> {
+        	int kind = DistinctTagIndex.kindFromName(req.queryParams("kind"));
+        	if (kind < 0) {
+        		res.status(400);
+        		return "Kind must be snake or skink.";
+        	}
+        	String per = req.queryParams("per");
+        	if ((per != null) && !per.equals("hour") && !per.equals("day")) {
+        		res.status(400);
+        		return "Per must be hour or day.";
+        	}
+        	String stations = req.queryParams("station");
+        	
+        	try {
+	        	long fromEpoch = parseLongParameter(req.queryParams("from"), 0);
+	        	long toEpoch = parseLongParameter(req.queryParams("to"), Long.MAX_VALUE - 1);
+	        	
+	        	res.type("application/json");
+	        	return DISTINCT_TAG_INDEX.toJSON(
+	    			(stations == null) ? null : Arrays.asList(stations.split(",")), 
+	    			kind, fromEpoch, toEpoch, 
+	    			(per == null) ? null : Boolean.valueOf(per.equals("day")));
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        });
+        
+        /**
+         * Function to stream the stored readings matching a filter as a file 
+         * download, optionally gzip compressed while streaming.
+         * Query parameters: format (csv or ndjson), gzip (true), from and to 
+         * (epoch seconds), station, snake, tag, minTemperature, 
+         * maxTemperature, minWeight and maxWeight.
+         */
+        get("/export", (req, res) -> {
+        	String format = req.queryParams("format");
+        	if (format == null) {
+        		format = ReadingExporter.FORMAT_CSV;
+        	}
+        	if (!ReadingExporter.isSupportedFormat(format)) {
+        		res.status(400);
+        		return "Unsupported export format.";
+        	}
+        	
+        	ReadingFilter filter;
+        	try {
+        		filter = parseReadingFilter(req);
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        	
+        	boolean gzip = "true".equals(req.queryParams("gzip"));
+        	String fileName = "SBSBS_export." + format + (gzip ? ".gz" : "");
+        	if (gzip) {
+        		res.type("application/gzip");
+        	} else if (ReadingExporter.FORMAT_NDJSON.equals(format)) {
+        		res.type("application/x-ndjson");
+        	} else {
+        		res.type("text/csv");
+        	}
+        	
+        	ReadingCursor storageCursor = openStorageCursor(filter);
+        	if (storageCursor == null) {
+        		res.status(503);
+        		res.type("text/plain");
+        		return "Storage is being compacted, try again shortly.";
+        	}
+        	res.header("Content-Disposition", "attachment; filename=\"" + fileName + "\"");
+        	
+        	// Stream straight to the response, nothing is collected in memory
+        	OutputStream output = res.raw().getOutputStream();
+        	if (gzip) {
+        		output = new GZIPOutputStream(output, 64 * 1024);
+        	}
+        	try (ReadingCursor cursor = storageCursor) {
+        		long numberOfMessages = ReadingExporter.export(cursor, format, output);
+        		System.out.println("Exported " + numberOfMessages + " messages as " + fileName);
+        	}
+        	output.close();
+        	
+        	return "";
+        });
+        
+        /**
+         * Function to serve the hourly aggregates of readings as CSV, one line 
+         * per station hour. Hours reduced by the retention policy come from the 
+         * aggregate log, later hours are aggregated from the in-memory messages.
+         * Query parameters: station, from and to (epoch seconds, whole hours).
+         */
+        get("/hourly", (req, res) -> {
+        	long fromHour;
+        	long toHour;
+        	try {
+        		fromHour = HourlyAggregate.getHourEpoch(parseLongParameter(req.queryParams("from"), 0));
+        		toHour = HourlyAggregate.getHourEpoch(parseLongParameter(req.queryParams("to"), 
+    				Long.MAX_VALUE - HourlyAggregate.SECONDS_PER_HOUR));
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        	String station = req.queryParams("station");
+        	
+        	long watermark = HOURLY_AGGREGATE_LOG.readWatermark();
+        	List<HourlyAggregate> aggregates = 
+    			HOURLY_AGGREGATE_LOG.read(station, fromHour, Math.min(toHour, watermark - 1));
+        	aggregates.addAll(HourlyAggregate.aggregate(MESSAGE_CACHE.getMessages(), 
+    			new ReadingFilter(Math.max(fromHour, watermark), 
+					toHour + HourlyAggregate.SECONDS_PER_HOUR - 1, station, null)));
+        	aggregates.sort(Comparator.comparing(HourlyAggregate::getStation)
+    			.thenComparingLong(HourlyAggregate::getHourEpoch));
+        	
+        	res.type("text/csv");
+        	StringBuilder CSVText = new StringBuilder();
+        	for (HourlyAggregate aggregate : aggregates) {
+        		CSVText.append(aggregate.toCSVString()).append('\n');
+        	}
+        	return CSVText.toString();
+        });
+        
+        /**
+         * Function to stream the storage a follower has not replicated yet, 
+         * the stored readings after an offset of a storage generation as 
+         * CSV lines ending with an end marker. A follower asking with another 
+         * generation or an offset past the end must start again from empty.
+         * Query parameters: generation, offset.
+         */
+        get(ReplicationFollower.LOG_PATH, (req, res) -> {
+        	long generation;
+        	long startOffset;
+        	try {
+        		generation = parseLongParameter(req.queryParams("generation"), 0);
+        		startOffset = parseLongParameter(req.queryParams("offset"), 0);
+        	}
+        	catch (NumberFormatException nfe) {
+        		res.status(400);
+        		return "Invalid number parameter.";
+        	}
+        	
+        	long endOffset;
+        	ReadingCursor cursor;
+        	// Same lock as appendStorage and compaction, offsets match storage
+        	synchronized (SMSReceiverReportViewer.class) {
+        		endOffset = MESSAGE_CACHE.getStorageOffset();
+        		res.header(ReplicationFollower.GENERATION_HEADER, Long.toString(cacheGeneration));
+        		res.header(ReplicationFollower.END_OFFSET_HEADER, Long.toString(endOffset));
+        		if ((generation != cacheGeneration) || (startOffset < 0) || (startOffset > endOffset)) {
+        			res.status(409);
+        			return "Storage generation is " + cacheGeneration;
+        		}
+        		cursor = STORAGE.openCursor(startOffset, endOffset, null);
+        		// Storage replaced but the in-memory messages not yet reset
+        		if (STORAGE.getGeneration() != cacheGeneration) {
+        			cursor.close();
+        			res.status(409);
+        			return "Storage generation is changing.";
+        		}
+        	}
+        	
+        	res.type("text/plain");
+        	long numberOfMessages = 0;
+        	long numberOfSkipped = 0;
+        	try (ReadingCursor logCursor = cursor; 
+    				Writer writer = new BufferedWriter(new OutputStreamWriter(
+						res.raw().getOutputStream(), StandardCharsets.UTF_8), 64 * 1024)) {
+        		ArduinoMessage message;
+        		while ((message = logCursor.next()) != null) {
+        			// Torn or malformed lines cannot be written as a reading, 
+        			// compaction moves them to quarantine
+        			if (!message.checkDataExists()) {
+        				numberOfSkipped++;
+        				continue;
+        			}
+        			writer.write(message.parseToCSVString());
+        			writer.write('\n');
+        			numberOfMessages++;
+        		}
+        		writer.write(ReplicationFollower.END_MARKER);
+        		writer.write('\n');
+        	}
+        	ServerMetrics.add("replication.served_messages", numberOfMessages);
+        	ServerMetrics.add("replication.skipped_messages", numberOfSkipped);
+        	
+        	return "";
+        });
+        
         /**
          * Function to upload the storage file to the Google Drive service.
          * Names the file after the current date and time.
@@ -123,12 +666,63 @@ public class SMSReceiverReportViewer {
 	    	}
         });
         
+        /**
+         * Function to reprocess the quarantined readings against the current 
+         * validation rules, readings that now pass are added to storage.
+         */
+        get("/quarantine/reprocess", (req, res) -> {
+        	// Pick up any changes to the validation rules file
+        	ValidationRules rules = ValidationRules.reload();
+        	System.out.println("Reprocessing quarantine with " + rules);
+        	
+        	try {
+        		QuarantineLog.Result result = QUARANTINE_LOG.reprocess(messages -> {
+        			if (!STORAGE.check() || !appendStorage(messages)) {
+        				throw new IOException("Promoted messages could not be stored.");
+        			}
+        		});
+        		return "Promoted " + result.getPromoted() + " readings, " + 
+    				result.getRemaining() + " left in quarantine" + 
+    				"<br><br>Click back to view Report Viewer";
+        	}
+        	catch (IOException ioXcp) {
+        		ioXcp.printStackTrace();
+        		return false;
+        	}
+        });
+        
+        /**
+         * Function to fetch the SMS sent between two dates from the Twilio 
+         * message history and store the readings that were missed.
+         * Query parameters: from and to (dates such as 2019-01-25, default 
+         * from the day of the newest reading to today).
+         */
+        get("/backfill", (req, res) -> {
+        	try {
+        		LocalDate fromDate = (req.queryParams("from") == null) ? null : LocalDate.parse(req.queryParams("from"));
+        		LocalDate toDate = (req.queryParams("to") == null) ? null : LocalDate.parse(req.queryParams("to"));
+        		return backfillMessages(fromDate, toDate) + "<br><br>Click back to view Report Viewer";
+        	}
+        	catch (DateTimeParseException dtpXcp) {
+        		res.status(400);
+        		return "Invalid date parameter.";
+        	}
+        	catch (IOException ioXcp) {
+        		ioXcp.printStackTrace();
+        		res.status(502);
+        		return "Message history could not be fetched: " + ioXcp.getMessage();
+        	}
+        });
+        
         /**
          * Function to serve a user request to POST an SMS text message, the 
          * text is sent from an Arduino/SIM900 module, the SBSBS, and contains 
          * CSV data.
          */
         post("/sms", (req, res) -> {
+        	ServerEvents.WebhookEvent event = new ServerEvents.WebhookEvent();
+        	event.begin();
+        	
         	// By calling either req.body() or req.queryParams() the message is 
         	// taken and cleared. This means that only one function should be 
         	// used. The other function returns null!
@@ -154,133 +748,123 @@ public class SMSReceiverReportViewer {
             if ((messageSid == null) || 
         		(fromPhoneNumber == null) || 
         		(bodyText == null)) {
-            	// TODO: Store received message anyway
+            	// Store received message anyway so it is not lost
+            	QUARANTINE_LOG.add(RejectReason.MISSING_PARAMETERS, messageParameters);
+            	event.outcome = "missing parameters";
+            	event.commit();
             	return NO_MESSAGE_REPLY;
             }
-            System.out.println("Message SID: " + messageSid);
-            System.out.println("From Phone Number: " + fromPhoneNumber);
-            System.out.println("Message Body: " + bodyText);
             
-            // Multiple readings in one message
-            // Split body text up into separate readings by carriage return and/or new line
-			ArrayList<String> bodyTextReadings = new ArrayList<String>(Arrays.asList(bodyText.split(System.lineSeparator())));
-			
-			System.out.println("Number of split lines: " + bodyTextReadings.size());
-			
-			for (String CSVMessage : bodyTextReadings) {
-				// Trim carriage return and new line from start and end of string
-				CSVMessage = CSVMessage.trim();
-				
-				// Create complete CSV line of data
-				StringBuilder CSVLine = new StringBuilder();
-				CSVLine.append(messageSid);
-				CSVLine.append(CSV_SEPARATOR);
-				CSVLine.append(fromPhoneNumber);
-				CSVLine.append(CSV_SEPARATOR);
-				CSVLine.append(CSVMessage);
-				
-				// Parse map of message parameters to Arduino Message class object
-				ArduinoMessage message = new ArduinoMessage(CSVLine.toString());
-				System.out.println(message.getMessageSid());
-				System.out.println(message.getPhoneNumber());
-				System.out.println(message.getEpochMillis());
-				System.out.println(message.getTemperature());
-				System.out.println(message.getHumidity());
-				System.out.println(message.getWeight());
-				System.out.println(message.getSnakeRFID());
-				for (String skinkRFID : message.getSkinkRFIDs()) {
-					System.out.println(skinkRFID);
-				}
-				
-				// Store to CSV storage file
-				try {
-					// Check storage file exists, can be read, can be written to
-					if (!checkStorageFile()) {
-						return NO_MESSAGE_REPLY;
-					}
-					// Append message to storage file
-					boolean fileSaved = appendCSVFile(message);
-					if (fileSaved) {
-						System.out.println("Arduino Message saved to storage file.");
-						System.out.println(STORAGE_FILE.getAbsolutePath());
-						System.out.println("");
-					} else {
-						System.out.println("Arduino Message could NOT be saved.");
-						System.out.println("");
-					}
-				} catch (IOException ioXcp) {
-					// TODO: clean exit
-					System.out.println("File writer error.");
-					ioXcp.printStackTrace();
-					return NO_MESSAGE_REPLY;
-				}
-			}	// End for each body text reading
+            // Admission control, each station phone number has its own rate 
+            // limit so a station resending its whole SD card cannot slow the 
+            // others down. An SMS over the limit is not decoded, it is kept 
+            // whole in quarantine in one write, as Twilio does not resend it
+            if (!SMS_RATE_LIMITER.tryAcquire(fromPhoneNumber)) {
+            	ServerMetrics.increment("sms.rate_limited");
+            	QUARANTINE_LOG.addMessage(RejectReason.RATE_LIMITED, messageSid, fromPhoneNumber, bodyText);
+            	event.station = fromPhoneNumber;
+            	event.messageSid = messageSid;
+            	event.outcome = "rate limited";
+            	event.commit();
+            	return NO_MESSAGE_REPLY;
+            }
+            ServerMetrics.increment("sms.accepted");
+            ingestSMS(messageSid, fromPhoneNumber, bodyText, event);
             
             return NO_MESSAGE_REPLY;
         });
         
         /**
-         * Set a scheduled task to upload CSV storage file to Google Drive.
+         * Background jobs, held back while the stations send their readings.
          */
-        // Calendar for setting evening tasks
-        Calendar calendar = Calendar.getInstance();
-        // Set time to the evening 22:00 PM
-        calendar.set(Calendar.HOUR_OF_DAY, 22);
-        calendar.set(Calendar.MINUTE, 0);
-        calendar.set(Calendar.SECOND, 0);
-        calendar.set(Calendar.MILLISECOND, 0);
+        MaintenanceScheduler scheduler = new MaintenanceScheduler(QUIET_START, QUIET_END);
         
-        System.out.println("Google Drive upload scheduled to start at " + calendar.getTime());
+		// Checkpoint the in-memory messages every 15 minutes
+		scheduler.schedule("checkpoint", new CronSchedule(CHECKPOINT_SCHEDULE), 
+			MaintenanceScheduler.Budget.IO, 30*1000, () -> writeCheckpoint());
+		
+		// Checkpoint on shutdown so the next start only replays new storage
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> writeCheckpoint()));
+		
+		// A follower takes its readings, compaction and uploads from the leader
+		if (follower != null) {
+			follower.start();
+			return;
+		}
         
-        // Timer to schedule repetitive tasks
-        Timer timer = new Timer();
-        // Set a scheduled task to upload to Google Drive
-		timer.schedule(new TimerTask() {
-			public void run() {
-				System.out.println("Trying upload to Google Drive.");
+        // Upload the CSV storage file to Google Drive every evening at 22:00
+        scheduler.schedule("upload", new CronSchedule("0 22 * * *"), 
+    		MaintenanceScheduler.Budget.IO, 60*1000, () -> {
+			System.out.println("Trying upload to Google Drive.");
+			try {
+				System.out.println("Uploaded file to Google Drive: " + 
+					GoogleDriveService.uploadReportFile(openUploadCursor()));
+			}
+			catch (IOException ioXcp) {
+				ioXcp.printStackTrace();
+			}
+			catch (GeneralSecurityException gsXcp) {
+				gsXcp.printStackTrace();
+			}
+		});
+		
+		// Compact the storage file every night, after the day's readings are in
+		scheduler.schedule("compaction", new CronSchedule(COMPACTION_SCHEDULE), 
+			MaintenanceScheduler.Budget.IO, 10*60*1000, () -> compactStorage());
+		
+		// Recover readings sent while the server was down
+		if (System.getenv(TWILIO_AUTH_TOKEN_VARIABLE) != null) {
+			Thread backfillThread = new Thread(() -> {
 				try {
-					System.out.println("Uploaded file to Google Drive: " + GoogleDriveService.uploadReportFile());
-				}
-				catch (IOException ioXcp) {
+					backfillMessages(null, null);
+				} catch (IOException ioXcp) {
+					System.out.println("Backfill could not fetch the message history.");
 					ioXcp.printStackTrace();
 				}
-				catch (GeneralSecurityException gsXcp) {
-					gsXcp.printStackTrace();
-				}
-			}
-		}, calendar.getTime(), 24*60*60*1000);	// Delay by 24*60*60*1000 milliseconds, 24 hours between job executions
+			}, "backfill");
+			backfillThread.setDaemon(true);
+			backfillThread.start();
+		}
     }
     
     private static String uploadToGoogleDrive() throws IOException, GeneralSecurityException {
-		String uploadedFileName = GoogleDriveService.uploadReportFile();
+		String uploadedFileName = GoogleDriveService.uploadReportFile(openUploadCursor());
 		return uploadedFileName + "<br><br>Click back to view Report Viewer";
 	}
     
-	/**
-     * Function to check the storage file and create a new one if it does not 
-     * exist.
-     * @throws IOException An exception caused by creating a new file.
+    /**
+     * Function to open a cursor over the storage covered by the in-memory 
+     * messages. The offset and the cursor are taken under the same lock as 
+     * appendStorage and compaction, so they are of one storage generation.
+     * @param filter The filter readings must match, null for every message.
+     * @return The cursor, null while storage is replaced by a compaction.
+     * @throws IOException An IO exception caused by opening storage.
      */
-    private static boolean checkStorageFile() throws IOException {
-    	// Check storage file exists
-        if (!STORAGE_FILE.exists()) {
-        	// Create a new file
-        	STORAGE_FILE.createNewFile();
-        }
-        // Check storage file is a file (should not occur)
-        if (!STORAGE_FILE.isFile()) {
-        	return false;
-        }
-        // Check storage file can be read
-        if (!STORAGE_FILE.canRead()) {
-        	return false;
-        }
-        //Check storage file can be written to
-        if (!STORAGE_FILE.canWrite()) {
-        	return false;
-        }
-		return true;
-	}
+    private static ReadingCursor openStorageCursor(ReadingFilter filter) throws IOException {
+    	synchronized (SMSReceiverReportViewer.class) {
+    		ReadingCursor cursor = STORAGE.openCursor(0, MESSAGE_CACHE.getStorageOffset(), filter);
+    		// Storage replaced but the in-memory messages not yet reset
+    		if (STORAGE.getGeneration() != cacheGeneration) {
+    			cursor.close();
+    			return null;
+    		}
+    		return cursor;
+    	}
+    }
+    
+    /**
+     * Function to open a cursor over the valid readings of storage for a 
+     * Google Drive upload, a malformed line cannot be written as CSV.
+     * @return The cursor.
+     * @throws IOException If storage is being replaced or cannot be opened.
+     */
+    private static ReadingCursor openUploadCursor() throws IOException {
+    	ReadingCursor cursor = openStorageCursor(new ReadingFilter(Long.MIN_VALUE, Long.MAX_VALUE, null, null));
+    	if (cursor == null) {
+    		throw new IOException("Storage is being compacted, try again shortly.");
+    	}
+    	return cursor;
+    }
     
 	/**
      * Function to convert a List of name value pairs into a Map of string pairs.
@@ -296,68 +880,528 @@ public class SMSReceiverReportViewer {
     }
     
     /**
-     * Function to append a single message to the storage file.
+     * Function to find the address of the client making a request. Behind a 
+     * trusted proxy such as ngrok it is the last forwarded address, the one 
+     * the proxy appended, as the earlier ones are written by the client. 
+     * Otherwise it is the address of the connection, Spark's own req.ip() 
+     * also takes the client written X-Forwarded-For.
+     * @param req The request.
+     * @return The client address.
+     */
+    private static String getClientAddress(Request req) {
+    	String forwardedFor = req.headers("X-Forwarded-For");
+    	if (TRUSTED_PROXY && (forwardedFor != null) && !forwardedFor.trim().isEmpty()) {
+    		String[] addresses = forwardedFor.split(CSV_SEPARATOR);
+    		return addresses[addresses.length - 1].trim();
+    	}
+    	org.eclipse.jetty.server.Request jettyRequest = 
+			org.eclipse.jetty.server.Request.getBaseRequest(req.raw());
+    	if ((jettyRequest != null) && (jettyRequest.getHttpChannel() != null) && 
+    			(jettyRequest.getHttpChannel().getRemoteAddress() != null)) {
+    		InetSocketAddress connectionAddress = jettyRequest.getHttpChannel().getRemoteAddress();
+    		return (connectionAddress.getAddress() == null) ? 
+				connectionAddress.getHostString() : connectionAddress.getAddress().getHostAddress();
+    	}
+    	return req.ip();
+    }
+    
+    /**
+     * Function to parse an optional number query parameter.
+     * @param parameter The query parameter value, may be null.
+     * @param defaultValue The value used when the parameter is missing.
+     * @return The parsed number or the default value.
+     * @throws NumberFormatException If the parameter is not a number.
+     */
+    private static long parseLongParameter(String parameter, long defaultValue) {
+    	if ((parameter == null) || parameter.isEmpty()) {
+    		return defaultValue;
+    	}
+    	return Long.parseLong(parameter.trim());
+    }
+    
+    /**
+     * Function to parse an optional decimal number query parameter.
+     * @param parameter The query parameter value, may be null.
+     * @param defaultValue The value used when the parameter is missing.
+     * @return The parsed number or the default value.
+     * @throws NumberFormatException If the parameter is not a number.
+     */
+    private static float parseFloatParameter(String parameter, float defaultValue) {
+    	if ((parameter == null) || parameter.isEmpty()) {
+    		return defaultValue;
+    	}
+    	float value = Float.parseFloat(parameter.trim());
+    	if (Float.isNaN(value)) {
+    		throw new NumberFormatException("Not a number " + parameter);
+    	}
+    	return value;
+    }
+    
+    /**
+     * Function to create a reading filter from the query parameters of a 
+     * request: from and to (epoch seconds), station, snake, tag (snake or 
+     * skink), minTemperature, maxTemperature, minWeight and maxWeight.
+     * @param req The request containing the query parameters.
+     * @return The reading filter.
+     * @throws NumberFormatException If a number parameter is not a number.
+     */
+    private static ReadingFilter parseReadingFilter(Request req) {
+    	return new ReadingFilter(
+			parseLongParameter(req.queryParams("from"), 0), 
+			parseLongParameter(req.queryParams("to"), Long.MAX_VALUE), 
+			req.queryParams("station"), 
+			req.queryParams("snake"), 
+			req.queryParams("tag"), 
+			parseFloatParameter(req.queryParams("minTemperature"), Float.NEGATIVE_INFINITY), 
+			parseFloatParameter(req.queryParams("maxTemperature"), Float.POSITIVE_INFINITY), 
+			parseFloatParameter(req.queryParams("minWeight"), Float.NEGATIVE_INFINITY), 
+			parseFloatParameter(req.queryParams("maxWeight"), Float.POSITIVE_INFINITY));
+    }
+    
+    /**
+     * Function to store the readings of an SMS from a station, readings that 
+     * cannot be stored are added to the quarantine log. Used by the webhook 
+     * and by the backfill of the message history, an SMS that is already 
+     * stored or quarantined is skipped.
+     * @param messageSid The SID of the SMS.
+     * @param fromPhoneNumber The phone number of the station.
+     * @param bodyText The text message body.
+     * @param event The event recording the outcome, committed when done.
+     * @return True if the SMS was ingested, false if it was already stored or quarantined.
+     */
+    private static boolean ingestSMS(String messageSid, String fromPhoneNumber, 
+    		String bodyText, ServerEvents.WebhookEvent event) {
+    	if (!claimMessageSid(messageSid)) {
+    		System.out.println("Message SID " + messageSid + " is already stored or quarantined.");
+    		event.messageSid = messageSid;
+    		event.outcome = "duplicate";
+    		event.commit();
+    		return false;
+    	}
+    	try {
+    		ingestClaimedSMS(messageSid, fromPhoneNumber, bodyText, event);
+    	} finally {
+    		// Its readings are now in the SID index or the quarantine log
+    		synchronized (INGESTING_SIDS) {
+    			INGESTING_SIDS.remove(messageSid);
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Function to claim an SMS for ingesting, checked against the readings 
+     * in storage and quarantine at the time of the claim rather than when a 
+     * backfill started.
+     * @param messageSid The SID of the SMS.
+     * @return True if the SMS is not stored, quarantined or being ingested.
+     */
+    private static boolean claimMessageSid(String messageSid) {
+    	synchronized (INGESTING_SIDS) {
+    		if (MESSAGE_SID_INDEX.contains(messageSid) || 
+				QUARANTINE_LOG.containsMessageSid(messageSid)) {
+    			return false;
+    		}
+    		return INGESTING_SIDS.add(messageSid);
+    	}
+    }
+    
+    /**
+     * Function to store the readings of a claimed SMS.
+     * @param messageSid The SID of the SMS.
+     * @param fromPhoneNumber The phone number of the station.
+     * @param bodyText The text message body.
+     * @param event The event recording the outcome, committed when done.
+     */
+    private static void ingestClaimedSMS(String messageSid, String fromPhoneNumber, 
+    		String bodyText, ServerEvents.WebhookEvent event) {
+    	System.out.println("Message SID: " + messageSid);
+    	System.out.println("From Phone Number: " + fromPhoneNumber);
+    	System.out.println("Message Body: " + bodyText);
+    	event.station = fromPhoneNumber;
+    	event.messageSid = messageSid;
+    	event.compact = CompactPayload.isCompact(bodyText);
+    	
+    	// Multiple readings in one message
+    	ArrayList<String> bodyTextReadings;
+    	if (event.compact) {
+    		// Decode compact payload into separate CSV readings
+    		try {
+    			bodyTextReadings = new ArrayList<String>(CompactPayload.decode(bodyText));
+    		} catch (IllegalArgumentException iaXcp) {
+    			System.out.println("Compact payload could not be decoded: " + iaXcp.getMessage());
+    			QUARANTINE_LOG.add(RejectReason.MALFORMED, 
+    				messageSid + CSV_SEPARATOR + fromPhoneNumber + CSV_SEPARATOR + bodyText.trim());
+    			event.outcome = "malformed payload";
+    			event.commit();
+    			return;
+    		}
+    	} else {
+    		// Split body text up into separate readings by carriage return and/or new line
+    		bodyTextReadings = new ArrayList<String>(Arrays.asList(bodyText.split(System.lineSeparator())));
+    	}
+    	
+    	System.out.println("Number of split lines: " + bodyTextReadings.size());
+    	
+    	for (String CSVMessage : bodyTextReadings) {
+    		// Trim carriage return and new line from start and end of string
+    		CSVMessage = CSVMessage.trim();
+    		if (CSVMessage.isEmpty()) {
+    			continue;
+    		}
+    		event.readings++;
+    	
+    		// Create complete CSV line of data
+    		StringBuilder CSVLine = new StringBuilder();
+    		CSVLine.append(messageSid);
+    		CSVLine.append(CSV_SEPARATOR);
+    		CSVLine.append(fromPhoneNumber);
+    		CSVLine.append(CSV_SEPARATOR);
+    		CSVLine.append(CSVMessage);
+    	
+    		// Parse map of message parameters to Arduino Message class object
+    		ArduinoMessage message = new ArduinoMessage(CSVLine.toString());
+    		System.out.println(message.getMessageSid());
+    		System.out.println(message.getPhoneNumber());
+    		System.out.println(message.getEpochMillis());
+    		System.out.println(message.getTemperature());
+    		System.out.println(message.getHumidity());
+    		System.out.println(message.getWeight());
+    		System.out.println(message.getSnakeRFID());
+    		for (String skinkRFID : message.getSkinkRFIDs()) {
+    			System.out.println(skinkRFID);
+    		}
+    	
+    		// Readings that fail validation are kept in quarantine
+    		RejectReason rejectReason = message.validate();
+    		if (rejectReason != null) {
+    			System.out.println("Arduino Message quarantined: " + rejectReason);
+    			System.out.println("");
+    			QUARANTINE_LOG.add(rejectReason, CSVLine.toString());
+    			event.quarantined++;
+    			continue;
+    		}
+    	
+    		// Store to CSV storage file
+    		try {
+    			// Check storage exists, can be read, can be written to
+    			if (!STORAGE.check()) {
+    				QUARANTINE_LOG.add(RejectReason.STORAGE_ERROR, CSVLine.toString());
+    				event.quarantined++;
+    				continue;
+    			}
+    			// Append message to storage
+    			boolean fileSaved = appendStorage(message);
+    			if (fileSaved) {
+    				event.stored++;
+    				System.out.println("Arduino Message saved to storage.");
+    				System.out.println(STORAGE.toString());
+    				System.out.println("");
+    			} else {
+    				System.out.println("Arduino Message could NOT be saved.");
+    				System.out.println("");
+    			}
+    		} catch (IOException ioXcp) {
+    			System.out.println("File writer error.");
+    			ioXcp.printStackTrace();
+    			QUARANTINE_LOG.add(RejectReason.STORAGE_ERROR, CSVLine.toString());
+    			event.quarantined++;
+    		}
+    	}	// End for each body text reading
+    	
+    	if (event.quarantined == 0) {
+    		event.outcome = "stored";
+    	} else if (event.stored == 0) {
+    		event.outcome = "quarantined";
+    	} else {
+    		event.outcome = "partly quarantined";
+    	}
+    	event.commit();
+    }
+    
+    /**
+     * Function to recover the SMS from known stations that are in the Twilio 
+     * message history but not in storage, passing them through the same 
+     * ingest as the webhook. Days with readings reduced by the retention 
+     * policy are not fetched, as their pruned readings would come back.
+     * @param fromDate The first day fetched, null for the day of the newest reading.
+     * @param toDate The last day fetched, null for today.
+     * @return The counts of the backfill.
+     * @throws IOException An IO exception caused by fetching the history.
+     */
+    private static TwilioBackfill.Result backfillMessages(LocalDate fromDate, LocalDate toDate) throws IOException {
+    	String accountSid = System.getenv(TWILIO_ACCOUNT_SID_VARIABLE);
+    	String authToken = System.getenv(TWILIO_AUTH_TOKEN_VARIABLE);
+    	if ((accountSid == null) || (authToken == null)) {
+    		throw new IOException(TWILIO_ACCOUNT_SID_VARIABLE + " and " + 
+				TWILIO_AUTH_TOKEN_VARIABLE + " must be set.");
+    	}
+    	
+    	// Stations with stored readings
+    	Set<String> stations = new HashSet<String>();
+    	long newestEpoch = Long.MIN_VALUE;
+    	for (ArduinoMessage message : MESSAGE_CACHE.getMessages()) {
+    		if (message.getPhoneNumber() != null) {
+    			stations.add(message.getPhoneNumber());
+    		}
+    		if (message.getEpochMillis() != null) {
+    			newestEpoch = Math.max(newestEpoch, message.getEpochMillis());
+    		}
+    	}
+    	if (toDate == null) {
+    		toDate = LocalDate.now(ZoneOffset.UTC);
+    	}
+    	if (fromDate == null) {
+    		fromDate = (newestEpoch == Long.MIN_VALUE) ? toDate : 
+    			Instant.ofEpochSecond(newestEpoch).atZone(ZoneOffset.UTC).toLocalDate();
+    	}
+    	
+    	// Start after the last day with reduced readings
+    	long watermark = HOURLY_AGGREGATE_LOG.readWatermark();
+    	if (watermark > 0) {
+    		LocalDate firstRawDate = Instant.ofEpochSecond(watermark - 1).atZone(ZoneOffset.UTC)
+				.toLocalDate().plusDays(1);
+    		if (fromDate.isBefore(firstRawDate)) {
+    			System.out.println("Backfill starts at " + firstRawDate + ", earlier readings are reduced.");
+    			fromDate = firstRawDate;
+    		}
+    	}
+    	
+    	System.out.println("Backfilling " + stations.size() + " stations from " + fromDate + " to " + toDate);
+    	TwilioBackfill backfill = new TwilioBackfill(
+			System.getProperty("twilio.api.url", TwilioBackfill.TWILIO_API_URL), 
+			accountSid, authToken, BACKFILL_CONCURRENT_REQUESTS);
+    	TwilioBackfill.Result result = backfill.backfill(fromDate, toDate, stations, 
+			(messageSid, fromPhoneNumber, bodyText) -> {
+				ServerEvents.WebhookEvent event = new ServerEvents.WebhookEvent();
+				event.begin();
+				event.backfill = true;
+				return ingestSMS(messageSid, fromPhoneNumber, bodyText, event);
+			});
+    	System.out.println(result);
+    	return result;
+    }
+    
+    /**
+     * Function to append a single message to storage.
      * @param message A single message to be stored.
      * @return True if the message was appended, exception if not.
-     * @throws IOException An IO exception caused by file writer.
+     * @throws IOException An IO exception caused by writing storage.
      */
-    private static boolean appendCSVFile(ArduinoMessage message) throws IOException {
+    private static boolean appendStorage(ArduinoMessage message) throws IOException {
     	if (message == null) {
     		System.out.println("Arduino message was null.");
     		return false;
     	}
-    	if (!message.checkDataExists()) {
-    		System.out.println("Arduino message data is null or outside bounds.");
-    		return false;
+    	return appendStorage(Arrays.asList(message));
+    }
+    
+    /**
+     * Function to append a batch of messages to storage in one write.
+     * @param messages The messages to be stored.
+     * @return True if the messages were appended, false if any is invalid.
+     * @throws IOException An IO exception caused by writing storage.
+     */
+    private static synchronized boolean appendStorage(List<ArduinoMessage> messages) throws IOException {
+    	for (ArduinoMessage message : messages) {
+    		if (!message.checkDataExists()) {
+    			System.out.println("Arduino message data is null or outside bounds.");
+    			return false;
+    		}
     	}
     	
-    	String CSVString = message.parseToCSVString();
-    	
-    	System.out.println("Saving to storage file:");
-    	System.out.println(CSVString);
+    	for (ArduinoMessage message : messages) {
+    		System.out.println("Saving to storage:");
+    		System.out.println(message.parseToCSVString());
+    	}
+    	ServerEvents.StorageAppendEvent event = new ServerEvents.StorageAppendEvent();
+    	event.begin();
+    	long endOffset = STORAGE.append(messages);
+    	event.end();
+    	if (event.shouldCommit()) {
+    		event.storage = STORAGE.toString();
+    		event.readings = messages.size();
+    		event.endOffset = endOffset;
+    		event.commit();
+    	}
     	
-    	// Create file writer with path to storage file (true appends to end)
-    	FileWriter writer = new FileWriter(STORAGE_FILE, true);
-    	writer.append(CSVString);
-    	writer.append(System.lineSeparator());
-    	writer.close();
+    	// Keep the in-memory messages in step with storage
+    	MESSAGE_CACHE.append(messages, endOffset);
     	
     	return true;
     }
     
     /**
-     * Function to append a single message to the storage file.
-     * @param message A single message to be stored.
-     * @return True if the message was appended, exception if not.
-     * @throws IOException An IO exception caused by file writer.
+     * Function to append readings replicated from the leader to storage, 
+     * they were checked by the leader so are stored as they are.
+     * @param messages The readings from the leader.
+     * @return The end offset of storage after appending.
+     * @throws IOException An IO exception caused by writing storage.
      */
-    private static ArrayList<ArduinoMessage> readCSVFile() throws IOException {
-    	// Create arraylist of Arduino messages
-    	ArrayList<ArduinoMessage> listOfMessages = 
-			new ArrayList<ArduinoMessage>();
-    	
-    	// Create buffered and file reader with a path to the storage file
-    	BufferedReader bufferedReader = 
-			new BufferedReader(new FileReader(STORAGE_FILE));
+    private static synchronized long appendReplicatedStorage(List<ArduinoMessage> messages) throws IOException {
+    	ServerEvents.StorageAppendEvent event = new ServerEvents.StorageAppendEvent();
+    	event.begin();
+    	long endOffset = STORAGE.append(messages);
+    	event.end();
+    	if (event.shouldCommit()) {
+    		event.storage = STORAGE.toString();
+    		event.readings = messages.size();
+    		event.endOffset = endOffset;
+    		event.commit();
+    	}
+    	MESSAGE_CACHE.append(messages, endOffset);
+    	return endOffset;
+    }
+    
+    /**
+     * Function to empty storage and the in-memory messages of a follower 
+     * before replicating the leader from the start.
+     * @throws IOException An IO exception caused by replacing storage.
+     */
+    private static synchronized void resetReplicatedStorage() throws IOException {
+    	long endOffset = STORAGE.replace(new ArrayList<ArduinoMessage>(), STORAGE.getEndOffset());
+    	MESSAGE_CACHE.reset(new ArrayList<ArduinoMessage>(), endOffset);
+    	cacheGeneration = STORAGE.getGeneration();
+    	writeCheckpoint();
+    }
+    
+    /**
+     * Function to fill the in-memory messages on startup. Loads the last 
+     * checkpoint if it matches the storage file, then parses only the 
+     * storage written after the checkpoint.
+     * @throws IOException An IO exception caused by file reader.
+     */
+    private static void loadMessageCache() throws IOException {
+    	ServerEvents.StorageLoadEvent event = new ServerEvents.StorageLoadEvent();
+    	event.begin();
+    	long storageLength = STORAGE.getEndOffset();
+    	long startTime = System.currentTimeMillis();
     	
-    	// Read first line from CSV file
-    	String inputLine = bufferedReader.readLine();
+    	// Only storage kept in a file can be checkpointed
+    	Checkpoint checkpoint = null;
+    	if (STORAGE.getFile() != null) {
+    		checkpoint = Checkpoint.read(CHECKPOINT_FILE, STORAGE.getFile(), STORAGE.getGeneration());
+    	}
+    	if (checkpoint == null) {
+    		// Read the whole storage
+    		ArrayList<ArduinoMessage> storedMessages = STORAGE.read(0, storageLength);
+    		MESSAGE_CACHE.reset(storedMessages, storageLength);
+    		event.readMessages = storedMessages.size();
+    	} else {
+    		// Replay the tail of the storage after the checkpoint
+    		ArrayList<ArduinoMessage> tailMessages = 
+				STORAGE.read(checkpoint.getStorageOffset(), storageLength);
+    		MESSAGE_CACHE.reset(checkpoint.getMessages(), checkpoint.getStorageOffset());
+    		MESSAGE_CACHE.append(tailMessages, storageLength);
+    		System.out.println("Loaded checkpoint covering " + checkpoint.getStorageOffset() + 
+				" bytes, replayed " + tailMessages.size() + " messages.");
+    		event.fromCheckpoint = true;
+    		event.checkpointMessages = checkpoint.getMessages().size();
+    		event.readMessages = tailMessages.size();
+    		event.startOffset = checkpoint.getStorageOffset();
+    	}
+    	event.storage = STORAGE.toString();
+    	event.endOffset = storageLength;
+    	event.commit();
     	
-    	// Loop while more lines are to be read
-    	while (inputLine != null) {
-    		// Create new arduino message and fill with values
-    		ArduinoMessage message = new ArduinoMessage(inputLine);
+    	System.out.println("Loaded " + MESSAGE_CACHE.getMessages().size() + " messages in " + 
+			(System.currentTimeMillis() - startTime) + " ms.");
+    }
+    
+    /**
+     * Function to write a checkpoint of the in-memory messages to file, one 
+     * checkpoint at a time.
+     */
+    private static void writeCheckpoint() {
+    	if (STORAGE.getFile() == null) {
+    		return;
+    	}
+    	synchronized (CHECKPOINT_LOCK) {
+	    	try {
+	    		Checkpoint checkpoint;
+	    		long generation;
+	    		// Same lock as compaction, so the messages match the generation
+	    		synchronized (SMSReceiverReportViewer.class) {
+	    			checkpoint = MESSAGE_CACHE.createCheckpoint();
+	    			generation = cacheGeneration;
+	    		}
+	    		checkpoint.write(CHECKPOINT_FILE, STORAGE.getFile(), generation);
+	    		System.out.println("Checkpoint written covering " + 
+					checkpoint.getStorageOffset() + " bytes of generation " + generation + ".");
+	    	} catch (IOException ioXcp) {
+	    		System.out.println("Checkpoint could not be written.");
+	    		ioXcp.printStackTrace();
+	    	}
+    	}
+    }
+    
+    /**
+     * Function to compact storage: the readings are sorted by station and 
+     * time, duplicates and invalid readings are removed, readings older than 
+     * the retention policy allows are reduced and the result replaces 
+     * storage. Readings appended while compacting are kept after the 
+     * compacted readings.
+     */
+    private static void compactStorage() {
+    	long startTime = System.currentTimeMillis();
+    	RetentionPolicy policy;
+    	int retainedReadings;
+    	try {
+    		// Sort a snapshot without holding up the webhook
+    		long generation = cacheGeneration;
+    		Checkpoint snapshot = MESSAGE_CACHE.createCheckpoint();
+    		
+    		// Readings after those covered by the hourly aggregates were 
+    		// stored since the last compaction. When that is not known, such 
+    		// as after a crash before it was recorded, every reading is new 
+    		// and checked against the readings the aggregates count
+    		Set<ArduinoMessage> newMessages = null;
+    		long coveredReadings = HOURLY_AGGREGATE_LOG.readCoveredReadings(generation);
+    		if ((coveredReadings >= 0) && (coveredReadings <= snapshot.getMessages().size())) {
+    			newMessages = Collections.newSetFromMap(new IdentityHashMap<ArduinoMessage, Boolean>());
+    			newMessages.addAll(snapshot.getMessages().subList(
+					(int) coveredReadings, snapshot.getMessages().size()));
+    		}
     		
-    		// Add message to the list of messages
-    		listOfMessages.add(message);
+    		ArrayList<ArduinoMessage> compactedMessages = 
+				StorageCompactor.compact(snapshot.getMessages(), QUARANTINE_LOG);
+    		policy = RetentionPolicy.load();
+    		System.out.println(policy);
+    		compactedMessages = StorageRetention.apply(compactedMessages, newMessages, policy, 
+				HOURLY_AGGREGATE_LOG, System.currentTimeMillis() / 1000);
+    		STORAGE.replace(compactedMessages, snapshot.getStorageOffset());
+    		retainedReadings = compactedMessages.size();
     		
-    		// Read next line of data before loop ends
-    		inputLine = bufferedReader.readLine();
+    		// Same lock as appendStorage, so no reading is missed by the cache
+    		synchronized (SMSReceiverReportViewer.class) {
+    			// Readings appended after the snapshot follow the compacted part
+    			ArrayList<ArduinoMessage> cachedMessages = MESSAGE_CACHE.getMessages();
+    			compactedMessages.addAll(cachedMessages.subList(
+					snapshot.getMessages().size(), cachedMessages.size()));
+    			MESSAGE_CACHE.reset(compactedMessages, STORAGE.getEndOffset());
+    			cacheGeneration = STORAGE.getGeneration();
+    		}
+    		
+    		System.out.println("Storage compacted from " + snapshot.getMessages().size() + " to " + 
+				compactedMessages.size() + " messages in " + (System.currentTimeMillis() - startTime) + " ms.");
+    	} catch (IOException ioXcp) {
+    		System.out.println("Storage could not be compacted.");
+    		ioXcp.printStackTrace();
+    		return;
     	}
     	
-    	bufferedReader.close();
+    	// Every retained reading before the watermark is now aggregated
+    	if (policy.isEnabled()) {
+    		try {
+    			HOURLY_AGGREGATE_LOG.appendCoveredReadings(cacheGeneration, retainedReadings);
+    		} catch (IOException ioXcp) {
+    			System.out.println("Covered readings could not be recorded.");
+    			ioXcp.printStackTrace();
+    		}
+    	}
     	
-    	return listOfMessages;
+    	// The old checkpoint no longer matches the storage file
+    	writeCheckpoint();
     }
     
     
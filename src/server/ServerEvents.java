@@ -0,0 +1,164 @@
+package server;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Class to hold the Java Flight Recorder events of the server, so a recording
+ * shows the time taken by receiving, storing, loading, reporting and
+ * uploading readings. Events cost nearly nothing when no recording is
+ * running. The jdk.jfr API needs Java 11, which the build targets. Record
+ * with, for example:
+ *   java -XX:StartFlightRecording=filename=sbsbs.jfr,settings=default ...
+ * and list the events with "jfr print --categories SBSBS sbsbs.jfr".
+ * @author Elliott Waterman
+ */
+public class ServerEvents {
+	/**
+	 * Category the events are listed under.
+	 */
+	private static final String CATEGORY = "SBSBS";
+
+	/**
+	 * Event of a POST to the /sms webhook, a station sends a few each night
+	 * so every one is recorded.
+	 */
+	@Name("server.Webhook")
+	@Label("SMS Webhook")
+	@Category({CATEGORY, "Ingest"})
+	@Description("An SMS from a station received by the webhook")
+	@StackTrace(false)
+	@Threshold("0 ms")
+	public static class WebhookEvent extends Event {
+		@Label("Station")
+		@Description("Phone number of the station")
+		String station;
+
+		@Label("Message SID")
+		String messageSid;
+
+		@Label("Backfill")
+		@Description("True if fetched from the message history rather than sent to the webhook")
+		boolean backfill;
+
+		@Label("Compact Payload")
+		@Description("True if the body was a compact payload")
+		boolean compact;
+
+		@Label("Readings")
+		@Description("Readings in the body")
+		int readings;
+
+		@Label("Stored")
+		@Description("Readings appended to storage")
+		int stored;
+
+		@Label("Quarantined")
+		@Description("Readings added to the quarantine log")
+		int quarantined;
+
+		@Label("Outcome")
+		String outcome;
+	}
+
+	/**
+	 * Event of a batch of readings appended to storage.
+	 */
+	@Name("server.StorageAppend")
+	@Label("Storage Append")
+	@Category({CATEGORY, "Storage"})
+	@Description("A batch of readings appended to storage")
+	@StackTrace(false)
+	@Threshold("1 ms")
+	public static class StorageAppendEvent extends Event {
+		@Label("Storage")
+		String storage;
+
+		@Label("Readings")
+		int readings;
+
+		@Label("End Offset")
+		@Description("End offset of storage after the append")
+		long endOffset;
+	}
+
+	/**
+	 * Event of loading the in-memory messages from storage on startup.
+	 */
+	@Name("server.StorageLoad")
+	@Label("Storage Load")
+	@Category({CATEGORY, "Storage"})
+	@Description("The in-memory messages loaded from a checkpoint and storage")
+	@StackTrace(false)
+	@Threshold("0 ms")
+	public static class StorageLoadEvent extends Event {
+		@Label("Storage")
+		String storage;
+
+		@Label("From Checkpoint")
+		@Description("True if a checkpoint was loaded before the storage tail")
+		boolean fromCheckpoint;
+
+		@Label("Checkpoint Messages")
+		int checkpointMessages;
+
+		@Label("Read Messages")
+		@Description("Messages read from storage")
+		int readMessages;
+
+		@Label("Start Offset")
+		@Description("Offset storage was read from")
+		long startOffset;
+
+		@Label("End Offset")
+		@Description("Offset storage was read to")
+		long endOffset;
+	}
+
+	/**
+	 * Event of rendering the HTML report page.
+	 */
+	@Name("server.ReportRender")
+	@Label("Report Render")
+	@Category({CATEGORY, "Report"})
+	@Description("The HTML report page rendered from the in-memory messages")
+	@StackTrace(false)
+	@Threshold("10 ms")
+	public static class ReportRenderEvent extends Event {
+		@Label("Rows")
+		@Description("Readings in the report table")
+		int rows;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+	}
+
+	/**
+	 * Event of uploading the storage file to Google Drive.
+	 */
+	@Name("server.DriveUpload")
+	@Label("Drive Upload")
+	@Category({CATEGORY, "Upload"})
+	@Description("The storage file uploaded to Google Drive")
+	@StackTrace(false)
+	@Threshold("0 ms")
+	public static class DriveUploadEvent extends Event {
+		@Label("File Name")
+		String fileName;
+
+		@Label("Size")
+		@DataAmount
+		long bytes;
+
+		@Label("Success")
+		boolean success;
+	}
+
+}	// End class ServerEvents
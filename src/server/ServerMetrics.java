@@ -0,0 +1,69 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class to count events of the server, such as rejected requests, so they
+ * can be viewed on the metrics page.
+ * @author Elliott Waterman
+ */
+public class ServerMetrics {
+	/**
+	 * Counters by name.
+	 */
+	private static final Map<String, AtomicLong> COUNTERS = new ConcurrentHashMap<String, AtomicLong>();
+
+	/**
+	 * Function to add one to a counter.
+	 * @param name The name of the counter.
+	 */
+	public static void increment(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Function to add an amount to a counter.
+	 * @param name The name of the counter.
+	 * @param amount The amount to add.
+	 */
+	public static void add(String name, long amount) {
+		COUNTERS.computeIfAbsent(name, key -> new AtomicLong()).addAndGet(amount);
+	}
+
+	/**
+	 * Function to set a counter to a value, used for values measured rather
+	 * than counted such as the replication lag.
+	 * @param name The name of the counter.
+	 * @param value The value.
+	 */
+	public static void set(String name, long value) {
+		COUNTERS.computeIfAbsent(name, key -> new AtomicLong()).set(value);
+	}
+
+	/**
+	 * Function to return the value of a counter.
+	 * @param name The name of the counter.
+	 * @return The value of the counter, 0 if never incremented.
+	 */
+	public static long get(String name) {
+		AtomicLong counter = COUNTERS.get(name);
+		return (counter == null) ? 0 : counter.get();
+	}
+
+	/**
+	 * Function to create a plain text list of every counter, one per line in
+	 * the form "name value", sorted by name.
+	 * @return The plain text list of counters.
+	 */
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> counter : new TreeMap<String, AtomicLong>(COUNTERS).entrySet()) {
+			text.append(counter.getKey()).append(' ').append(counter.getValue().get()).append('\n');
+		}
+		return text.toString();
+	}
+
+}	// End class ServerMetrics
@@ -0,0 +1,90 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Enum to define the kinds of message storage the server can use. The kind is
+ * chosen by the "backend" key of a storage.properties file, which can be
+ * overridden with the storage.backend system property for load tests.
+ * @author Elliott Waterman
+ */
+public enum StorageBackend {
+	/**
+	 * Messages stored in a CSV file (the "file" key, default SBSBS.csv).
+	 */
+	CSV {
+		@Override
+		public MessageStorage create(Properties properties) {
+			return new CSVStorage(new File(properties.getProperty("file", DEFAULT_STORAGE_FILE)));
+		}
+	},
+	/**
+	 * Messages stored in memory only, lost when the server stops.
+	 */
+	MEMORY {
+		@Override
+		public MessageStorage create(Properties properties) {
+			return new MemoryStorage();
+		}
+	};
+
+	/**
+	 * Properties file that configures the storage.
+	 */
+	private static final File SETTINGS_FILE = new File("storage.properties");
+	/**
+	 * Storage file used when none is configured.
+	 */
+	private static final String DEFAULT_STORAGE_FILE = "SBSBS.csv";
+
+	/**
+	 * Function to create storage of this kind.
+	 * @param properties The storage properties.
+	 * @return The new storage.
+	 */
+	public abstract MessageStorage create(Properties properties);
+
+	/**
+	 * Function to create the storage configured by the properties file, CSV
+	 * storage if none is configured.
+	 * @return The configured storage.
+	 */
+	public static MessageStorage createConfigured() {
+		Properties properties = new Properties();
+		if (SETTINGS_FILE.isFile()) {
+			try (InputStream input = new FileInputStream(SETTINGS_FILE)) {
+				properties.load(input);
+			} catch (IOException ioXcp) {
+				System.out.println("Storage settings could not be read, using defaults.");
+				ioXcp.printStackTrace();
+			}
+		}
+
+		String backendName = System.getProperty("storage.backend", properties.getProperty("backend", CSV.name()));
+		StorageBackend backend = fromName(backendName);
+		if (backend == null) {
+			System.out.println("Unknown storage backend " + backendName + ", using CSV.");
+			backend = CSV;
+		}
+		return backend.create(properties);
+	}
+
+	/**
+	 * Function to find the backend of a name, ignoring case.
+	 * @param name The backend name.
+	 * @return The matching backend, or null if the name is unknown.
+	 */
+	public static StorageBackend fromName(String name) {
+		for (StorageBackend backend : values()) {
+			if (backend.name().equalsIgnoreCase(name.trim())) {
+				return backend;
+			}
+		}
+		return null;
+	}
+
+}	// End enum StorageBackend
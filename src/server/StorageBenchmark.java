@@ -0,0 +1,181 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Class to compare the storage backends on the same work: appending batches
+ * of readings as the webhook does, reading all storage as on startup,
+ * scanning one station as an export does, a selective query parsing every
+ * reading and then with the filter checked before parsing, and replacing
+ * storage as compaction does. Run with the backends to compare and the number of
+ * readings, for example "csv memory 1000000".
+ * @author Elliott Waterman
+ */
+public class StorageBenchmark {
+	/**
+	 * Readings appended together, about the readings in one SMS.
+	 */
+	private static final int BATCH_SIZE = 10;
+	/**
+	 * Number of stations the readings are spread over.
+	 */
+	private static final int NUMBER_OF_STATIONS = 20;
+	/**
+	 * Number of readings used when none is given.
+	 */
+	private static final int DEFAULT_NUMBER_OF_READINGS = 200000;
+
+	/**
+	 * Function to run the benchmark on the backends given as arguments.
+	 * @param args Backend names and the number of readings.
+	 * @throws IOException An IO exception caused by the storage.
+	 */
+	public static void main(String[] args) throws IOException {
+		List<StorageBackend> backends = new ArrayList<StorageBackend>();
+		int numberOfReadings = DEFAULT_NUMBER_OF_READINGS;
+		for (String arg : args) {
+			StorageBackend backend = StorageBackend.fromName(arg);
+			if (backend != null) {
+				backends.add(backend);
+			} else {
+				numberOfReadings = Integer.parseInt(arg);
+			}
+		}
+		if (backends.isEmpty()) {
+			for (StorageBackend backend : StorageBackend.values()) {
+				backends.add(backend);
+			}
+		}
+
+		List<ArduinoMessage> readings = createReadings(numberOfReadings);
+		for (StorageBackend backend : backends) {
+			File storageFile = File.createTempFile("benchmark", ".csv");
+			try {
+				Properties properties = new Properties();
+				properties.setProperty("file", storageFile.getPath());
+				run(backend, backend.create(properties), readings);
+			} finally {
+				StorageCompactor.deleteSortedLength(storageFile);
+				storageFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Function to run the benchmark on one storage and print the results.
+	 * @param backend The kind of storage.
+	 * @param storage Empty storage of that kind.
+	 * @param readings The readings to store.
+	 * @throws IOException An IO exception caused by the storage.
+	 */
+	private static void run(StorageBackend backend, MessageStorage storage,
+			List<ArduinoMessage> readings) throws IOException {
+		storage.check();
+
+		long startTime = System.nanoTime();
+		long endOffset = 0;
+		for (int index = 0; index < readings.size(); index += BATCH_SIZE) {
+			endOffset = storage.append(readings.subList(index, Math.min(index + BATCH_SIZE, readings.size())));
+		}
+		print(backend, "append", readings.size(), startTime);
+
+		startTime = System.nanoTime();
+		List<ArduinoMessage> storedReadings = storage.read(0, endOffset);
+		print(backend, "read", storedReadings.size(), startTime);
+
+		startTime = System.nanoTime();
+		int numberMatched = 0;
+		ReadingFilter filter = new ReadingFilter(0, Long.MAX_VALUE, getStation(0), null);
+		try (ReadingCursor cursor = storage.openCursor(0, endOffset, filter)) {
+			while (cursor.next() != null) {
+				numberMatched++;
+			}
+		}
+		print(backend, "scan station", numberMatched, startTime);
+
+		// One snake in a temperature range, a few readings in a thousand
+		ReadingFilter queryFilter = new ReadingFilter(0, Long.MAX_VALUE, null, "RFID7", null,
+			30, 32, Float.NEGATIVE_INFINITY, Float.POSITIVE_INFINITY);
+		startTime = System.nanoTime();
+		numberMatched = 0;
+		try (ReadingCursor cursor = storage.openCursor(0, endOffset, null)) {
+			ArduinoMessage message;
+			while ((message = cursor.next()) != null) {
+				if (queryFilter.matches(message)) {
+					numberMatched++;
+				}
+			}
+		}
+		print(backend, "query parsing all", numberMatched, startTime);
+
+		startTime = System.nanoTime();
+		numberMatched = 0;
+		try (ReadingCursor cursor = storage.openCursor(0, endOffset, queryFilter)) {
+			while (cursor.next() != null) {
+				numberMatched++;
+			}
+		}
+		print(backend, "query", numberMatched, startTime);
+
+		startTime = System.nanoTime();
+		List<ArduinoMessage> sortedReadings = new ArrayList<ArduinoMessage>(storedReadings);
+		sortedReadings.sort(StorageCompactor.STATION_EPOCH_ORDER);
+		endOffset = storage.replace(sortedReadings, endOffset);
+		print(backend, "replace", sortedReadings.size(), startTime);
+
+		startTime = System.nanoTime();
+		numberMatched = 0;
+		try (ReadingCursor cursor = storage.openCursor(0, endOffset, filter)) {
+			while (cursor.next() != null) {
+				numberMatched++;
+			}
+		}
+		print(backend, "scan sorted station", numberMatched, startTime);
+	}
+
+	/**
+	 * Function to create readings spread over the stations, in time order.
+	 * @param numberOfReadings The number of readings to create.
+	 * @return The readings.
+	 */
+	private static List<ArduinoMessage> createReadings(int numberOfReadings) {
+		Random random = new Random(42);
+		List<ArduinoMessage> readings = new ArrayList<ArduinoMessage>(numberOfReadings);
+		long epoch = 1546300800L;
+		for (int index = 0; index < numberOfReadings; index++) {
+			epoch += random.nextInt(60);
+			readings.add(new ArduinoMessage("SM" + index + "," + getStation(random.nextInt(NUMBER_OF_STATIONS)) +
+				"," + epoch + "," + (20 + random.nextInt(150) / 10f) + "," + (40 + random.nextInt(500) / 10f) +
+				"," + (500 + random.nextInt(20000) / 10f) + ",RFID" + random.nextInt(100)));
+		}
+		return readings;
+	}
+
+	/**
+	 * Function to return the phone number of a station.
+	 * @param station The station number.
+	 * @return The phone number.
+	 */
+	private static String getStation(int station) {
+		return "+4475000000" + (10 + station);
+	}
+
+	/**
+	 * Function to print the time taken by a step.
+	 * @param backend The kind of storage.
+	 * @param step The step measured.
+	 * @param numberOfReadings The readings handled by the step.
+	 * @param startTime The start of the step from System.nanoTime.
+	 */
+	private static void print(StorageBackend backend, String step, int numberOfReadings, long startTime) {
+		long millis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+		System.out.println(backend + " " + step + ": " + numberOfReadings + " readings in " +
+			millis + " ms (" + (numberOfReadings * 1000L / millis) + " per second)");
+	}
+
+}	// End class StorageBenchmark
@@ -0,0 +1,190 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Class to compact the storage file: readings are sorted by station and time,
+ * duplicates sent by retries are removed and invalid readings are moved to
+ * the quarantine log. The length of the sorted part of the storage file is
+ * kept in a marker file so readers can stop early when scanning a station.
+ * @author Elliott Waterman
+ */
+public class StorageCompactor {
+	/**
+	 * Order of readings in the sorted part of the storage file.
+	 */
+	public static final Comparator<ArduinoMessage> STATION_EPOCH_ORDER =
+		Comparator.comparing(ArduinoMessage::getPhoneNumber)
+			.thenComparingLong(ArduinoMessage::getEpochMillis);
+	/**
+	 * Extension of the marker file holding the length of the sorted part.
+	 */
+	private static final String SORTED_MARKER_EXTENSION = ".sorted";
+
+	/**
+	 * Function to sort readings by station and time, remove duplicates and
+	 * remove invalid readings. Invalid readings are added to the quarantine
+	 * log so they can be reprocessed later, malformed readings as the line
+	 * they were stored as.
+	 * @param messages The readings to compact, the list is not changed.
+	 * @param quarantineLog The log invalid readings are added to.
+	 * @return The compacted readings.
+	 */
+	public static ArrayList<ArduinoMessage> compact(List<ArduinoMessage> messages,
+			QuarantineLog quarantineLog) {
+		ArrayList<ArduinoMessage> validMessages = new ArrayList<ArduinoMessage>(messages.size());
+		int numberOfInvalid = 0;
+		for (ArduinoMessage message : messages) {
+			RejectReason reason = message.validate();
+			if (reason == null) {
+				validMessages.add(message);
+				continue;
+			}
+			numberOfInvalid++;
+			if (reason != RejectReason.MALFORMED) {
+				quarantineLog.add(reason, message.parseToCSVString());
+			} else if (message.getRawText() == null) {
+				System.out.println("Malformed reading without its stored line removed.");
+			} else if (!message.getRawText().trim().isEmpty()) {
+				// Unparsable lines cannot be written back, keep the stored line
+				quarantineLog.add(reason, message.getRawText());
+			}
+		}
+
+		// Stable sort keeps the first stored copy of a duplicate first
+		validMessages.sort(STATION_EPOCH_ORDER);
+
+		// A station reads one snake per second, later copies are retries
+		ArrayList<ArduinoMessage> compactedMessages = new ArrayList<ArduinoMessage>(validMessages.size());
+		Set<String> seenReadings = new HashSet<String>();
+		String lastStation = null;
+		long lastEpoch = Long.MIN_VALUE;
+		for (ArduinoMessage message : validMessages) {
+			// Duplicates are next to each other, only remember the current second
+			if (!message.getPhoneNumber().equals(lastStation) || (message.getEpochMillis() != lastEpoch)) {
+				seenReadings.clear();
+				lastStation = message.getPhoneNumber();
+				lastEpoch = message.getEpochMillis();
+			}
+			if (seenReadings.add(message.getSnakeRFID())) {
+				compactedMessages.add(message);
+			}
+		}
+
+		System.out.println("Compaction kept " + compactedMessages.size() + " of " + messages.size() +
+			" readings, removed " + (validMessages.size() - compactedMessages.size()) +
+			" duplicates and " + numberOfInvalid + " invalid.");
+
+		return compactedMessages;
+	}
+
+	/**
+	 * Function to write readings to a new storage file, replacing any file
+	 * already there.
+	 * @param storageFile The file to write.
+	 * @param messages The readings to write.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	public static void writeStorage(File storageFile, List<ArduinoMessage> messages) throws IOException {
+		FileOutputStream output = new FileOutputStream(storageFile);
+		try (Writer writer = new BufferedWriter(
+				new OutputStreamWriter(output, Charset.defaultCharset()), 64 * 1024)) {
+			for (ArduinoMessage message : messages) {
+				writer.write(message.parseToCSVString());
+				writer.write(System.lineSeparator());
+			}
+			writer.flush();
+			// Make sure the data is on disk before it is swapped in
+			output.getFD().sync();
+		}
+	}
+
+	/**
+	 * Function to read the length of the sorted part of the storage file.
+	 * @param storageFile The storage file.
+	 * @return The length in bytes of the sorted part, 0 if unknown.
+	 */
+	public static long readSortedLength(File storageFile) {
+		File markerFile = getMarkerFile(storageFile);
+		if (!markerFile.isFile()) {
+			return 0;
+		}
+		try {
+			long sortedLength = Long.parseLong(
+				new String(Files.readAllBytes(markerFile.toPath()), Charset.defaultCharset()).trim());
+			// A marker longer than the file does not belong to it
+			return (sortedLength <= storageFile.length()) ? sortedLength : 0;
+		} catch (IOException | NumberFormatException xcp) {
+			System.out.println("Sorted marker could not be read.");
+			return 0;
+		}
+	}
+
+	/**
+	 * Function to write the length of the sorted part of the storage file.
+	 * @param storageFile The storage file.
+	 * @param sortedLength The length in bytes of the sorted part.
+	 * @throws IOException An IO exception caused by writing the file.
+	 */
+	public static void writeSortedLength(File storageFile, long sortedLength) throws IOException {
+		try (FileWriter writer = new FileWriter(getMarkerFile(storageFile))) {
+			writer.write(Long.toString(sortedLength));
+		}
+	}
+
+	/**
+	 * Function to remove the sorted marker, done before the storage file is
+	 * replaced so a crash never leaves a marker that is too long.
+	 * @param storageFile The storage file.
+	 * @throws IOException An IO exception caused by deleting the file.
+	 */
+	public static void deleteSortedLength(File storageFile) throws IOException {
+		Files.deleteIfExists(getMarkerFile(storageFile).toPath());
+	}
+
+	/**
+	 * Function to check whether a reading in the sorted part of storage comes
+	 * after every reading a filter could match, so a scan can stop.
+	 * @param line A line from the sorted part of storage, not yet parsed.
+	 * @param filter The filter of the scan.
+	 * @return True if no later reading in the sorted part can match.
+	 */
+	public static boolean isPastFilter(ReadingLine line, ReadingFilter filter) {
+		if ((filter == null) || (filter.getStation() == null) ||
+			!line.hasField(ReadingLine.SNAKE_RFID_FIELD)) {
+			return false;
+		}
+		int stationOrder = line.compareField(ReadingLine.PHONE_NUMBER_FIELD, filter.getStation());
+		if (stationOrder != 0) {
+			return stationOrder > 0;
+		}
+		try {
+			return line.parseLong(ReadingLine.EPOCH_FIELD) > filter.getToEpoch();
+		} catch (NumberFormatException nfe) {
+			return false;
+		}
+	}
+
+	/**
+	 * Function to return the sorted marker file of a storage file.
+	 * @param storageFile The storage file.
+	 * @return The marker file.
+	 */
+	private static File getMarkerFile(File storageFile) {
+		return new File(storageFile.getPath() + SORTED_MARKER_EXTENSION);
+	}
+
+}	// End class StorageCompactor
@@ -0,0 +1,237 @@
+package server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Class to apply the retention policy to compacted readings. Readings older
+ * than the policy's cutoff are first added to the hourly aggregate log, then
+ * reduced to the first and last reading of each snake visit, a visit being
+ * the readings of a snake at a station with no longer gap between them than
+ * the policy allows. The skinks of the removed readings are moved to the
+ * nearer end of their visit, so the skinks seen with a snake are kept.
+ * Readings already reduced are only aggregated once, as the aggregate log
+ * records how far it has got. Readings stored since the last compaction for
+ * hours before that point, from a backfill or the quarantine, are added to
+ * the stored aggregates of their hours before they are reduced, unless the
+ * aggregate already counts a reading of the same second and snake.
+ * @author Elliott Waterman
+ */
+public class StorageRetention {
+
+	/**
+	 * Function to apply the retention policy to readings.
+	 * @param messages The compacted readings, sorted by station and time, the list is not changed.
+	 * @param newMessages The readings stored since storage was last compacted, by identity, null if not known.
+	 * @param policy The retention policy.
+	 * @param aggregateLog The log the hourly aggregates are added to.
+	 * @param nowEpoch The current time in epoch seconds.
+	 * @return The retained readings, in the same order.
+	 * @throws IOException An IO exception caused by writing the aggregate log.
+	 */
+	public static ArrayList<ArduinoMessage> apply(List<ArduinoMessage> messages, Set<ArduinoMessage> newMessages,
+			RetentionPolicy policy, HourlyAggregateLog aggregateLog, long nowEpoch) throws IOException {
+		if (!policy.isEnabled()) {
+			return new ArrayList<ArduinoMessage>(messages);
+		}
+		long cutoffEpoch = policy.getCutoffEpoch(nowEpoch);
+
+		// Aggregates must be stored before the readings they summarise are removed
+		long watermark = aggregateLog.readWatermark();
+		ArrayList<ArduinoMessage> lateMessages = new ArrayList<ArduinoMessage>();
+		for (ArduinoMessage message : messages) {
+			// Not knowing which are new, every reading is checked against the aggregates
+			if ((message.getEpochMillis() < watermark) && 
+				((newMessages == null) || newMessages.contains(message))) {
+				lateMessages.add(message);
+			}
+		}
+		ArrayList<HourlyAggregate> aggregates = mergeLateAggregates(lateMessages, aggregateLog);
+		if (!aggregates.isEmpty()) {
+			System.out.println("Retention added late readings to " + aggregates.size() + " station hours.");
+		}
+		if (cutoffEpoch > watermark) {
+			ArrayList<HourlyAggregate> newAggregates = HourlyAggregate.aggregate(messages,
+				new ReadingFilter(watermark, cutoffEpoch - 1, null, null));
+			aggregates.addAll(newAggregates);
+			System.out.println("Retention aggregated " + newAggregates.size() + " station hours before " + cutoffEpoch);
+		}
+		if (!aggregates.isEmpty() || (cutoffEpoch > watermark)) {
+			aggregateLog.append(aggregates, Math.max(watermark, cutoffEpoch));
+		}
+
+		ArrayList<ArduinoMessage> retainedMessages = reduceVisits(messages, cutoffEpoch, policy.getVisitGapSeconds());
+		System.out.println("Retention kept " + retainedMessages.size() + " of " + messages.size() + " readings.");
+		return retainedMessages;
+	}
+
+	/**
+	 * Function to aggregate readings for hours that are already aggregated,
+	 * each together with the stored aggregate of its hour so the copy
+	 * appended to the log replaces it. A reading the stored aggregate may
+	 * already count, such as one sent again after its first copy was
+	 * reduced away, is left out.
+	 * @param lateMessages The readings that may not be aggregated yet.
+	 * @param aggregateLog The log holding the stored aggregates.
+	 * @return The aggregates of the hours with late readings, sorted by station and hour.
+	 * @throws IOException An IO exception caused by reading the aggregate log.
+	 */
+	private static ArrayList<HourlyAggregate> mergeLateAggregates(List<ArduinoMessage> lateMessages,
+			HourlyAggregateLog aggregateLog) throws IOException {
+		if (lateMessages.isEmpty()) {
+			return new ArrayList<HourlyAggregate>();
+		}
+
+		long fromHour = Long.MAX_VALUE;
+		long toHour = Long.MIN_VALUE;
+		for (ArduinoMessage message : lateMessages) {
+			fromHour = Math.min(fromHour, HourlyAggregate.getHourEpoch(message.getEpochMillis()));
+			toHour = Math.max(toHour, HourlyAggregate.getHourEpoch(message.getEpochMillis()));
+		}
+		Map<String, HourlyAggregate> storedAggregates = new HashMap<String, HourlyAggregate>();
+		for (HourlyAggregate aggregate : aggregateLog.read(null, fromHour, toHour)) {
+			storedAggregates.put(aggregate.getStation() + "," + aggregate.getHourEpoch(), aggregate);
+		}
+
+		ArrayList<ArduinoMessage> uncountedMessages = new ArrayList<ArduinoMessage>();
+		for (ArduinoMessage message : lateMessages) {
+			HourlyAggregate storedAggregate = storedAggregates.get(message.getPhoneNumber() + "," + 
+				HourlyAggregate.getHourEpoch(message.getEpochMillis()));
+			if ((storedAggregate == null) || !storedAggregate.mayContain(message)) {
+				uncountedMessages.add(message);
+			}
+		}
+		if (uncountedMessages.size() < lateMessages.size()) {
+			System.out.println("Retention left out " + (lateMessages.size() - uncountedMessages.size()) + 
+				" late readings already aggregated.");
+		}
+
+		ArrayList<HourlyAggregate> lateAggregates = HourlyAggregate.aggregate(uncountedMessages,
+			new ReadingFilter(Long.MIN_VALUE, Long.MAX_VALUE, null, null));
+		for (HourlyAggregate aggregate : lateAggregates) {
+			HourlyAggregate storedAggregate = 
+				storedAggregates.get(aggregate.getStation() + "," + aggregate.getHourEpoch());
+			if (storedAggregate != null) {
+				aggregate.merge(storedAggregate);
+			}
+		}
+		return lateAggregates;
+	}
+
+	/**
+	 * Function to keep only the first and last reading of each snake visit
+	 * before a cutoff, readings after it are all kept. The skinks of a
+	 * removed reading are added to a copy of the nearer kept reading of its
+	 * visit. Reducing readings already reduced keeps them all.
+	 * @param messages The readings, sorted by station and time.
+	 * @param cutoffEpoch The time before which visits are reduced.
+	 * @param visitGapSeconds The longest gap between readings of one visit.
+	 * @return The retained readings, in the same order.
+	 */
+	public static ArrayList<ArduinoMessage> reduceVisits(List<ArduinoMessage> messages, long cutoffEpoch,
+			long visitGapSeconds) {
+		boolean[] keep = new boolean[messages.size()];
+		// Index of the first reading of each reading's visit, and of the 
+		// last reading of each visit by the index of its first
+		int[] visitStarts = new int[messages.size()];
+		int[] visitEnds = new int[messages.size()];
+		// Index of the latest reading of each snake at the current station
+		Map<String, Integer> lastReadings = new HashMap<String, Integer>();
+		String lastStation = null;
+
+		for (int index = 0; index < messages.size(); index++) {
+			ArduinoMessage message = messages.get(index);
+			long epoch = message.getEpochMillis();
+			if (epoch >= cutoffEpoch) {
+				keep[index] = true;
+				continue;
+			}
+			if (!message.getPhoneNumber().equals(lastStation)) {
+				keepLastReadings(lastReadings, keep);
+				lastStation = message.getPhoneNumber();
+			}
+
+			Integer previousIndex = lastReadings.put(message.getSnakeRFID(), index);
+			if ((previousIndex == null) ||
+				(epoch - messages.get(previousIndex).getEpochMillis() > visitGapSeconds)) {
+				// Start of a visit, and the end of the snake's previous one
+				keep[index] = true;
+				if (previousIndex != null) {
+					keep[previousIndex] = true;
+				}
+				visitStarts[index] = index;
+			} else {
+				visitStarts[index] = visitStarts[previousIndex];
+			}
+			visitEnds[visitStarts[index]] = index;
+		}
+		keepLastReadings(lastReadings, keep);
+
+		// Skinks of the removed readings, by the index of the kept reading
+		Map<Integer, Set<String>> movedSkinks = new HashMap<Integer, Set<String>>();
+		for (int index = 0; index < keep.length; index++) {
+			if (keep[index]) {
+				continue;
+			}
+			long epoch = messages.get(index).getEpochMillis();
+			int firstIndex = visitStarts[index];
+			int lastIndex = visitEnds[firstIndex];
+			int keptIndex = (epoch - messages.get(firstIndex).getEpochMillis() <= 
+				messages.get(lastIndex).getEpochMillis() - epoch) ? firstIndex : lastIndex;
+			for (String skinkRFID : messages.get(index).getSkinkRFIDs()) {
+				if (!skinkRFID.isEmpty()) {
+					movedSkinks.computeIfAbsent(keptIndex, key -> new LinkedHashSet<String>()).add(skinkRFID);
+				}
+			}
+		}
+
+		ArrayList<ArduinoMessage> retainedMessages = new ArrayList<ArduinoMessage>();
+		for (int index = 0; index < keep.length; index++) {
+			if (keep[index]) {
+				retainedMessages.add(addSkinks(messages.get(index), movedSkinks.get(index)));
+			}
+		}
+		return retainedMessages;
+	}
+
+	/**
+	 * Function to add skinks to a reading, the reading is copied as it may
+	 * still be in use.
+	 * @param message The reading.
+	 * @param skinkRFIDs The skinks to add, null for none.
+	 * @return The reading, or a copy of it with the skinks it did not have.
+	 */
+	private static ArduinoMessage addSkinks(ArduinoMessage message, Set<String> skinkRFIDs) {
+		if (skinkRFIDs == null) {
+			return message;
+		}
+		skinkRFIDs.removeAll(message.getSkinkRFIDs());
+		if (skinkRFIDs.isEmpty()) {
+			return message;
+		}
+		ArduinoMessage copy = new ArduinoMessage(message.parseToCSVString());
+		ArrayList<String> copySkinkRFIDs = new ArrayList<String>(message.getSkinkRFIDs());
+		copySkinkRFIDs.addAll(skinkRFIDs);
+		copy.setRFID(copySkinkRFIDs);
+		return copy;
+	}
+
+	/**
+	 * Function to keep the last reading of every snake's current visit, at
+	 * the end of a station's readings.
+	 * @param lastReadings Index of the latest reading of each snake, cleared.
+	 * @param keep Whether each reading is kept.
+	 */
+	private static void keepLastReadings(Map<String, Integer> lastReadings, boolean[] keep) {
+		for (int index : lastReadings.values()) {
+			keep[index] = true;
+		}
+		lastReadings.clear();
+	}
+
+}	// End class StorageRetention
@@ -0,0 +1,76 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Class to give each RFID tag a small integer id, so indexes can keep tags in
+ * primitive arrays and maps rather than as strings. Ids start at 0 and are
+ * given in the order tags are first seen.
+ * @author Elliott Waterman
+ */
+public class TagDictionary {
+	private final Map<String, Integer> tagIds;
+	private final List<String> tags;
+
+	/**
+	 * Constructor to create an empty dictionary.
+	 */
+	public TagDictionary() {
+		this.tagIds = new HashMap<String, Integer>();
+		this.tags = new ArrayList<String>();
+	}
+
+	/**
+	 * Function to return the id of a tag, giving it a new id if unseen.
+	 * @param tag The RFID tag.
+	 * @return The id of the tag.
+	 */
+	public int encode(String tag) {
+		Integer tagId = this.tagIds.get(tag);
+		if (tagId == null) {
+			tagId = this.tags.size();
+			this.tagIds.put(tag, tagId);
+			this.tags.add(tag);
+		}
+		return tagId;
+	}
+
+	/**
+	 * Function to return the id of a tag without adding it.
+	 * @param tag The RFID tag.
+	 * @return The id of the tag, or -1 if the tag has not been seen.
+	 */
+	public int find(String tag) {
+		Integer tagId = this.tagIds.get(tag);
+		return (tagId == null) ? -1 : tagId;
+	}
+
+	/**
+	 * Function to return the tag of an id.
+	 * @param tagId The id of the tag.
+	 * @return The RFID tag.
+	 */
+	public String decode(int tagId) {
+		return this.tags.get(tagId);
+	}
+
+	/**
+	 * Function to return the number of tags in the dictionary.
+	 * @return The number of tags.
+	 */
+	public int size() {
+		return this.tags.size();
+	}
+
+	/**
+	 * Function to remove every tag from the dictionary.
+	 */
+	public void clear() {
+		this.tagIds.clear();
+		this.tags.clear();
+	}
+
+}	// End class TagDictionary
@@ -0,0 +1,73 @@
+package server;
+
+import static spark.Spark.*;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+
+/**
+ * Class to stand in for the Twilio REST API message history, so a backfill
+ * can be tried without a Twilio account. Each day has SMS from two stations,
+ * one unknown number and some outgoing replies, split into pages. Start this
+ * stub, then start the server with -Dtwilio.api.url=http://localhost:4568 and
+ * TWILIO_ACCOUNT_SID and TWILIO_AUTH_TOKEN set to any value.
+ * @author Elliott Waterman
+ */
+public class TestTwilioAPI {
+	/**
+	 * Phone numbers sending SMS to the stub account, the last is no station.
+	 */
+	private static final String[] SENDERS = { "+441111111111", "+442222222222", "+447000000000" };
+	/**
+	 * Number of SMS per sender per day.
+	 */
+	private static final int MESSAGES_PER_SENDER = 30;
+
+	public static void main(String[] args) {
+		port(4568);
+
+		get("/2010-04-01/Accounts/:accountSid/Messages.json", (req, res) -> {
+			if (req.headers("Authorization") == null) {
+				res.status(401);
+				return "{\"message\":\"Authenticate\"}";
+			}
+			LocalDate date = LocalDate.parse(req.queryParams("DateSent"));
+			// Small pages so a day takes several requests
+			int pageSize = Math.min(50, Integer.parseInt(req.queryParams("PageSize")));
+			int pageNumber = (req.queryParams("Page") == null) ? 0 : Integer.parseInt(req.queryParams("Page"));
+			long dayEpoch = date.atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+			int messagesPerDay = SENDERS.length * MESSAGES_PER_SENDER * 2;
+
+			StringBuilder JSON = new StringBuilder("{\"messages\":[");
+			int first = pageNumber * pageSize;
+			int last = Math.min(first + pageSize, messagesPerDay);
+			for (int index = first; index < last; index++) {
+				// Every other message is a reply sent by the account
+				boolean inbound = (index % 2 == 0);
+				int sender = (index / 2) % SENDERS.length;
+				long epoch = dayEpoch + 79200 + index * 10;
+				JSON.append(index == first ? "" : ",");
+				JSON.append("{\"sid\":\"SM").append(date.toString().replace("-", "")).append(index);
+				JSON.append("\",\"from\":\"").append(inbound ? SENDERS[sender] : "+441233800093");
+				JSON.append("\",\"direction\":\"").append(inbound ? "inbound" : "outbound-reply");
+				JSON.append("\",\"body\":\"").append(epoch).append(",24.5,61.0,").append(1200 + index);
+				JSON.append(",SNAKE").append(index % 7).append(",SKINK").append(index % 5);
+				JSON.append("\\n").append(epoch + 5).append(",24.6,61.0,").append(1201 + index);
+				JSON.append(",SNAKE").append(index % 7).append("\"}");
+			}
+			JSON.append("],\"page\":").append(pageNumber);
+			JSON.append(",\"page_size\":").append(pageSize);
+			JSON.append(",\"next_page_uri\":");
+			if (last < messagesPerDay) {
+				JSON.append("\"/2010-04-01/Accounts/").append(req.params("accountSid"));
+				JSON.append("/Messages.json?DateSent=").append(date);
+				JSON.append("&PageSize=").append(pageSize).append("&Page=").append(pageNumber + 1).append('"');
+			} else {
+				JSON.append("null");
+			}
+
+			res.type("application/json");
+			return JSON.append('}').toString();
+		});
+	}
+}
@@ -0,0 +1,239 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Class to recover readings missed while the server was down by paging
+ * through the Twilio message history. The time window is split into days
+ * which are fetched concurrently, each day paged in turn, so several pages
+ * are in flight at once. Only messages from known stations whose SID has not
+ * been seen are passed on. The REST API address can be changed so the
+ * backfill can run against a local stub (see TestTwilioAPI).
+ * @author Elliott Waterman
+ */
+public class TwilioBackfill {
+	/**
+	 * Address of the Twilio REST API.
+	 */
+	public static final String TWILIO_API_URL = "https://api.twilio.com";
+	/**
+	 * Number of messages asked for per page (the Twilio maximum).
+	 */
+	private static final int PAGE_SIZE = 1000;
+	/**
+	 * Number of times a page is asked for again when rate limited.
+	 */
+	private static final int MAX_RETRIES = 3;
+	/**
+	 * Time to wait before asking for a rate limited page again.
+	 */
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	/**
+	 * Interface to receive the messages recovered by a backfill, called from
+	 * several threads at once.
+	 */
+	public interface Handler {
+		/**
+		 * Function called for each message from a known station, it checks
+		 * the SID against storage as the webhook may have stored the message
+		 * since the backfill started.
+		 * @param messageSid The SID of the message.
+		 * @param fromPhoneNumber The phone number of the station.
+		 * @param bodyText The text message body.
+		 * @return True if the message was recovered, false if it was already stored or quarantined.
+		 */
+		boolean handle(String messageSid, String fromPhoneNumber, String bodyText);
+	}
+
+	/**
+	 * Class to hold the counts of a finished backfill.
+	 */
+	public static class Result {
+		private final int pages;
+		private final int messages;
+		private final int recovered;
+		private final int duplicates;
+
+		/**
+		 * Constructor to set the counts.
+		 * @param pages The number of pages fetched.
+		 * @param messages The number of messages in the pages.
+		 * @param recovered The number of messages recovered by the handler.
+		 * @param duplicates The number of station messages already seen.
+		 */
+		Result(int pages, int messages, int recovered, int duplicates) {
+			this.pages = pages;
+			this.messages = messages;
+			this.recovered = recovered;
+			this.duplicates = duplicates;
+		}
+
+		/**
+		 * Getter function to return the number of messages recovered.
+		 * @return The number of messages recovered by the handler.
+		 */
+		public int getRecovered() {
+			return recovered;
+		}
+
+		@Override
+		public String toString() {
+			return "Fetched " + pages + " pages with " + messages + " messages, recovered " + 
+				recovered + ", skipped " + duplicates + " already stored or quarantined";
+		}
+	}
+
+	private final String apiURL;
+	private final String accountSid;
+	private final String authorization;
+	private final int concurrentRequests;
+	private final ObjectMapper objectMapper;
+
+	/**
+	 * Constructor to set the account and API used.
+	 * @param apiURL The address of the REST API, TWILIO_API_URL or a stub.
+	 * @param accountSid The Twilio account SID.
+	 * @param authToken The Twilio auth token.
+	 * @param concurrentRequests The number of pages fetched at the same time.
+	 */
+	public TwilioBackfill(String apiURL, String accountSid, String authToken, int concurrentRequests) {
+		this.apiURL = apiURL;
+		this.accountSid = accountSid;
+		this.authorization = "Basic " + Base64.getEncoder().encodeToString(
+			(accountSid + ":" + authToken).getBytes(StandardCharsets.UTF_8));
+		this.concurrentRequests = concurrentRequests;
+		this.objectMapper = new ObjectMapper();
+	}
+
+	/**
+	 * Function to fetch the messages sent on each day between two dates and
+	 * pass on those from known stations that have not been seen.
+	 * @param fromDate The first day fetched (UTC).
+	 * @param toDate The last day fetched (UTC).
+	 * @param stations The phone numbers of the known stations.
+	 * @param handler The receiver of the recovered messages.
+	 * @return The counts of the backfill.
+	 * @throws IOException An IO exception caused by fetching a page.
+	 */
+	public Result backfill(LocalDate fromDate, LocalDate toDate, Set<String> stations,
+			Handler handler) throws IOException {
+		// A message on two pages is only handled once
+		Set<String> claimedSids = ConcurrentHashMap.newKeySet();
+		AtomicInteger pages = new AtomicInteger();
+		AtomicInteger messages = new AtomicInteger();
+		AtomicInteger recovered = new AtomicInteger();
+		AtomicInteger duplicates = new AtomicInteger();
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(this.concurrentRequests, runnable -> {
+			Thread thread = new Thread(runnable, "backfill");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try (CloseableHttpClient httpClient = HttpClients.custom()
+				.setMaxConnPerRoute(this.concurrentRequests)
+				.setMaxConnTotal(this.concurrentRequests)
+				.build()) {
+			List<Future<?>> days = new ArrayList<Future<?>>();
+			for (LocalDate date = fromDate; !date.isAfter(toDate); date = date.plusDays(1)) {
+				String firstPage = "/2010-04-01/Accounts/" + this.accountSid + 
+					"/Messages.json?DateSent=" + date + "&PageSize=" + PAGE_SIZE;
+				days.add(threadPool.submit(() -> {
+					// Pages of a day are linked, so they are fetched in turn
+					String pageURI = firstPage;
+					while (pageURI != null) {
+						JsonNode page = fetchPage(httpClient, pageURI);
+						pages.incrementAndGet();
+						for (JsonNode message : page.path("messages")) {
+							messages.incrementAndGet();
+							String messageSid = message.path("sid").asText();
+							String fromPhoneNumber = message.path("from").asText();
+							if (!message.path("direction").asText().startsWith("inbound") || 
+								!stations.contains(fromPhoneNumber)) {
+								continue;
+							}
+							if (!claimedSids.add(messageSid) || 
+								!handler.handle(messageSid, fromPhoneNumber, message.path("body").asText())) {
+								duplicates.incrementAndGet();
+								continue;
+							}
+							recovered.incrementAndGet();
+						}
+						pageURI = page.path("next_page_uri").isTextual() ? 
+							page.path("next_page_uri").asText() : null;
+					}
+					return null;
+				}));
+			}
+
+			for (Future<?> day : days) {
+				day.get();
+			}
+		} catch (InterruptedException iXcp) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Backfill interrupted.", iXcp);
+		} catch (ExecutionException eXcp) {
+			throw new IOException("Backfill page could not be fetched.", eXcp.getCause());
+		} finally {
+			threadPool.shutdownNow();
+		}
+
+		return new Result(pages.get(), messages.get(), recovered.get(), duplicates.get());
+	}
+
+	/**
+	 * Function to fetch and parse a page of the message history, waiting and
+	 * asking again when rate limited.
+	 * @param httpClient The HTTP client.
+	 * @param pageURI The URI of the page, relative to the API address.
+	 * @return The parsed page.
+	 * @throws IOException An IO exception caused by the request.
+	 * @throws InterruptedException If interrupted while waiting to retry.
+	 */
+	private JsonNode fetchPage(CloseableHttpClient httpClient, String pageURI) 
+			throws IOException, InterruptedException {
+		HttpGet request = new HttpGet(this.apiURL + pageURI);
+		request.setHeader(HttpHeaders.AUTHORIZATION, this.authorization);
+		request.setHeader(HttpHeaders.ACCEPT, "application/json");
+
+		for (int attempt = 0; ; attempt++) {
+			try (CloseableHttpResponse response = httpClient.execute(request)) {
+				int status = response.getStatusLine().getStatusCode();
+				if ((status == 429) && (attempt < MAX_RETRIES)) {
+					Thread.sleep(RETRY_DELAY_MILLIS << attempt);
+					continue;
+				}
+				if (status != HttpStatus.SC_OK) {
+					throw new IOException("Message history returned " + status + " for " + pageURI);
+				}
+				try (InputStream input = response.getEntity().getContent()) {
+					return this.objectMapper.readTree(input);
+				}
+			}
+		}
+	}
+
+}	// End class TwilioBackfill
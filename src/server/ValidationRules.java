@@ -0,0 +1,163 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Class to define the bounds an Arduino message must be within to be stored.
+ * The defaults can be overridden by a properties file which is reloaded when
+ * quarantined messages are reprocessed.
+ * @author Elliott Waterman
+ */
+public class ValidationRules {
+	/**
+	 * Properties file that can override the default bounds.
+	 */
+	private static final File RULES_FILE = new File("validation.properties");
+	/**
+	 * Maximum temperature before reading or value is incorrect (Mauritius highest 40C).
+	 */
+	private static final float MAX_TEMPERATURE = 60;
+	/**
+	 * Minimum temperature before reading or value is incorrect (Mauritius lowest 5C).
+	 */
+	private static final float MIN_TEMPERATURE = -10;
+	/**
+	 * Maximum humidity before reading or value is incorrect (Sensor highest 100%).
+	 */
+	private static final float MAX_HUMIDITY = 100;
+	/**
+	 * Minimum humidity before reading or value is incorrect (Sensor lowest 0%).
+	 */
+	private static final float MIN_HUMIDITY = 0;
+	/**
+	 * Minimum weight before reading or value is incorrect (Load cell lowest 0g).
+	 */
+	private static final float MIN_WEIGHT = 0;
+	/**
+	 * The rules currently used to validate messages.
+	 */
+	private static volatile ValidationRules currentRules = load();
+
+	private final float minTemperature;
+	private final float maxTemperature;
+	private final float minHumidity;
+	private final float maxHumidity;
+	private final float minWeight;
+
+	/**
+	 * Constructor to set the bounds of valid readings.
+	 * @param minTemperature Minimum temperature in degrees Celsius.
+	 * @param maxTemperature Maximum temperature in degrees Celsius.
+	 * @param minHumidity Minimum relative humidity as a percentage.
+	 * @param maxHumidity Maximum relative humidity as a percentage.
+	 * @param minWeight Minimum weight in grams.
+	 */
+	public ValidationRules(float minTemperature, float maxTemperature,
+			float minHumidity, float maxHumidity, float minWeight) {
+		this.minTemperature = minTemperature;
+		this.maxTemperature = maxTemperature;
+		this.minHumidity = minHumidity;
+		this.maxHumidity = maxHumidity;
+		this.minWeight = minWeight;
+	}
+
+	/**
+	 * Function to return the rules currently used to validate messages.
+	 * @return The current validation rules.
+	 */
+	public static ValidationRules current() {
+		return currentRules;
+	}
+
+	/**
+	 * Function to reload the rules from the properties file.
+	 * @return The reloaded validation rules.
+	 */
+	public static ValidationRules reload() {
+		currentRules = load();
+		return currentRules;
+	}
+
+	/**
+	 * Function to load the rules from the properties file, any bound missing
+	 * from the file uses its default.
+	 * @return The loaded validation rules.
+	 */
+	private static ValidationRules load() {
+		Properties properties = new Properties();
+		if (RULES_FILE.isFile()) {
+			try (InputStream input = new FileInputStream(RULES_FILE)) {
+				properties.load(input);
+			} catch (IOException ioXcp) {
+				System.out.println("Validation rules could not be read, using defaults.");
+				ioXcp.printStackTrace();
+			}
+		}
+
+		return new ValidationRules(
+			getFloat(properties, "min.temperature", MIN_TEMPERATURE),
+			getFloat(properties, "max.temperature", MAX_TEMPERATURE),
+			getFloat(properties, "min.humidity", MIN_HUMIDITY),
+			getFloat(properties, "max.humidity", MAX_HUMIDITY),
+			getFloat(properties, "min.weight", MIN_WEIGHT));
+	}
+
+	/**
+	 * Function to read a float property.
+	 * @param properties The loaded properties.
+	 * @param key The property key.
+	 * @param defaultValue The value used when the key is missing or invalid.
+	 * @return The property value or the default.
+	 */
+	private static float getFloat(Properties properties, String key, float defaultValue) {
+		String value = properties.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Float.parseFloat(value.trim());
+		} catch (NumberFormatException nfe) {
+			System.out.println("Invalid validation rule " + key + "=" + value);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Function to check a temperature is within bounds.
+	 * @param temperature The temperature in degrees Celsius.
+	 * @return True if within bounds.
+	 */
+	public boolean isTemperatureValid(float temperature) {
+		return (temperature >= this.minTemperature) && (temperature <= this.maxTemperature);
+	}
+
+	/**
+	 * Function to check a humidity is within bounds.
+	 * @param humidity The relative humidity as a percentage.
+	 * @return True if within bounds.
+	 */
+	public boolean isHumidityValid(float humidity) {
+		return (humidity >= this.minHumidity) && (humidity <= this.maxHumidity);
+	}
+
+	/**
+	 * Function to check a weight is within bounds.
+	 * @param weight The weight in grams.
+	 * @return True if within bounds.
+	 */
+	public boolean isWeightValid(float weight) {
+		return weight >= this.minWeight;
+	}
+
+	@Override
+	public String toString() {
+		return "temperature " + this.minTemperature + " to " + this.maxTemperature +
+			", humidity " + this.minHumidity + " to " + this.maxHumidity +
+			", weight from " + this.minWeight;
+	}
+
+}	// End class ValidationRules